@@ -68,6 +68,25 @@ public class WebFetcher implements Input {
     protected static final String PROPERTY_ENABLE_HASHTAG = "enableHashtag";
     protected static final String PROPERTY_ENABLE_JSLINKS = "enabledJsLinks";
     protected static final String PROPERTY_IGNORE_HTTP_ERROR = "ignoreHttpError";
+    protected static final String PROPERTY_CONDITIONAL_GET = "conditionalGet";
+    protected static final String PROPERTY_FETCH_ENGINE = "fetchEngine";
+    protected static final String PROPERTY_MAX_CONNECTIONS_PER_HOST = "maxConnectionsPerHost";
+    protected static final String PROPERTY_MAX_REQUESTS_IN_FLIGHT = "maxRequestsInFlight";
+    protected static final String PROPERTY_MAX_RETRIES = "maxRetries";
+    protected static final String PROPERTY_RETRY_BACKOFF = "retryBackoff";
+    protected static final String PROPERTY_MAX_RETRY_BACKOFF = "maxRetryBackoff";
+    protected static final String PROPERTY_MAX_PAGES_PER_SESSION = "maxPagesPerSession";
+    protected static final String PROPERTY_WAIT_FOR_NETWORK_IDLE = "waitForNetworkIdle";
+    protected static final String PROPERTY_BLOCK_RESOURCES = "blockResources";
+    protected static final String PROPERTY_BLOCK_URLS = "blockUrls";
+    protected static final String PROPERTY_MAX_RENDER_TIME = "maxRenderTime";
+    protected static final String PROPERTY_RENDER_MODE = "renderMode";
+    protected static final String PROPERTY_MAX_TABS_PER_DRIVER = "maxTabsPerDriver";
+    protected static final String PROPERTY_READ_PAGE_SIZE = "readPageSize";
+    protected static final String PROPERTY_READ_SLICES = "readSlices";
+    protected static final String PROPERTY_BLOB_STORE_PATH = "blobStorePath";
+    protected static final String PROPERTY_STATE_STORE = "stateStore";
+    protected static final String PROPERTY_STATE_STORE_PATH = "stateStorePath";
     
     protected static final String PROPERTY_ELASTIC_HOSTNAMES = "elasticsearchHostnames";
     protected static final String PROPERTY_ELASTIC_USERNAME = "elasticsearchUsername";
@@ -96,7 +115,7 @@ public class WebFetcher implements Input {
     public static final PluginConfigSpec<Boolean> CONFIG_REINDEX = PluginConfigSpec.booleanSetting(PROPERTY_REINDEX, false);
     public static final PluginConfigSpec<String> CONFIG_ROOT_URL = PluginConfigSpec.stringSetting(PROPERTY_ROOT_URL, null, false, false);
     public static final PluginConfigSpec<Boolean> CONFIG_ENABLE_REGEX = PluginConfigSpec.booleanSetting(PROPERTY_ENABLE_REGEX, false);
-    public static final PluginConfigSpec<Boolean> CONFIG_ENABLE_JSLINKS = PluginConfigSpec.booleanSetting(PROPERTY_ENABLE_JSLINKS, false);
+    public static final PluginConfigSpec<Boolean> CONFIG_ENABLE_JSLINKS = PluginConfigSpec.booleanSetting(PROPERTY_ENABLE_JSLINKS, true);
 
     public static final PluginConfigSpec<List<Object>> CONFIG_ELASTIC_HOSTNAMES = PluginConfigSpec.arraySetting(PROPERTY_ELASTIC_HOSTNAMES, new ArrayList<>(), false, false);
     public static final PluginConfigSpec<String> CONFIG_ELASTIC_USERNAME = PluginConfigSpec.stringSetting(PROPERTY_ELASTIC_USERNAME, null, false, false);
@@ -104,6 +123,25 @@ public class WebFetcher implements Input {
     public static final PluginConfigSpec<Boolean> CONFIG_ENABLE_CRAWL = PluginConfigSpec.booleanSetting(PROPERTY_ENABLE_CRAWL, true, false, false);
     public static final PluginConfigSpec<Boolean> CONFIG_ENABLE_DELETE = PluginConfigSpec.booleanSetting(PROPERTY_ENABLE_DELETE, false, false, false);
     public static final PluginConfigSpec<Boolean> CONFIG_IGNORE_HTTP_ERROR = PluginConfigSpec.booleanSetting(PROPERTY_IGNORE_HTTP_ERROR, false, false, false);
+    public static final PluginConfigSpec<Boolean> CONFIG_CONDITIONAL_GET = PluginConfigSpec.booleanSetting(PROPERTY_CONDITIONAL_GET, true, false, false);
+    public static final PluginConfigSpec<String> CONFIG_FETCH_ENGINE = PluginConfigSpec.stringSetting(PROPERTY_FETCH_ENGINE, "pooled", false, false);
+    public static final PluginConfigSpec<Long> CONFIG_MAX_CONNECTIONS_PER_HOST = PluginConfigSpec.numSetting(PROPERTY_MAX_CONNECTIONS_PER_HOST, 8);
+    public static final PluginConfigSpec<Long> CONFIG_MAX_REQUESTS_IN_FLIGHT = PluginConfigSpec.numSetting(PROPERTY_MAX_REQUESTS_IN_FLIGHT, 64);
+    public static final PluginConfigSpec<Long> CONFIG_MAX_RETRIES = PluginConfigSpec.numSetting(PROPERTY_MAX_RETRIES, 5);
+    public static final PluginConfigSpec<Long> CONFIG_RETRY_BACKOFF = PluginConfigSpec.numSetting(PROPERTY_RETRY_BACKOFF, 60000);
+    public static final PluginConfigSpec<Long> CONFIG_MAX_RETRY_BACKOFF = PluginConfigSpec.numSetting(PROPERTY_MAX_RETRY_BACKOFF, 21600000);
+    public static final PluginConfigSpec<Long> CONFIG_MAX_PAGES_PER_SESSION = PluginConfigSpec.numSetting(PROPERTY_MAX_PAGES_PER_SESSION, 100);
+    public static final PluginConfigSpec<Boolean> CONFIG_WAIT_FOR_NETWORK_IDLE = PluginConfigSpec.booleanSetting(PROPERTY_WAIT_FOR_NETWORK_IDLE, false, false, false);
+    public static final PluginConfigSpec<List<Object>> CONFIG_BLOCK_RESOURCES = PluginConfigSpec.arraySetting(PROPERTY_BLOCK_RESOURCES, Arrays.asList("image", "font", "media"), false, false);
+    public static final PluginConfigSpec<List<Object>> CONFIG_BLOCK_URLS = PluginConfigSpec.arraySetting(PROPERTY_BLOCK_URLS, new ArrayList<>(), false, false);
+    public static final PluginConfigSpec<Long> CONFIG_MAX_RENDER_TIME = PluginConfigSpec.numSetting(PROPERTY_MAX_RENDER_TIME, 30000);
+    public static final PluginConfigSpec<String> CONFIG_RENDER_MODE = PluginConfigSpec.stringSetting(PROPERTY_RENDER_MODE, "auto", false, false);
+    public static final PluginConfigSpec<Long> CONFIG_MAX_TABS_PER_DRIVER = PluginConfigSpec.numSetting(PROPERTY_MAX_TABS_PER_DRIVER, 4);
+    public static final PluginConfigSpec<Long> CONFIG_READ_PAGE_SIZE = PluginConfigSpec.numSetting(PROPERTY_READ_PAGE_SIZE, 1000);
+    public static final PluginConfigSpec<Long> CONFIG_READ_SLICES = PluginConfigSpec.numSetting(PROPERTY_READ_SLICES, 1);
+    public static final PluginConfigSpec<String> CONFIG_BLOB_STORE_PATH = PluginConfigSpec.stringSetting(PROPERTY_BLOB_STORE_PATH);
+    public static final PluginConfigSpec<String> CONFIG_STATE_STORE = PluginConfigSpec.stringSetting(PROPERTY_STATE_STORE, "elasticsearch", false, false);
+    public static final PluginConfigSpec<String> CONFIG_STATE_STORE_PATH = PluginConfigSpec.stringSetting(PROPERTY_STATE_STORE_PATH, "data/webfetcher", false, false);
 
     public static final PluginConfigSpec<String> CONFIG_WAIT_FOR_CSS_SELECTOR = PluginConfigSpec.stringSetting(PROPERTY_WAIT_FOR_CSS_SELECTOR);
     public static final PluginConfigSpec<Long> CONFIG_MAX_WAIT_FOR_CSS_SELECTOR = PluginConfigSpec.numSetting(PROPERTY_MAX_WAIT_FOR_CSS_SELECTOR, 30);
@@ -162,6 +200,25 @@ public class WebFetcher implements Input {
         jobDataMap.put(PROPERTY_ENABLE_REGEX, config.get(CONFIG_ENABLE_REGEX));
         jobDataMap.put(PROPERTY_SLEEP, config.get(CONFIG_SLEEP));
         jobDataMap.put(PROPERTY_IGNORE_HTTP_ERROR, config.get(CONFIG_IGNORE_HTTP_ERROR));
+        jobDataMap.put(PROPERTY_CONDITIONAL_GET, config.get(CONFIG_CONDITIONAL_GET));
+        jobDataMap.put(PROPERTY_FETCH_ENGINE, config.get(CONFIG_FETCH_ENGINE));
+        jobDataMap.put(PROPERTY_MAX_CONNECTIONS_PER_HOST, config.get(CONFIG_MAX_CONNECTIONS_PER_HOST));
+        jobDataMap.put(PROPERTY_MAX_REQUESTS_IN_FLIGHT, config.get(CONFIG_MAX_REQUESTS_IN_FLIGHT));
+        jobDataMap.put(PROPERTY_MAX_RETRIES, config.get(CONFIG_MAX_RETRIES));
+        jobDataMap.put(PROPERTY_RETRY_BACKOFF, config.get(CONFIG_RETRY_BACKOFF));
+        jobDataMap.put(PROPERTY_MAX_RETRY_BACKOFF, config.get(CONFIG_MAX_RETRY_BACKOFF));
+        jobDataMap.put(PROPERTY_MAX_PAGES_PER_SESSION, config.get(CONFIG_MAX_PAGES_PER_SESSION));
+        jobDataMap.put(PROPERTY_WAIT_FOR_NETWORK_IDLE, config.get(CONFIG_WAIT_FOR_NETWORK_IDLE));
+        jobDataMap.put(PROPERTY_BLOCK_RESOURCES, config.get(CONFIG_BLOCK_RESOURCES).stream().map(type -> (String) type).collect(Collectors.toList()));
+        jobDataMap.put(PROPERTY_BLOCK_URLS, config.get(CONFIG_BLOCK_URLS).stream().map(url -> (String) url).collect(Collectors.toList()));
+        jobDataMap.put(PROPERTY_MAX_RENDER_TIME, config.get(CONFIG_MAX_RENDER_TIME));
+        jobDataMap.put(PROPERTY_RENDER_MODE, config.get(CONFIG_RENDER_MODE));
+        jobDataMap.put(PROPERTY_MAX_TABS_PER_DRIVER, config.get(CONFIG_MAX_TABS_PER_DRIVER));
+        jobDataMap.put(PROPERTY_READ_PAGE_SIZE, config.get(CONFIG_READ_PAGE_SIZE));
+        jobDataMap.put(PROPERTY_READ_SLICES, config.get(CONFIG_READ_SLICES));
+        jobDataMap.put(PROPERTY_BLOB_STORE_PATH, config.get(CONFIG_BLOB_STORE_PATH));
+        jobDataMap.put(PROPERTY_STATE_STORE, config.get(CONFIG_STATE_STORE));
+        jobDataMap.put(PROPERTY_STATE_STORE_PATH, config.get(CONFIG_STATE_STORE_PATH));
 
         this.threadId = id;
         this.urls = config.get(CONFIG_URLS).stream().map(url -> (String) url).collect(Collectors.toList());
@@ -268,7 +325,26 @@ public class WebFetcher implements Input {
                 CONFIG_ENABLE_REGEX,
                 CONFIG_ENABLE_HASHTAG,
                 CONFIG_MAX_WAIT_FOR_CSS_SELECTOR,
-                CONFIG_IGNORE_HTTP_ERROR);
+                CONFIG_IGNORE_HTTP_ERROR,
+                CONFIG_CONDITIONAL_GET,
+                CONFIG_FETCH_ENGINE,
+                CONFIG_MAX_CONNECTIONS_PER_HOST,
+                CONFIG_MAX_REQUESTS_IN_FLIGHT,
+                CONFIG_MAX_RETRIES,
+                CONFIG_RETRY_BACKOFF,
+                CONFIG_MAX_RETRY_BACKOFF,
+                CONFIG_MAX_PAGES_PER_SESSION,
+                CONFIG_WAIT_FOR_NETWORK_IDLE,
+                CONFIG_BLOCK_RESOURCES,
+                CONFIG_BLOCK_URLS,
+                CONFIG_MAX_RENDER_TIME,
+                CONFIG_RENDER_MODE,
+                CONFIG_MAX_TABS_PER_DRIVER,
+                CONFIG_READ_PAGE_SIZE,
+                CONFIG_READ_SLICES,
+                CONFIG_BLOB_STORE_PATH,
+                CONFIG_STATE_STORE,
+                CONFIG_STATE_STORE_PATH);
     }
 
     @Override
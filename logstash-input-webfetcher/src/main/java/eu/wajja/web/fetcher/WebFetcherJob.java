@@ -1,6 +1,7 @@
 package eu.wajja.web.fetcher;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
@@ -9,17 +10,17 @@ import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -42,16 +43,32 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import eu.wajja.web.fetcher.content.ContentAnalyzer;
+import eu.wajja.web.fetcher.controller.FetchEngine;
 import eu.wajja.web.fetcher.controller.ProxyController;
 import eu.wajja.web.fetcher.controller.URLController;
 import eu.wajja.web.fetcher.elasticsearch.ElasticSearchService;
 import eu.wajja.web.fetcher.enums.Command;
+import eu.wajja.web.fetcher.enums.RenderMode;
+import eu.wajja.web.fetcher.enums.ResourceType;
+import eu.wajja.web.fetcher.enums.StateStoreType;
 import eu.wajja.web.fetcher.enums.Status;
 import eu.wajja.web.fetcher.enums.SubStatus;
+import eu.wajja.web.fetcher.model.CrawlItem;
+import eu.wajja.web.fetcher.model.FrontierEntry;
+import eu.wajja.web.fetcher.model.RenderingProfile;
 import eu.wajja.web.fetcher.model.Result;
+import eu.wajja.web.fetcher.services.BlobStore;
+import eu.wajja.web.fetcher.services.FrontierService;
+import eu.wajja.web.fetcher.services.PageBudget;
+import eu.wajja.web.fetcher.services.PipelineStage;
 import eu.wajja.web.fetcher.services.ReindexService;
+import eu.wajja.web.fetcher.services.RenderDispatcher;
+import eu.wajja.web.fetcher.services.RetryPolicy;
 import eu.wajja.web.fetcher.services.RobotService;
 import eu.wajja.web.fetcher.services.constants.MetadataConstant;
+import eu.wajja.web.fetcher.state.CrawlStateStore;
+import eu.wajja.web.fetcher.state.LocalStateStore;
+import eu.wajja.web.fetcher.state.ResultStream;
 
 @DisallowConcurrentExecution
 public class WebFetcherJob implements Job {
@@ -60,6 +77,11 @@ public class WebFetcherJob implements Job {
 
     private static final String HTTP = "http://";
     private static final String HTTPS = "https://";
+    private static final int RENDER_QUEUE_SIZE = 2;
+    private static final int MAX_THROTTLED_ATTEMPTS = 5;
+    private static final long RETRY_FEED_INTERVAL = 30;
+    private static final long BUDGET_WAIT = 1000;
+    private static final List<Integer> THROTTLING_CODES = Arrays.asList(429, 502, 503, 504);
 
     private DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
 
@@ -74,12 +96,24 @@ public class WebFetcherJob implements Job {
     private String rootUrl;
     private boolean ignoreHttpError;
 
+    private CrawlStateStore crawlStateStore;
     private ElasticSearchService elasticSearchService;
     private URLController urlController;
     private RobotService robotService;
     private ReindexService reindexService;
-    private ThreadPoolExecutor[] threadPoolExecutors;
-    private int threadCounter = 0;
+    private FrontierService frontierService;
+    private RetryPolicy retryPolicy;
+    private PipelineStage<CrawlItem> fetchStage;
+    private PipelineStage<CrawlItem> renderStage;
+    private RenderDispatcher renderDispatcher;
+    private PipelineStage<CrawlItem> parseStage;
+    private PipelineStage<CrawlItem> linkStage;
+    private PipelineStage<CrawlItem> stateStage;
+    private PageBudget pageBudget;
+    private volatile boolean maxPagesReached;
+    private int maxRequestsInFlight;
+    private int maxConnectionsPerHost;
+    private int maxTabsPerDriver;
     private Long sleep;
     private boolean enableHashtag;
     private boolean readRobot;
@@ -116,6 +150,12 @@ public class WebFetcherJob implements Job {
         this.enableHashtag = dataMap.getBoolean(WebFetcher.PROPERTY_ENABLE_HASHTAG);
         this.readRobot = dataMap.getBoolean(WebFetcher.PROPERTY_READ_ROBOT);
         this.ignoreHttpError = dataMap.getBoolean(WebFetcher.PROPERTY_IGNORE_HTTP_ERROR);
+        this.maxRequestsInFlight = (int) dataMap.getLong(WebFetcher.PROPERTY_MAX_REQUESTS_IN_FLIGHT);
+        this.maxConnectionsPerHost = (int) dataMap.getLong(WebFetcher.PROPERTY_MAX_CONNECTIONS_PER_HOST);
+        this.maxTabsPerDriver = Math.max(1, (int) dataMap.getLong(WebFetcher.PROPERTY_MAX_TABS_PER_DRIVER));
+        this.retryPolicy = new RetryPolicy(dataMap.getLong(WebFetcher.PROPERTY_RETRY_BACKOFF),
+                dataMap.getLong(WebFetcher.PROPERTY_MAX_RETRY_BACKOFF),
+                (int) dataMap.getLong(WebFetcher.PROPERTY_MAX_RETRIES));
 
         String waitForCssSelector = dataMap.getString(WebFetcher.PROPERTY_WAIT_FOR_CSS_SELECTOR);
         Long maxWaitForCssSelector = dataMap.getLong(WebFetcher.PROPERTY_MAX_WAIT_FOR_CSS_SELECTOR);
@@ -144,47 +184,85 @@ public class WebFetcherJob implements Job {
         String proxyScheme = proxyController.getProxyHost();
         String proxyHostname = proxyController.getProxyHost();
 
-        elasticSearchService = new ElasticSearchService(hostnames, username, password, proxyScheme, proxyHostname, proxyPort, proxyUsername, proxyPassword);
+        boolean localState = StateStoreType.local.name().equalsIgnoreCase(dataMap.getString(WebFetcher.PROPERTY_STATE_STORE));
 
-        if (urlController == null) {
-
-            urlController = new URLController(
-                    elasticSearchService,
-                    proxyController.getProxy(),
-                    dataMap.getLong(WebFetcher.PROPERTY_TIMEOUT),
-                    dataMap.getString(WebFetcher.PROPERTY_CRAWLER_USER_AGENT),
-                    dataMap.getString(WebFetcher.PROPERTY_CRAWLER_REFERER),
-                    waitForCssSelector,
-                    maxWaitForCssSelector.intValue(),
-                    enableJsLinks);
+        if (crawlStateStore == null) {
 
-        }
+            // With a local state, elasticsearch only receives a copy of the url states
+            if (!localState || !hostnames.isEmpty()) {
+                elasticSearchService = new ElasticSearchService(hostnames, username, password, proxyScheme, proxyHostname, proxyPort, proxyUsername, proxyPassword);
+                elasticSearchService.setReadOptions((int) dataMap.getLong(WebFetcher.PROPERTY_READ_PAGE_SIZE), (int) dataMap.getLong(WebFetcher.PROPERTY_READ_SLICES));
+            }
 
-        reindexService = new ReindexService(elasticSearchService, excludedDataRegex, excludedLinkRegex);
-        robotService = new RobotService(urlController, elasticSearchService, readRobot);
+            if (localState) {
 
-        if (threadPoolExecutors == null) {
+                String stateStorePath = dataMap.getString(WebFetcher.PROPERTY_STATE_STORE_PATH);
 
-            if (chromeThreads.isEmpty()) {
+                try {
+                    crawlStateStore = new LocalStateStore(stateStorePath);
 
-                threadPoolExecutors = new ThreadPoolExecutor[1];
-                threadPoolExecutors[0] = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+                } catch (IOException e) {
+                    throw new JobExecutionException("Failed to open local state store " + stateStorePath, e);
+                }
 
             } else {
+                crawlStateStore = elasticSearchService;
+            }
+
+            String blobStorePath = dataMap.getString(WebFetcher.PROPERTY_BLOB_STORE_PATH);
+
+            if (StringUtils.isNotBlank(blobStorePath)) {
 
-                threadPoolExecutors = new ThreadPoolExecutor[chromeThreads.size()];
+                try {
+                    crawlStateStore.setBlobStore(new BlobStore(blobStorePath));
 
-                for (int x = 0; x < chromeThreads.size(); x++) {
-                    threadPoolExecutors[x] = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+                } catch (IOException e) {
+                    LOGGER.error("Failed to open blob store {}, keeping page bodies in the default store", blobStorePath, e);
                 }
             }
         }
 
-        initialUrls.stream().map(i -> getUrlString(i, i, i)).forEach(initialUrl -> {
+        if (urlController == null) {
+
+            FetchEngine fetchEngine = FetchEngine.getInstance(
+                    dataMap.getString(WebFetcher.PROPERTY_FETCH_ENGINE),
+                    proxyController,
+                    dataMap.getLong(WebFetcher.PROPERTY_TIMEOUT),
+                    dataMap.getLong(WebFetcher.PROPERTY_MAX_CONNECTIONS_PER_HOST),
+                    dataMap.getLong(WebFetcher.PROPERTY_MAX_REQUESTS_IN_FLIGHT));
+
+            urlController = new URLController(
+                    crawlStateStore,
+                    fetchEngine,
+                    dataMap.getString(WebFetcher.PROPERTY_CRAWLER_USER_AGENT),
+                    dataMap.getString(WebFetcher.PROPERTY_CRAWLER_REFERER),
+                    waitForCssSelector,
+                    maxWaitForCssSelector.intValue(),
+                    dataMap.getBoolean(WebFetcher.PROPERTY_WAIT_FOR_NETWORK_IDLE),
+                    enableJsLinks,
+                    dataMap.getBoolean(WebFetcher.PROPERTY_CONDITIONAL_GET),
+                    (int) dataMap.getLong(WebFetcher.PROPERTY_MAX_PAGES_PER_SESSION),
+                    maxTabsPerDriver,
+                    getRenderingProfile(),
+                    RenderMode.always.name().equalsIgnoreCase(dataMap.getString(WebFetcher.PROPERTY_RENDER_MODE)) ? RenderMode.always : RenderMode.auto);
+
+        }
+
+        reindexService = new ReindexService(crawlStateStore, excludedDataRegex, excludedLinkRegex);
+        robotService = new RobotService(urlController, crawlStateStore, readRobot);
+
+        for (String initialUrl : initialUrls.stream().map(i -> getUrlString(i, i, i)).collect(Collectors.toList())) {
 
             String id = Base64.getEncoder().encodeToString(initialUrl.getBytes()).replace("/", "_");
             String index = "logstash_web_fetcher_" + id.toLowerCase();
-            elasticSearchService.checkIndex(index);
+
+            try {
+                crawlStateStore.checkIndex(index);
+
+            } catch (IOException e) {
+                close();
+                throw new JobExecutionException("Failed to open the state of " + index, e);
+            }
 
             if (enableRegex) {
 
@@ -195,7 +273,7 @@ public class WebFetcherJob implements Job {
 
             if (reindex) {
                 reindexService.reIndex(consumer, jobId, initialUrl, index);
-                elasticSearchService.flushIndex(index);
+                crawlStateStore.flushIndex(index);
 
             }
 
@@ -204,13 +282,28 @@ public class WebFetcherJob implements Job {
                 // Read the robot.txt first
                 robotService.checkRobot(chromeThreads, initialUrl, index, jobId);
 
+                frontierService = new FrontierService(sleep, maxConnectionsPerHost);
+                pageBudget = new PageBudget(maxPages, crawlStateStore.totalCountWithJobId(jobId, index));
+                maxPagesReached = false;
+
+                Long crawlDelay = robotService.getCrawlDelay(crawlerUserAgent);
+
+                if (crawlDelay != null) {
+                    frontierService.setCrawlDelay(initialUrl, crawlDelay);
+                }
+
                 // Rerun previously queued items first
-                fetchQueuedItems(consumer, chromeThreads, initialUrl, index);
-                elasticSearchService.flushIndex(index);
+                fetchQueuedItems(initialUrl, index);
+
+                // Rerun failed items whose retry is due
+                feedDueRetries(index);
 
                 // Start the actual fetch
                 fetchNewItems(consumer, chromeThreads, initialUrl, index);
-                elasticSearchService.flushIndex(index);
+                crawlStateStore.flushIndex(index);
+
+                pageBudget.reconcile(crawlStateStore.totalCountWithJobId(jobId, index));
+                LOGGER.info("Crawled {}/{} pages for jobId {}", pageBudget.getCount(), maxPages, jobId);
 
             }
 
@@ -219,318 +312,512 @@ public class WebFetcherJob implements Job {
                 deleteOldItems(consumer, initialUrl, index);
             }
 
-        });
+            if (crawlStateStore != elasticSearchService && elasticSearchService != null) {
+                mirrorState(index);
+            }
+
+        }
+
+        // Old versions of the page bodies are only deleted here, at most once a day
+        crawlStateStore.sweepBlobs();
+        close();
 
         LOGGER.info("Finished Thread {}", jobId);
 
     }
 
+    /**
+     * Releases the browsers, the connections and the state stores of the run,
+     * including the elasticsearch service when it only receives the mirror
+     */
+    private void close() {
+
+        urlController.closeWebDrivers();
+        urlController.closeFetchEngine();
+        urlController = null;
+        crawlStateStore.close();
+
+        if (elasticSearchService != null && elasticSearchService != crawlStateStore) {
+            elasticSearchService.close();
+        }
+
+        crawlStateStore = null;
+        elasticSearchService = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private RenderingProfile getRenderingProfile() {
+
+        List<String> blockResources = (List<String>) dataMap.get(WebFetcher.PROPERTY_BLOCK_RESOURCES);
+        List<String> blockUrls = (List<String>) dataMap.get(WebFetcher.PROPERTY_BLOCK_URLS);
+
+        Set<ResourceType> blockedResourceTypes = Arrays.stream(ResourceType.values())
+                .filter(resourceType -> blockResources.stream().anyMatch(type -> resourceType.name().equalsIgnoreCase(type)))
+                .collect(Collectors.toSet());
+
+        return new RenderingProfile(blockedResourceTypes, blockUrls, dataMap.getLong(WebFetcher.PROPERTY_MAX_RENDER_TIME));
+    }
+
     private void fetchNewItems(Consumer<Map<String, Object>> consumer, List<String> chromeThreads, String initialUrl, String index) {
 
         LOGGER.info("Starting fetching items for thread : {}, url : {}", jobId, initialUrl);
 
-        String chromeDriver = chromeThreads.stream().findFirst().orElse(null);
-        extractUrl(consumer, initialUrl, initialUrl, chromeDriver, index, true);
+        frontierService.offer(initialUrl, initialUrl, 0);
 
-        try {
+        int stageThreads = Runtime.getRuntime().availableProcessors();
+        boolean render = !chromeThreads.isEmpty();
 
-            // TODO : The index doesn't have the time to flush. so nothing is
-            // found in the
-            // next step. fix this at some point
-            Thread.sleep(1000);
+        stateStage = new PipelineStage<>("state", stageThreads, maxRequestsInFlight, item -> updateState(consumer, index, item), this::complete);
+        linkStage = new PipelineStage<>("links", stageThreads, maxRequestsInFlight, item -> extractLinks(index, item), this::complete);
+        parseStage = new PipelineStage<>("parse", stageThreads, maxRequestsInFlight, item -> parse(index, item), this::complete);
 
-            LinkedList<Result> results = new LinkedList<>();
-            Future<Boolean> future = elasticSearchService.getAsyncUrls(index, results, Status.queue);
+        // One queue for all drivers, a free worker takes the next page for the healthiest driver with a free tab
+        int renderThreads = Math.max(1, chromeThreads.size() * maxTabsPerDriver);
+        renderDispatcher = new RenderDispatcher(chromeThreads, maxTabsPerDriver);
+        renderStage = new PipelineStage<>("render", renderThreads, RENDER_QUEUE_SIZE * renderThreads, this::render, this::complete);
+        fetchStage = new PipelineStage<>("fetch", maxRequestsInFlight, maxRequestsInFlight, item -> fetch(index, item, render), this::complete);
 
-            while (!future.isDone()) {
+        ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "webfetcher-retries");
+            thread.setDaemon(true);
+            return thread;
+        });
 
-                while (!results.isEmpty()) {
-                    addNewThread(results.pop(), chromeThreads, consumer, index, true);
-                }
+        retryScheduler.scheduleWithFixedDelay(() -> feedDueRetries(index), RETRY_FEED_INTERVAL, RETRY_FEED_INTERVAL, TimeUnit.SECONDS);
 
-                waitForThreads(initialUrl, 100);
-            }
+        try {
 
-            while (!results.isEmpty()) {
-                addNewThread(results.pop(), chromeThreads, consumer, index, true);
-            }
+            while (!frontierService.isDrained()) {
 
-            waitForThreads(initialUrl);
+                FrontierEntry entry = frontierService.poll(1, TimeUnit.SECONDS);
 
-            if (maxPages == 0 || elasticSearchService.totalCountWithJobId(jobId, index) >= maxPages) {
-                return;
-            }
+                if (entry == null) {
+                    continue;
 
-            if (elasticSearchService.hasMoreItemsInQueued(index)) {
-                fetchNewItems(consumer, chromeThreads, initialUrl, index);
+                } else if (maxPagesReached) {
+
+                    // Leave the rest queued in the index for the next run
+                    frontierService.complete(entry);
+
+                } else {
+
+                    String baseUrl = (this.rootUrl != null) ? this.rootUrl : entry.getRootUrl();
+                    String url = getUrlString(entry.getUrl(), baseUrl, baseUrl);
+
+                    fetchStage.put(new CrawlItem(entry, url, baseUrl));
+                }
             }
 
         } catch (InterruptedException e) {
             LOGGER.info("InterruptedException", e);
             Thread.currentThread().interrupt();
+
+        } finally {
+
+            retryScheduler.shutdownNow();
+            fetchStage.shutdown();
+            renderStage.shutdown();
+            parseStage.shutdown();
+            linkStage.shutdown();
+            stateStage.shutdown();
         }
 
         LOGGER.info("Finished fetching items for thread : {}, url : {}", jobId, initialUrl);
 
     }
 
-    private void fetchQueuedItems(Consumer<Map<String, Object>> consumer, List<String> chromeThreads, String initialUrl, String index) {
+    /**
+     * Copies the status of every url kept in the local state to the
+     * elasticsearch index of the site, so the crawl stays visible there
+     */
+    private void mirrorState(String index) {
 
-        LOGGER.info("Starting queued items for thread : {}, url : {}", jobId, initialUrl);
+        LOGGER.info("Mirroring url states for thread : {}, index : {}", jobId, index);
 
-        try {
+        elasticSearchService.checkIndex(index);
 
-            // TODO : The index doesn't have the time to flush. so nothing is
-            // found in the
-            // next step. fix this at some point
-            Thread.sleep(1000);
+        for (Status status : Status.values()) {
 
-            LinkedList<Result> results = new LinkedList<>();
-            Future<Boolean> future = elasticSearchService.getAsyncUrls(index, results, Status.queue);
+            try (ResultStream results = crawlStateStore.streamUrls(index, status)) {
+                results.forEachRemaining(result -> elasticSearchService.mirrorUrl(result, index));
+            }
+        }
 
-            while (!future.isDone()) {
+        elasticSearchService.flushIndex(index);
+    }
 
-                while (!results.isEmpty()) {
-                    addNewThread(results.pop(), chromeThreads, consumer, index, true);
-                }
+    private void fetchQueuedItems(String initialUrl, String index) {
 
-                waitForThreads(initialUrl, 100);
-            }
+        LOGGER.info("Starting queued items for thread : {}, url : {}", jobId, initialUrl);
 
-            while (!results.isEmpty()) {
-                addNewThread(results.pop(), chromeThreads, consumer, index, true);
-            }
+        try (ResultStream results = crawlStateStore.streamUrls(index, Status.queue)) {
+            results.forEachRemaining(result -> frontierService.offer(result.getUrl(), result.getRootUrl(), 0));
+        }
 
-            waitForThreads(initialUrl);
+        LOGGER.info("Finished queued items for thread : {}, url : {}, queued {}", jobId, initialUrl, frontierService.size());
 
-            if (maxPages == 0 || elasticSearchService.totalCountWithJobId(jobId, index) >= maxPages) {
-                return;
-            }
+    }
 
-            if (elasticSearchService.hasMoreItemsInQueued(index)) {
-                fetchNewItems(consumer, chromeThreads, initialUrl, index);
+    /**
+     * Puts the failed urls whose next attempt is due back in the crawl. They
+     * are marked as queued so a crawl stopping before fetching them picks them
+     * up again with the queued items.
+     */
+    private void feedDueRetries(String index) {
+
+        try {
+
+            List<Result> dueRetries = crawlStateStore.getDueRetries(index, System.currentTimeMillis());
+
+            if (!dueRetries.isEmpty()) {
+
+                dueRetries.stream().forEach(result -> {
+                    crawlStateStore.updateStatus(result.getUrl(), index, Status.queue, SubStatus.included, "Retry due");
+                    frontierService.retry(result.getUrl(), result.getRootUrl(), 0);
+                });
+
+                crawlStateStore.flushIndex(index);
+                LOGGER.info("Retrying {} failed urls for thread : {}", dueRetries.size(), jobId);
             }
 
-        } catch (InterruptedException e) {
-            LOGGER.info("InterruptedException", e);
-            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOGGER.error("Failed to feed due retries for thread {}", jobId, e);
         }
+    }
+
+    private void complete(CrawlItem item) {
 
-        LOGGER.info("Finished queued items for thread : {}, url : {}", jobId, initialUrl);
+        releasePage(item);
+        frontierService.complete(item.getEntry());
+    }
+
+    /**
+     * Gives back the page budget slot of an item that was not stored as
+     * included
+     */
+    private void releasePage(CrawlItem item) {
 
+        if (item.isReserved()) {
+            item.setReserved(false);
+            pageBudget.release();
+        }
     }
 
-    private void addNewThread(Result result, List<String> chromeThreads, Consumer<Map<String, Object>> consumer, String index, boolean checkChildren) {
+    /**
+     * Fetch stage, runs up to maxRequestsInFlight requests at the same time.
+     * Pages that need javascript are handed to the render workers, one per
+     * chrome driver.
+     */
+    private void fetch(String index, CrawlItem item, boolean render) throws InterruptedException, IOException {
+
+        String url = item.getUrl();
+
+        LOGGER.info("Processing jobId {} url {}", jobId, url);
+
+        if (!pageBudget.tryAcquire()) {
+
+            if (pageBudget.getCount() >= maxPages) {
+
+                // check if we dont have too many pages
+                maxPagesReached = true;
+                LOGGER.info("Reached max pages for jobId {} = {}/{}", jobId, pageBudget.getCount(), maxPages);
+                complete(item);
+
+            } else {
+
+                // The pages holding the rest of the budget may still be excluded
+                frontierService.postpone(item.getEntry(), BUDGET_WAIT);
+            }
+
+            return;
+        }
+
+        item.setReserved(true);
 
-        String resultUrl = result.getUrl();
-        String resultRootUrl = result.getRootUrl();
+        if (!robotService.isAllowed(url, rootUrl, index, jobId, crawlerUserAgent)) {
 
-        if (chromeThreads.isEmpty()) {
+            // Check if robot allows url
+            item.setOutcome(Status.processed, SubStatus.excluded, "robot dissallowed", false);
+            stateStage.put(item);
 
-            threadPoolExecutors[0].execute(() -> extractUrl(consumer, resultUrl, resultRootUrl, null, index, checkChildren));
+        } else if (excludedLinkRegex.stream().anyMatch(ex -> url.matches(ex))) {
+
+            // Exclude if link is not allowed
+            item.setOutcome(Status.processed, SubStatus.excluded, "regex excludedLinkRegex", false);
+            stateStage.put(item);
 
         } else {
 
-            String driver = chromeThreads.get(threadCounter);
+            // we have to fetch the data to continue here
+
+            long start = System.currentTimeMillis();
+            Result result = urlController.fetchURL(index, url, item.getBaseUrl(), render, ignoreHttpError);
+            item.setResult(result);
+
+            boolean throttled = result != null && THROTTLING_CODES.contains(result.getCode());
+            frontierService.onResponse(item.getEntry(), throttled, System.currentTimeMillis() - start);
+
+            if (result != null && result.getRetryAfter() != null) {
+                frontierService.defer(url, result.getRetryAfter());
+            }
+
+            if (throttled && item.getEntry().getAttempts() < MAX_THROTTLED_ATTEMPTS) {
 
-            threadPoolExecutors[threadCounter].execute(() -> extractUrl(consumer, resultUrl, resultRootUrl, driver, index, checkChildren));
+                // Pushed back to the frontier instead of waiting on the worker
+                releasePage(item);
+                frontierService.requeue(item.getEntry(), result.getRetryAfter());
+                return;
+            }
+
+            if (result != null && (throttled || result.isTransientFailure())) {
+
+                // Still failing, parked in the index until its retry is due
+                scheduleRetry(index, item, throttled ? result.getCode().toString() : "timeout or connection error");
+                return;
+            }
+
+            // The host can be handed out again, the delay is kept by the frontier
+            frontierService.release(item.getEntry());
+
+            if (result != null && result.isRenderRequired()) {
+
+                renderStage.put(item);
 
-            if ((chromeThreads.size() - 1) == threadCounter) {
-                threadCounter = 0;
             } else {
-                threadCounter++;
+                parseStage.put(item);
             }
         }
     }
 
-    private void waitForThreads(String initialUrl) {
+    /**
+     * Stores a url that failed on a transient error with the time of its next
+     * attempt, urls failing too often are stored as dead instead
+     */
+    private void scheduleRetry(String index, CrawlItem item, String reason) throws IOException, InterruptedException {
 
-        waitForThreads(initialUrl, 0);
+        frontierService.release(item.getEntry());
 
-    }
+        String url = item.getUrl();
+        int retryCount = crawlStateStore.getRetryCount(url, index) + 1;
 
-    private void waitForThreads(String initialUrl, Integer maxThreads) {
+        if (retryPolicy.isExhausted(retryCount)) {
 
-        for (int x = 0; x < threadPoolExecutors.length; x++) {
+            LOGGER.warn("Giving up url {} after {} retries, {}", url, retryCount - 1, reason);
+            item.setOutcome(Status.dead, SubStatus.excluded, reason, false);
+            stateStage.put(item);
 
-            int y = 0;
+        } else {
 
-            while (threadPoolExecutors[x].getActiveCount() > maxThreads) {
+            long backoff = retryPolicy.getBackoff(retryCount);
+            crawlStateStore.addRetryUrl(url, item.getBaseUrl(), jobId, index, Status.retry, retryCount, System.currentTimeMillis() + backoff, reason, item.getResult().getUrl());
 
-                y++;
+            LOGGER.info("Retrying url {} in {} ms, retry {}, {}", url, backoff, retryCount, reason);
+            complete(item);
+        }
+    }
 
-                try {
-                    Thread.sleep(3000);
-                } catch (InterruptedException e) {
-                    LOGGER.error("Failed to sleep in thread", e);
-                    Thread.currentThread().interrupt();
-                }
+    private void render(CrawlItem item) throws InterruptedException {
 
-                if (y > 300) {
-                    LOGGER.info("Waiting for site {} to be finished, active threads left {}", initialUrl, threadPoolExecutors[x].getActiveCount());
-                }
-            }
+        String chromeDriver = renderDispatcher.acquire();
+        long start = System.currentTimeMillis();
+        boolean rendered = false;
+
+        try {
+            rendered = urlController.renderURL(item.getResult(), chromeDriver);
+
+        } finally {
+            renderDispatcher.release(chromeDriver, rendered, System.currentTimeMillis() - start);
         }
 
+        parseStage.put(item);
     }
 
-    private void extractUrl(Consumer<Map<String, Object>> consumer, String urlTmp, String rootUrlTmp, String chromeDriver, String index, boolean checkChildren) {
+    /**
+     * Parse stage, decides what happens with the fetched document
+     */
+    private void parse(String index, CrawlItem item) throws InterruptedException, IOException {
 
-        String baseUrl = (this.rootUrl != null) ? this.rootUrl : rootUrlTmp;
-        String url = getUrlString(urlTmp, baseUrl, baseUrl);
+        Result result = item.getResult();
+        ContentAnalyzer contentAnalyer = ContentAnalyzer.getInstance(result, readRobot);
 
-        LOGGER.info("Processing jobId {} url {}", jobId, url);
+        if (result == null || (result.getContent() == null && !result.isCached())) {
 
-        try {
+            // content is empty
+            item.setOutcome(Status.failed, SubStatus.excluded, "content is empty", false);
 
-            if (maxPages == 0 || elasticSearchService.totalCountWithJobId(jobId, index) >= maxPages) {
+        } else if (result.getCode() != 200 && !ignoreHttpError) {
 
-                // check if we dont have too many pages
-                LOGGER.info("Reached max pages for jobId {} = {}/{}", jobId, elasticSearchService.totalCountWithJobId(jobId, index), maxPages);
+            // Exclude if data is not allowed
+            item.setOutcome(Status.failed, SubStatus.excluded, result.getCode().toString(), false);
 
-            } else if (!robotService.isAllowed(url, rootUrl, index, jobId, crawlerUserAgent)) {
+        } else if (excludedDataRegex.stream().anyMatch(ex -> result.getUrl().matches(ex))) {
 
-                // Check if robot allows url
-                elasticSearchService.addNewUrl(url, rootUrl, jobId, index, Status.processed, SubStatus.excluded, "robot dissallowed", null);
+            // Exclude if data is not allowed
 
-            } else if (excludedLinkRegex.stream().anyMatch(ex -> url.matches(ex))) {
+            List<String> excluded = excludedDataRegex.stream().filter(ex -> result.getUrl().matches(ex)).collect(Collectors.toList());
+            LOGGER.info("Excluding url {} because it matched data regex {}", result.getUrl(), excluded);
 
-                // Exclude if link is not allowed
-                elasticSearchService.addNewUrl(url, rootUrl, jobId, index, Status.processed, SubStatus.excluded, "regex excludedLinkRegex", null);
+            item.setOutcome(Status.processed, SubStatus.excluded, "excludedDataRegex", true);
 
-            } else {
+        } else if (contentAnalyer != null && contentAnalyer.isExcluded()) {
+
+            // Exclude because of the document's content
 
-                // we have to fetch the data to continue here
+            LOGGER.info("Excluding url {} because {}", result.getUrl(), contentAnalyer.getExclusionReason());
+            item.setOutcome(Status.processed, SubStatus.excluded, contentAnalyer.getExclusionReason(), true);
 
-                Result result = urlController.getURL(index, url, baseUrl, chromeDriver, ignoreHttpError);
-                Thread.sleep(sleep);
-                ContentAnalyzer contentAnalyer = ContentAnalyzer.getInstance(result, readRobot);
+        } else if (result.isCached()) {
 
-                if (result == null || result.getContent() == null) {
+            LOGGER.info("Already sent url {}", result.getUrl());
+            item.setOutcome(Status.processed, SubStatus.included, "Document already sent to filter", true);
 
-                    // content is empty
-                    elasticSearchService.addNewUrl(url, rootUrl, jobId, index, Status.failed, SubStatus.excluded, "content is empty", result.getUrl());
+        } else if (crawlStateStore.existsMd5InIndex(item.getUrl(), result.getMd5(), index)) {
 
-                } else if (result.getCode() != 200 && !ignoreHttpError) {
+            LOGGER.info("MD5 Already sent data {}", result.getUrl());
+            item.setOutcome(Status.processed, SubStatus.excluded, "Document has content already indexed", true);
 
-                    // Exclude if data is not allowed
-                    elasticSearchService.addNewUrl(url, rootUrl, jobId, index, Status.failed, SubStatus.excluded, result.getCode().toString(), result.getUrl());
+        } else {
 
-                } else if (excludedDataRegex.stream().anyMatch(ex -> result.getUrl().matches(ex))) {
+            item.setOutcome(Status.processed, SubStatus.included, "Document sent to filter", true);
+            item.setSend(true);
+        }
 
-                    // Exclude if data is not allowed
+        linkStage.put(item);
+    }
 
-                    List<String> excluded = excludedDataRegex.stream().filter(ex -> result.getUrl().matches(ex)).collect(Collectors.toList());
-                    LOGGER.info("Excluding url {} because it matched data regex {}", result.getUrl(), excluded);
+    /**
+     * Link extraction stage, reads the child urls of html and xml documents
+     */
+    private void extractLinks(String index, CrawlItem item) throws InterruptedException, IOException {
 
-                    elasticSearchService.addNewUrl(result, jobId, index, Status.processed, SubStatus.excluded, "excludedDataRegex");
+        Result result = item.getResult();
+        String baseUrl = item.getBaseUrl();
 
-                } else if (contentAnalyer != null && contentAnalyer.isExcluded()) {
+        if (result != null && result.isCached() && result.getContent() == null && result.getChildUrls().isEmpty()) {
 
-                    // Exclude because of the document's content
+            // Not modified, the children are read from the stored page
+            result.setContent(crawlStateStore.getContent(result.getUrl(), index));
+        }
 
-                    LOGGER.info("Excluding url {} because {}", result.getUrl(), contentAnalyer.getExclusionReason());
-                    elasticSearchService.addNewUrl(result, jobId, index, Status.processed, SubStatus.excluded, contentAnalyer.getExclusionReason());
+        if (result != null && (result.getContent() != null || !result.getChildUrls().isEmpty()) && baseUrl != null) {
 
-                } else if (result.isCached()) {
+            Set<String> includedChildPages = new HashSet<>();
 
-                    LOGGER.info("Already sent url {}", result.getUrl());
-                    elasticSearchService.addNewUrl(result, jobId, index, Status.processed, SubStatus.included, "Document already sent to filter");
+            if (result.getContentType() != null && result.getContentType().contains("html")) {
 
-                } else if (elasticSearchService.existsMd5InIndex(url, result.getMd5(), index)) {
+                if (result.getChildUrls().isEmpty()) {
 
-                    LOGGER.info("MD5 Already sent data {}", result.getUrl());
-                    elasticSearchService.addNewUrl(result, jobId, index, Status.processed, SubStatus.excluded, "Document has content already indexed");
+                    String bodyHtml = IOUtils.toString(result.getContent(), StandardCharsets.UTF_8.name());
+                    org.jsoup.nodes.Document document = Jsoup.parse(bodyHtml);
+                    Elements elements = document.getElementsByAttribute("href");
+
+                    includedChildPages = elements.stream().map(e -> e.attr("href")).collect(Collectors.toSet());
 
                 } else {
+                    includedChildPages = result.getChildUrls();
 
-                    LOGGER.info("Sending url {}", result.getUrl());
+                }
 
-                    Map<String, Object> metadata = new HashMap<>();
-                    metadata.put(MetadataConstant.METADATA_URL, result.getUrl());
-                    metadata.put(MetadataConstant.METADATA_INDEX, index);
-                    metadata.put(MetadataConstant.METADATA_CONTENT_TYPE, result.getContentType());
-                    metadata.put(MetadataConstant.METADATA_REFERENCE, Base64.getEncoder().encodeToString(result.getUrl().getBytes()));
-                    metadata.put(MetadataConstant.METADATA_EPOCH, LocalDateTime.now().toEpochSecond(ZoneOffset.UTC));
-                    metadata.put(MetadataConstant.METADATA_UUID, UUID.randomUUID().toString());
-                    metadata.put(MetadataConstant.METADATA_STATUS, 200);
-                    metadata.put(MetadataConstant.METADATA_CONTEXT, baseUrl);
-                    metadata.put(MetadataConstant.METADATA_COMMAND, Command.ADD.toString());
-                    metadata.put(MetadataConstant.METADATA_CONTENT, Base64.getEncoder().encodeToString(result.getContent()));
+            } else if (result.getContentType() != null && result.getContentType().contains("xml")) {
 
-                    consumer.accept(metadata);
+                try (InputStream inputStream = new ByteArrayInputStream(result.getContent())) {
 
-                    elasticSearchService.addNewUrl(result, jobId, index, Status.processed, SubStatus.included, "Document sent to filter");
-                }
+                    DocumentBuilder builder = factory.newDocumentBuilder();
+                    Document doc = builder.parse(inputStream);
 
-                if (checkChildren && result != null && result.getContent() != null && baseUrl != null) {
+                    NodeList nodeList = doc.getElementsByTagName("link");
 
-                    Set<String> includedChildPages = new HashSet<>();
+                    for (int x = 0; nodeList.getLength() > x; x++) {
 
-                    if (result.getContentType() != null && result.getContentType().contains("html")) {
+                        Node node = nodeList.item(x);
+                        includedChildPages.add(node.getTextContent());
+                    }
 
-                        if (result.getChildUrls().isEmpty()) {
+                } catch (Exception e) {
+                    LOGGER.error("Failed to parse xml", e);
+                }
 
-                            String bodyHtml = IOUtils.toString(result.getContent(), StandardCharsets.UTF_8.name());
-                            org.jsoup.nodes.Document document = Jsoup.parse(bodyHtml);
-                            Elements elements = document.getElementsByAttribute("href");
+            }
 
-                            includedChildPages = elements.stream().map(e -> e.attr("href")).collect(Collectors.toSet());
+            String simpleUrlString = baseUrl.replace(HTTP, "").replace(HTTPS, "");
 
-                        } else {
-                            includedChildPages = result.getChildUrls();
+            LOGGER.debug("Checking children {}", includedChildPages);
 
-                        }
+            includedChildPages = includedChildPages.stream()
+                    .filter(href -> href != null && !href.trim().isEmpty())
+                    .filter(href -> !href.equals("/") && !href.startsWith("//"))
+                    .map(urlStream -> getUrlString(urlStream, result.getUrl(), baseUrl))
+                    .filter(href -> href.startsWith(HTTP) || href.startsWith(HTTPS))
+                    .filter(href -> href.startsWith(HTTP + simpleUrlString) || href.startsWith(HTTPS + simpleUrlString) || includedLinkRegex.stream().anyMatch(ex -> href.matches(ex)))
+                    .filter(href -> !excludedLinkRegex.stream().anyMatch(ex -> href.matches(ex)))
+                    .sorted()
+                    .collect(Collectors.toSet());
 
-                    } else if (result.getContentType() != null && result.getContentType().contains("xml")) {
+            LOGGER.debug("Checked children {}", includedChildPages);
 
-                        try (InputStream inputStream = new ByteArrayInputStream(result.getContent())) {
+            item.setChildUrls(includedChildPages);
+        }
 
-                            DocumentBuilder builder = factory.newDocumentBuilder();
-                            Document doc = builder.parse(inputStream);
+        stateStage.put(item);
+    }
 
-                            NodeList nodeList = doc.getElementsByTagName("link");
+    /**
+     * State update stage, sends the document to the pipeline, stores its
+     * status and queues the children. The frontier entry is completed last so
+     * the crawl cannot drain before the children are queued.
+     */
+    private void updateState(Consumer<Map<String, Object>> consumer, String index, CrawlItem item) {
 
-                            for (int x = 0; nodeList.getLength() > x; x++) {
+        Result result = item.getResult();
 
-                                Node node = nodeList.item(x);
-                                includedChildPages.add(node.getTextContent());
-                            }
+        try {
 
-                        } catch (Exception e) {
-                            LOGGER.error("Failed to parse xml", e);
-                        }
+            if (item.isSend()) {
 
-                    }
+                LOGGER.info("Sending url {}", result.getUrl());
+
+                Map<String, Object> metadata = new HashMap<>();
+                metadata.put(MetadataConstant.METADATA_URL, result.getUrl());
+                metadata.put(MetadataConstant.METADATA_INDEX, index);
+                metadata.put(MetadataConstant.METADATA_CONTENT_TYPE, result.getContentType());
+                metadata.put(MetadataConstant.METADATA_REFERENCE, Base64.getEncoder().encodeToString(result.getUrl().getBytes()));
+                metadata.put(MetadataConstant.METADATA_EPOCH, LocalDateTime.now().toEpochSecond(ZoneOffset.UTC));
+                metadata.put(MetadataConstant.METADATA_UUID, UUID.randomUUID().toString());
+                metadata.put(MetadataConstant.METADATA_STATUS, 200);
+                metadata.put(MetadataConstant.METADATA_CONTEXT, item.getBaseUrl());
+                metadata.put(MetadataConstant.METADATA_COMMAND, Command.ADD.toString());
+                metadata.put(MetadataConstant.METADATA_CONTENT, Base64.getEncoder().encodeToString(result.getContent()));
 
-                    String simpleUrlString = baseUrl.replace(HTTP, "").replace(HTTPS, "");
+                consumer.accept(metadata);
+            }
 
-                    LOGGER.debug("Checking children {}", includedChildPages);
+            if (item.isStoreResult()) {
+                crawlStateStore.addNewUrl(result, jobId, index, item.getStatus(), item.getSubStatus(), item.getReason());
+            } else {
+                crawlStateStore.addNewUrl(item.getUrl(), rootUrl, jobId, index, item.getStatus(), item.getSubStatus(), item.getReason(), result == null ? null : result.getUrl());
+            }
 
-                    includedChildPages = includedChildPages.stream()
-                            .filter(href -> href != null && !href.trim().isEmpty())
-                            .filter(href -> !href.equals("/") && !href.startsWith("//"))
-                            .map(urlStream -> getUrlString(urlStream, result.getUrl(), baseUrl))
-                            .filter(href -> href.startsWith(HTTP) || href.startsWith(HTTPS))
-                            .filter(href -> href.startsWith(HTTP + simpleUrlString) || href.startsWith(HTTPS + simpleUrlString) || includedLinkRegex.stream().anyMatch(ex -> href.matches(ex)))
-                            .filter(href -> !excludedLinkRegex.stream().anyMatch(ex -> href.matches(ex)))
-                            .sorted()
-                            .collect(Collectors.toSet());
+            if (item.isReserved() && item.getStatus() == Status.processed && item.getSubStatus() == SubStatus.included) {
 
-                    LOGGER.debug("Checked children {}", includedChildPages);
+                // The page keeps its slot of the budget
+                item.setReserved(false);
+                pageBudget.commit();
+            }
 
-                    includedChildPages.stream()
-                            .forEach(href -> elasticSearchService.addNewChildUrl(href, baseUrl, jobId, index, result.getUrl()));
-                }
+            if (!item.getChildUrls().isEmpty()) {
 
-                elasticSearchService.flushIndex(index);
+                int depth = item.getEntry().getDepth();
 
+                crawlStateStore.addNewChildUrls(item.getChildUrls(), item.getBaseUrl(), jobId, index, result.getUrl());
+                item.getChildUrls().stream().forEach(href -> frontierService.offer(href, item.getBaseUrl(), depth + 1));
             }
 
         } catch (Exception e) {
-            LOGGER.error("Failed to retrieve URL from thread {}, url {}", jobId, url, e);
-        }
+            LOGGER.error("Failed to retrieve URL from thread {}, url {}", jobId, item.getUrl(), e);
 
+        } finally {
+            complete(item);
+        }
     }
 
     private String getUrlString(String urlString, String parentUrl, String rootUrl) {
@@ -592,23 +879,8 @@ public class WebFetcherJob implements Job {
 
         LOGGER.info("Starting regexes items for thread : {}, url : {}", jobId, initialUrl);
 
-        LinkedList<Result> results = new LinkedList<>();
-        Future<Boolean> future = elasticSearchService.getAsyncUrls(index, results, Status.processed);
-
-        while (!future.isDone()) {
-
-            while (!results.isEmpty()) {
-
-                Result result = results.pop();
-                checkStatus(index, result);
-
-            }
-        }
-
-        while (!results.isEmpty()) {
-
-            Result result = results.pop();
-            checkStatus(index, result);
+        try (ResultStream results = crawlStateStore.streamUrls(index, Status.processed)) {
+            results.forEachRemaining(result -> checkStatus(index, result));
         }
 
         LOGGER.info("Finished regexes items for thread : {}, url : {}", jobId, initialUrl);
@@ -634,7 +906,7 @@ public class WebFetcherJob implements Job {
 
             // Exclude from processed
             if (subStatus == null || subStatus.equals(SubStatus.included)) {
-                elasticSearchService.updateStatus(result.getUrl(), index, Status.processed, SubStatus.excluded, "regex excludedLinkRegex");
+                crawlStateStore.updateStatus(result.getUrl(), index, Status.processed, SubStatus.excluded, "regex excludedLinkRegex");
             }
 
         } else if (!dataExcluded.isEmpty()) {
@@ -643,7 +915,7 @@ public class WebFetcherJob implements Job {
 
             // Exclude from processed
             if (subStatus == null || subStatus.equals(SubStatus.included)) {
-                elasticSearchService.updateStatus(result.getUrl(), index, Status.processed, SubStatus.excluded, "regex excludedDataRegex");
+                crawlStateStore.updateStatus(result.getUrl(), index, Status.processed, SubStatus.excluded, "regex excludedDataRegex");
             }
 
         } else {
@@ -652,7 +924,7 @@ public class WebFetcherJob implements Job {
 
             // Include from processed
             if (subStatus == null || subStatus.equals(SubStatus.excluded)) {
-                elasticSearchService.updateStatus(result.getUrl(), index, Status.processed, SubStatus.included, "Document sent to filter");
+                crawlStateStore.updateStatus(result.getUrl(), index, Status.processed, SubStatus.included, "Document sent to filter");
             }
         }
     }
@@ -661,23 +933,8 @@ public class WebFetcherJob implements Job {
 
         LOGGER.info("Starting deleting items for thread : {}, url : {}", jobId, initialUrl);
 
-        LinkedList<Result> results = new LinkedList<>();
-        Future<Boolean> future = elasticSearchService.getAsyncUrls(index, results, Status.processed, SubStatus.excluded);
-
-        while (!future.isDone()) {
-
-            while (!results.isEmpty()) {
-
-                Result result = results.pop();
-                deleteResult(consumer, result);
-            }
-        }
-
-        while (!results.isEmpty()) {
-
-            Result result = results.pop();
-            deleteResult(consumer, result);
-
+        try (ResultStream results = crawlStateStore.streamUrls(index, Status.processed, SubStatus.excluded)) {
+            results.forEachRemaining(result -> deleteResult(consumer, result));
         }
 
         LOGGER.info("Finished deleting items for thread : {}, url : {}", jobId, initialUrl);
@@ -0,0 +1,138 @@
+package eu.wajja.web.fetcher.content;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides from the raw html whether a page needs chrome to be rendered. Pages
+ * with an empty body, an empty single page application root or a noscript
+ * warning are always rendered. Other pages follow what was learned for their
+ * path prefix: the first pages of a prefix are rendered and compared with
+ * their raw html, once enough of them are known the prefix is only rendered
+ * if rendering made a difference often enough.
+ */
+public class RenderClassifier {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RenderClassifier.class);
+
+    private static final int MIN_TEXT_LENGTH = 200;
+    private static final int MIN_SAMPLES = 3;
+    private static final double DYNAMIC_RATIO = 0.3;
+    private static final double GROWTH_FACTOR = 1.2;
+    private static final int MIN_TEXT_GROWTH = 100;
+    private static final int MIN_LINK_GROWTH = 5;
+
+    private static final List<String> APPLICATION_ROOTS = Arrays.asList("#root", "#app", "#__next", "#__nuxt", "app-root", "[ng-app]", "[data-reactroot]");
+    private static final Pattern NOSCRIPT_HINT = Pattern.compile("(enable|requires?|turn on|activate|need)\\s+(your\\s+)?javascript", Pattern.CASE_INSENSITIVE);
+
+    private Map<String, PrefixStats> prefixStats = new ConcurrentHashMap<>();
+
+    public boolean isRenderRequired(String url, String contentType, byte[] content) {
+
+        if (contentType == null || !contentType.contains("html") || content == null) {
+            return false;
+        }
+
+        Document document = Jsoup.parse(new String(content, StandardCharsets.UTF_8), url);
+
+        if (document.select("noscript").stream().anyMatch(noscript -> NOSCRIPT_HINT.matcher(noscript.text()).find())) {
+            LOGGER.debug("Rendering {}, it asks for javascript", url);
+            return true;
+        }
+
+        document.select("noscript").remove();
+
+        for (String applicationRoot : APPLICATION_ROOTS) {
+
+            Element root = document.selectFirst(applicationRoot);
+
+            if (root != null && root.text().length() < MIN_TEXT_LENGTH) {
+                LOGGER.debug("Rendering {}, its application root {} is empty", url, applicationRoot);
+                return true;
+            }
+        }
+
+        if (document.body() == null || document.body().text().length() < MIN_TEXT_LENGTH && !document.select("script").isEmpty()) {
+            LOGGER.debug("Rendering {}, its body is empty", url);
+            return true;
+        }
+
+        PrefixStats stats = prefixStats.get(getPrefix(url));
+
+        if (stats == null || stats.samples.get() < MIN_SAMPLES) {
+            LOGGER.debug("Rendering {} to learn its path prefix", url);
+            return true;
+        }
+
+        return stats.dynamic.get() >= stats.samples.get() * DYNAMIC_RATIO;
+    }
+
+    /**
+     * Compares the raw html of a page with its rendered html and remembers for
+     * the path prefix of the page whether rendering made a difference
+     */
+    public void learn(String url, byte[] rawContent, byte[] renderedContent) {
+
+        if (rawContent == null || renderedContent == null) {
+            return;
+        }
+
+        Document raw = Jsoup.parse(new String(rawContent, StandardCharsets.UTF_8), url);
+        Document rendered = Jsoup.parse(new String(renderedContent, StandardCharsets.UTF_8), url);
+        raw.select("noscript").remove();
+        rendered.select("noscript").remove();
+
+        int rawText = raw.body() == null ? 0 : raw.body().text().length();
+        int renderedText = rendered.body() == null ? 0 : rendered.body().text().length();
+        int rawLinks = raw.select("a[href]").size();
+        int renderedLinks = rendered.select("a[href]").size();
+
+        boolean dynamic = renderedText > rawText * GROWTH_FACTOR + MIN_TEXT_GROWTH || renderedLinks > rawLinks * GROWTH_FACTOR + MIN_LINK_GROWTH;
+
+        PrefixStats stats = prefixStats.computeIfAbsent(getPrefix(url), prefix -> new PrefixStats());
+        stats.samples.incrementAndGet();
+
+        if (dynamic) {
+            stats.dynamic.incrementAndGet();
+        }
+
+        LOGGER.debug("Learned {} as {}, text {} -> {}, links {} -> {}", url, dynamic ? "dynamic" : "static", rawText, renderedText, rawLinks, renderedLinks);
+    }
+
+    /**
+     * @return the host and the first directory of the path of the url
+     */
+    static String getPrefix(String url) {
+
+        try {
+
+            URL parsedUrl = new URL(url);
+            String path = parsedUrl.getPath();
+            int end = path.indexOf('/', 1);
+
+            return parsedUrl.getHost().toLowerCase() + (end > 0 ? path.substring(0, end) : "/");
+
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+    private static class PrefixStats {
+
+        private AtomicInteger samples = new AtomicInteger();
+        private AtomicInteger dynamic = new AtomicInteger();
+    }
+}
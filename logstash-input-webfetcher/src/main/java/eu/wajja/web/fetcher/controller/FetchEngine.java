@@ -0,0 +1,34 @@
+package eu.wajja.web.fetcher.controller;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Map;
+
+import eu.wajja.web.fetcher.enums.FetchEngineType;
+
+/**
+ * Executes the HTTP requests of the crawler. Redirects are only followed
+ * automatically when they keep the same protocol, the others are returned to
+ * the caller like {@link java.net.HttpURLConnection} does.
+ */
+public interface FetchEngine extends Closeable {
+
+    /**
+     * Sends the request and returns once the status line and headers were
+     * received. The returned response must always be closed.
+     */
+    FetchResponse execute(String method, URL url, Map<String, String> headers) throws IOException;
+
+    @Override
+    void close();
+
+    public static FetchEngine getInstance(String type, ProxyController proxyController, Long timeout, Long maxConnectionsPerHost, Long maxRequests) {
+
+        if (FetchEngineType.urlconnection.name().equalsIgnoreCase(type)) {
+            return new UrlConnectionFetchEngine(proxyController.getProxy(), timeout.intValue());
+        }
+
+        return new PooledFetchEngine(proxyController, timeout.intValue(), maxConnectionsPerHost.intValue(), maxRequests.intValue());
+    }
+}
@@ -0,0 +1,33 @@
+package eu.wajja.web.fetcher.controller;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Status line and headers of a fetched url. The body is only read when asked
+ * for, closing the response hands the connection back to the engine.
+ */
+public interface FetchResponse extends Closeable {
+
+    int getCode();
+
+    String getMessage();
+
+    String getContentType();
+
+    /**
+     * @return the content length announced by the server or -1 if unknown
+     */
+    int getContentLength();
+
+    String getHeaderField(String name);
+
+    Map<String, List<String>> getHeaderFields();
+
+    byte[] readContent() throws IOException;
+
+    @Override
+    void close();
+}
@@ -0,0 +1,223 @@
+package eu.wajja.web.fetcher.controller;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Credentials;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Engine keeping connections alive in a pool shared by all requests. Every
+ * host gets at most maxConnectionsPerHost requests at the same time, TLS
+ * sessions are resumed from the shared ssl context and HTTP/2 is negotiated
+ * with ALPN when both the server and the JVM support it.
+ */
+public class PooledFetchEngine implements FetchEngine {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PooledFetchEngine.class);
+
+    private static final long KEEP_ALIVE_MINUTES = 5;
+    private static final int TLS_SESSION_TIMEOUT_SECONDS = 3600;
+
+    private OkHttpClient okHttpClient;
+
+    public PooledFetchEngine(ProxyController proxyController, int timeout, int maxConnectionsPerHost, int maxRequests) {
+
+        int maxConnections = Math.max(maxRequests, maxConnectionsPerHost);
+
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(maxConnectionsPerHost);
+        dispatcher.setMaxRequests(maxConnections);
+
+        // The idle limit is for the whole client, every request in flight may keep its connection
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(maxConnections, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .connectTimeout(timeout, TimeUnit.MILLISECONDS)
+                .readTimeout(timeout, TimeUnit.MILLISECONDS)
+                .writeTimeout(timeout, TimeUnit.MILLISECONDS)
+                .followRedirects(true)
+                .followSslRedirects(false);
+
+        SSLContext sslContext = proxyController.getSslContext();
+
+        if (sslContext != null) {
+
+            sslContext.getClientSessionContext().setSessionTimeout(TLS_SESSION_TIMEOUT_SECONDS);
+            builder.sslSocketFactory(sslContext.getSocketFactory(), proxyController.getTrustManager());
+            builder.hostnameVerifier((hostname, session) -> true);
+        }
+
+        if (proxyController.getProxy() != null) {
+
+            builder.proxy(proxyController.getProxy());
+
+            if (proxyController.getProxyUser() != null && proxyController.getProxyPass() != null) {
+
+                String credential = Credentials.basic(proxyController.getProxyUser(), proxyController.getProxyPass());
+
+                builder.proxyAuthenticator((route, response) -> {
+
+                    if (response.request().header("Proxy-Authorization") != null) {
+                        return null;
+                    }
+
+                    return response.request().newBuilder().header("Proxy-Authorization", credential).build();
+                });
+            }
+        }
+
+        okHttpClient = builder.build();
+    }
+
+    @Override
+    public FetchResponse execute(String method, URL url, Map<String, String> headers) throws IOException {
+
+        Request.Builder requestBuilder = new Request.Builder().url(url).method(method, null);
+        headers.forEach((name, value) -> {
+
+            if (value != null) {
+                requestBuilder.header(name, value);
+            }
+        });
+
+        Call call = okHttpClient.newCall(requestBuilder.build());
+        CompletableFuture<Response> future = new CompletableFuture<>();
+
+        // Enqueued so the dispatcher applies the per host limit
+        call.enqueue(new Callback() {
+
+            @Override
+            public void onFailure(Call call, IOException e) {
+
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+
+                if (!future.complete(response)) {
+                    response.close();
+                }
+            }
+        });
+
+        try {
+            return new PooledFetchResponse(future.get());
+
+        } catch (InterruptedException e) {
+
+            call.cancel();
+
+            // Nobody reads the response any more, whether it already came or comes later
+            future.whenComplete((response, failure) -> {
+                if (response != null) {
+                    response.close();
+                }
+            });
+
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching " + url);
+
+        } catch (ExecutionException e) {
+
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+
+        LOGGER.debug("Closing pooled connections");
+        okHttpClient.dispatcher().executorService().shutdown();
+        okHttpClient.connectionPool().evictAll();
+    }
+
+    private static class PooledFetchResponse implements FetchResponse {
+
+        private Response response;
+
+        public PooledFetchResponse(Response response) {
+
+            this.response = response;
+        }
+
+        @Override
+        public int getCode() {
+
+            return response.code();
+        }
+
+        @Override
+        public String getMessage() {
+
+            return response.message();
+        }
+
+        @Override
+        public String getContentType() {
+
+            return response.header("Content-Type");
+        }
+
+        @Override
+        public int getContentLength() {
+
+            String contentLength = response.header("Content-Length");
+
+            try {
+                return contentLength == null ? -1 : Integer.parseInt(contentLength.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+
+            return response.header(name);
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaderFields() {
+
+            return response.headers().toMultimap();
+        }
+
+        @Override
+        public byte[] readContent() throws IOException {
+
+            ResponseBody body = response.body();
+            return body == null ? new byte[0] : body.bytes();
+        }
+
+        @Override
+        public void close() {
+
+            // Returns the connection to the pool once the body was read
+            response.close();
+        }
+    }
+}
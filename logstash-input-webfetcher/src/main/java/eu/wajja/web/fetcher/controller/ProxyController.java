@@ -27,6 +27,8 @@ public class ProxyController {
     private String proxyPass;
     private String proxyHost;
     private Long proxyPort;
+    private SSLContext sslContext;
+    private X509TrustManager trustManager;
 
     public ProxyController(String proxyUser, String proxyPass, String proxyHost, Long proxyPort) {
 
@@ -56,25 +58,28 @@ public class ProxyController {
             proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(proxyHost, proxyPort.intValue()));
         }
 
-        TrustManager[] trustAllCerts = new TrustManager[] { new X509TrustManager() {
+        trustManager = new X509TrustManager() {
 
             public java.security.cert.X509Certificate[] getAcceptedIssuers() {
 
-                return null;
+                return new X509Certificate[0];
             }
 
             public void checkClientTrusted(X509Certificate[] certs, String authType) {}
 
             public void checkServerTrusted(X509Certificate[] certs, String authType) {}
-        } };
+        };
+
+        TrustManager[] trustAllCerts = new TrustManager[] { trustManager };
 
         try {
-            SSLContext sc = SSLContext.getInstance("SSL");
-            sc.init(null, trustAllCerts, new java.security.SecureRandom());
-            HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
+            sslContext = SSLContext.getInstance("SSL");
+            sslContext.init(null, trustAllCerts, new java.security.SecureRandom());
+            HttpsURLConnection.setDefaultSSLSocketFactory(sslContext.getSocketFactory());
 
         } catch (NoSuchAlgorithmException | KeyManagementException e) {
             LOGGER.error("Failed to set authentication cert trust", e);
+            sslContext = null;
         }
 
         HostnameVerifier allHostsValid = new HostnameVerifier() {
@@ -139,4 +144,14 @@ public class ProxyController {
         this.proxy = proxy;
     }
 
+    public SSLContext getSslContext() {
+
+        return sslContext;
+    }
+
+    public X509TrustManager getTrustManager() {
+
+        return trustManager;
+    }
+
 }
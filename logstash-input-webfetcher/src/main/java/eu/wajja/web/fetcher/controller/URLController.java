@@ -1,24 +1,30 @@
 package eu.wajja.web.fetcher.controller;
 
-import java.io.InputStream;
+import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.Proxy;
 import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import javax.net.ssl.SSLException;
 
 import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import eu.wajja.web.fetcher.elasticsearch.ElasticSearchService;
+import eu.wajja.web.fetcher.content.RenderClassifier;
+import eu.wajja.web.fetcher.enums.RenderMode;
+import eu.wajja.web.fetcher.model.RenderingProfile;
 import eu.wajja.web.fetcher.model.Result;
 import eu.wajja.web.fetcher.model.WebDriverResult;
+import eu.wajja.web.fetcher.state.CrawlStateStore;
 
 public class URLController {
 
@@ -27,34 +33,122 @@ public class URLController {
     private static final String HTTP = "http://";
     private static final String HTTPS = "https://";
     
-    private Proxy proxy;
-    private Long timeout;
+    private FetchEngine fetchEngine;
     private String userAgent;
     private String referer;
     private Boolean enableJsLinks;
     private String waitForCssSelector;
     private Integer maxWaitForCssSelector;
-    private ElasticSearchService elasticSearchService;
-    private WebDriverController webDriverController = new WebDriverController();
+    private boolean waitForNetworkIdle;
+    private boolean conditionalGet;
+    private CrawlStateStore crawlStateStore;
+    private WebDriverController webDriverController;
+    private RenderMode renderMode;
+    private RenderClassifier renderClassifier = new RenderClassifier();
 
-    public URLController(ElasticSearchService elasticSearchService, Proxy proxy, Long timeout, String userAgent, String referer, String waitForCssSelector, Integer maxWaitForCssSelector, Boolean enableJsLinks) {
+    public URLController(CrawlStateStore crawlStateStore, FetchEngine fetchEngine, String userAgent, String referer, String waitForCssSelector, Integer maxWaitForCssSelector, boolean waitForNetworkIdle, Boolean enableJsLinks, boolean conditionalGet, int maxPagesPerSession, int maxTabsPerDriver, RenderingProfile renderingProfile, RenderMode renderMode) {
 
-        this.proxy = proxy;
-        this.timeout = timeout;
+        this.fetchEngine = fetchEngine;
         this.userAgent = userAgent;
         this.referer = referer;
         this.waitForCssSelector = waitForCssSelector;
         this.maxWaitForCssSelector = maxWaitForCssSelector;
-        this.elasticSearchService = elasticSearchService;
+        this.waitForNetworkIdle = waitForNetworkIdle;
+        this.crawlStateStore = crawlStateStore;
         this.enableJsLinks = enableJsLinks;
+        this.conditionalGet = conditionalGet;
+        this.webDriverController = new WebDriverController(maxPagesPerSession, maxTabsPerDriver, renderingProfile);
+        this.renderMode = renderMode;
+    }
+
+    /**
+     * Quits the web driver sessions kept between pages
+     */
+    public void closeWebDrivers() {
+
+        webDriverController.close();
+    }
+
+    /**
+     * Stops the threads of the fetch engine and closes its idle connections
+     */
+    public void closeFetchEngine() {
+
+        fetchEngine.close();
     }
 
     public Result getURL(String index, String currentUrl, String initialUrl, String chromeDriver, boolean ignoreHttpError) {
 
-        return getURL(index, currentUrl, initialUrl, chromeDriver, new HashSet<>(), 0, ignoreHttpError);
+        Result result = fetchURL(index, currentUrl, initialUrl, chromeDriver != null, ignoreHttpError);
+
+        if (result.isRenderRequired()) {
+            renderURL(result, chromeDriver);
+        }
+
+        return result;
+    }
+
+    /**
+     * Fetches the url without using the web driver. When render is set, pages
+     * that need javascript come back flagged as render required so they can be
+     * handed to {@link #renderURL(Result, String)} by a driver worker. In auto
+     * render mode the raw content is downloaded first and only the pages the
+     * {@link RenderClassifier} picks are flagged.
+     */
+    public Result fetchURL(String index, String currentUrl, String initialUrl, boolean render, boolean ignoreHttpError) {
+
+        if (conditionalGet) {
+            return getConditionalURL(index, currentUrl, initialUrl, render, new HashSet<>(), 0, ignoreHttpError);
+        }
+
+        return getURL(index, currentUrl, initialUrl, render, new HashSet<>(), 0, ignoreHttpError);
+    }
+
+    /**
+     * @return false if the driver failed to render the page, the raw content
+     *         is kept in that case
+     */
+    public boolean renderURL(Result result, String chromeDriver) {
+
+        result.setRenderRequired(false);
+        byte[] rawContent = result.getContent();
+
+        try {
+
+            WebDriverResult webDriverResult = webDriverController.getURL(result.getUrl(), chromeDriver, userAgent, waitForCssSelector, maxWaitForCssSelector, waitForNetworkIdle, enableJsLinks);
+
+            if (webDriverResult.getBytes() == null) {
+                LOGGER.warn("Rendered url {} is empty, keeping the raw content", result.getUrl());
+                return false;
+            }
+
+            String md5 = DigestUtils.md5Hex(webDriverResult.getBytes());
+
+            result.setContent(webDriverResult.getBytes());
+            result.setMd5(md5);
+
+            result.setChildUrls(webDriverResult.getUrls());
+
+            renderClassifier.learn(result.getUrl(), rawContent, webDriverResult.getBytes());
+            return true;
+
+        } catch (InterruptedException e) {
+            LOGGER.info("Interrupted while rendering url {}", result.getUrl());
+            Thread.currentThread().interrupt();
+
+        } catch (Exception e) {
+            LOGGER.error("Failed to render URL url {}", result.getUrl(), e);
+        }
+
+        return false;
     }
 
-    private Result getURL(String index, String currentUrl, String initialUrl, String chromeDriver, Set<String> redirectUrls, Integer redirectCount, boolean ignoreHttpError) {
+    /**
+     * Fetches the url with a single GET. The validators stored from the
+     * previous crawl are sent as If-None-Match / If-Modified-Since so an
+     * unchanged page comes back as a 304 without a body.
+     */
+    private Result getConditionalURL(String index, String currentUrl, String initialUrl, boolean render, Set<String> redirectUrls, Integer redirectCount, boolean ignoreHttpError) {
 
         Result result = new Result();
         result.setUrl(currentUrl);
@@ -63,43 +157,192 @@ public class URLController {
         result.setCode(404);
         result.setRedirectUrls(redirectUrls);
         result.setCached(false);
-        
-        HttpURLConnection httpURLConnection = null;
+
+        FetchResponse fetchResponse = null;
+
+        // Read apart from the fetch, a state store failure is not a failure of the site
+        Result storedResult = getValidators(index, currentUrl);
 
         try {
 
             URL url = this.createUrl(currentUrl);
+            Map<String, String> headers = getRequestHeaders();
+
+            if (storedResult != null && storedResult.geteTag() != null) {
+                headers.put("If-None-Match", storedResult.geteTag());
+            }
+
+            if (storedResult != null && storedResult.getLastModified() != null) {
+                headers.put("If-Modified-Since", storedResult.getLastModified());
+            }
+
+            fetchResponse = fetchEngine.execute("GET", url, headers);
+
+            int code = fetchResponse.getCode();
+            String message = fetchResponse.getMessage();
+
+            result.setCode(code);
+            result.setMessage(message);
+            result.setContentType(parseContentType(fetchResponse.getContentType()));
+            result.setRetryAfter(parseRetryAfter(fetchResponse.getHeaderField("Retry-After")));
+
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && storedResult != null) {
+
+                LOGGER.debug("Not modified {}", currentUrl);
+                return getCachedResult(storedResult, currentUrl, initialUrl, redirectUrls);
+
+            } else if (code == HttpURLConnection.HTTP_OK || ignoreHttpError) {
+
+                result.setHeaders(fetchResponse.getHeaderFields());
+                result.seteTag(fetchResponse.getHeaderField("ETag"));
+                result.setLastModified(fetchResponse.getHeaderField("Last-Modified"));
+                result.setLength(fetchResponse.getContentLength());
+
+                if (storedResult != null && isSameDocument(fetchResponse, storedResult)) {
+
+                    // The server ignored the validators
+                    closeResponse(fetchResponse);
+                    return getCachedResult(storedResult, currentUrl, initialUrl, redirectUrls);
+                }
+
+                boolean pdf = result.getContentType().equals("application/pdf") || currentUrl.substring(currentUrl.length() - 3).equalsIgnoreCase("pdf");
+
+                if (render && !pdf && renderMode == RenderMode.always) {
+
+                    closeResponse(fetchResponse);
+                    result.setRenderRequired(true);
+
+                } else {
+
+                    LOGGER.debug("Downloading {}", currentUrl);
+
+                    byte[] content = fetchResponse.readContent();
+                    result.setContent(content);
+                    result.setMd5(content == null ? null : DigestUtils.md5Hex(content));
+                    result.setRenderRequired(render && !pdf && renderClassifier.isRenderRequired(currentUrl, result.getContentType(), content));
+                }
+
+            } else if (code == HttpURLConnection.HTTP_MOVED_PERM) {
+
+                LOGGER.warn("Pages moved permanently, status {}, url {}, message {}", code, url, message);
+                return result;
+
+            } else if (code == HttpURLConnection.HTTP_MOVED_TEMP || code == 307 || code == HttpURLConnection.HTTP_SEE_OTHER) {
+
+                String newUrl = fetchResponse.getHeaderField("Location");
+                closeResponse(fetchResponse);
+
+                if (redirectCount < 10) {
+
+                    String simpleUrlString = newUrl.replace(HTTP, "").replace(HTTPS, "");
+                    String simpleRootUrlString = result.getRootUrl().replace(HTTP, "").replace(HTTPS, "");
+
+                    if (simpleUrlString.startsWith(simpleRootUrlString)) {
+
+                        LOGGER.debug("Redirect needed to :  {}", newUrl);
+                        result.getRedirectUrls().add(currentUrl);
+                        return getConditionalURL(index, newUrl, initialUrl, render, result.getRedirectUrls(), redirectCount + 1, ignoreHttpError);
+                    }
+                }
 
-            if (proxy == null) {
-                httpURLConnection = (HttpURLConnection) url.openConnection();
             } else {
-                httpURLConnection = (HttpURLConnection) url.openConnection(proxy);
+                LOGGER.warn("Failed To Read status {}, url {}, message {}", code, url, message);
             }
 
-            httpURLConnection.setConnectTimeout(timeout.intValue());
-            httpURLConnection.setReadTimeout(timeout.intValue());
-            httpURLConnection.addRequestProperty("Accept-Language", "en-US,en;q=0.8");
-            httpURLConnection.addRequestProperty("User-Agent", userAgent);
-            httpURLConnection.addRequestProperty("Referer", referer);
-            httpURLConnection.setRequestMethod("HEAD");
+        } catch (SocketTimeoutException e) {
+
+            LOGGER.warn("Thread url {}, timed out, retrying later", currentUrl);
+            result.setTransientFailure(true);
+            return result;
 
-            httpURLConnection.connect();
+        } catch (SSLException e) {
 
-            int code = httpURLConnection.getResponseCode();
-            String message = httpURLConnection.getResponseMessage();
+            LOGGER.warn("Thread url {}, SSLException error, retrying later", currentUrl, e);
+            result.setTransientFailure(true);
+            return result;
+
+        } catch (MalformedURLException mue) {
+            LOGGER.error("Malformed url : {}", currentUrl, mue);
+            return result;
+
+        } catch (IOException e) {
+
+            LOGGER.warn("Thread url {}, connection error, retrying later", currentUrl, e);
+            result.setTransientFailure(true);
+            return result;
+
+        } catch (Exception e) {
+            LOGGER.error("Failed to retrieve URL url {}", currentUrl, e);
+        } finally {
+            closeResponse(fetchResponse);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the validators stored for the url, null if there are none or
+     *         they could not be read, the url is then fetched unconditionally
+     */
+    private Result getValidators(String index, String currentUrl) {
+
+        try {
+            return crawlStateStore.getValidators(currentUrl, index);
+
+        } catch (Exception e) {
+            LOGGER.warn("Failed to read the validators of url {}, fetching it unconditionally", currentUrl, e);
+            return null;
+        }
+    }
+
+    private Result getCachedResult(Result storedResult, String currentUrl, String initialUrl, Set<String> redirectUrls) {
+
+        storedResult.setUrl(currentUrl);
+        storedResult.setRootUrl(initialUrl);
+        storedResult.setRedirectUrls(redirectUrls);
+        storedResult.setCached(true);
+
+        if (storedResult.getCode() == null) {
+            storedResult.setCode(HttpURLConnection.HTTP_OK);
+        }
+
+        return storedResult;
+    }
+
+    private Result getURL(String index, String currentUrl, String initialUrl, boolean render, Set<String> redirectUrls, Integer redirectCount, boolean ignoreHttpError) {
+
+        Result result = new Result();
+        result.setUrl(currentUrl);
+        result.setReferrer(currentUrl);
+        result.setRootUrl(initialUrl);
+        result.setCode(404);
+        result.setRedirectUrls(redirectUrls);
+        result.setCached(false);
+        
+        FetchResponse fetchResponse = null;
+
+        try {
+
+            URL url = this.createUrl(currentUrl);
+
+            fetchResponse = fetchEngine.execute("HEAD", url, getRequestHeaders());
+
+            int code = fetchResponse.getCode();
+            String message = fetchResponse.getMessage();
 
             result.setCode(code);
             result.setMessage(message);
-            result.setContentType(parseContentType(httpURLConnection.getContentType()));
+            result.setContentType(parseContentType(fetchResponse.getContentType()));
+            result.setRetryAfter(parseRetryAfter(fetchResponse.getHeaderField("Retry-After")));
 
             if (code == HttpURLConnection.HTTP_OK || ignoreHttpError) {
 
-                if (elasticSearchService.existsInIndex(currentUrl, index)) {
+                if (crawlStateStore.existsInIndex(currentUrl, index)) {
 
-                    result = elasticSearchService.getFromIndex(currentUrl, index);
+                    result = crawlStateStore.getFromIndex(currentUrl, index);
                     result.setRedirectUrls(redirectUrls);
 
-                    if (isSameDocument(httpURLConnection, result)) {
+                    if (isSameDocument(fetchResponse, result)) {
                         result.setCached(true);
                         return result;
                     }
@@ -109,7 +352,7 @@ public class URLController {
 
                     result.setCode(code);
                     result.setMessage(message);
-                    result.setContentType(parseContentType(httpURLConnection.getContentType()));
+                    result.setContentType(parseContentType(fetchResponse.getContentType()));
                     result.setRootUrl(initialUrl);
                 }
 
@@ -117,10 +360,10 @@ public class URLController {
                  * If pdf, do not use the webdriver, which was only used
                  * intitially to handle js
                  */
-                if (httpURLConnection.getContentType().equals("application/pdf") || currentUrl.substring(currentUrl.length() - 3).equalsIgnoreCase("pdf")) {
+                if (result.getContentType().equals("application/pdf") || currentUrl.substring(currentUrl.length() - 3).equalsIgnoreCase("pdf")) {
 
                     LOGGER.debug("Found pdf, downloading {}", currentUrl);
-                    result.setHeaders(httpURLConnection.getHeaderFields());
+                    result.setHeaders(fetchResponse.getHeaderFields());
                     
                     byte[] content = downloadContent(currentUrl);
                     String md5 = DigestUtils.md5Hex(content);
@@ -130,26 +373,20 @@ public class URLController {
                     
                 } else {
 
-                    closeConnection(httpURLConnection);
-                    result.setHeaders(httpURLConnection.getHeaderFields());
+                    closeResponse(fetchResponse);
+                    result.setHeaders(fetchResponse.getHeaderFields());
+
+                    if (render && renderMode == RenderMode.always) {
+                        result.setRenderRequired(true);
 
-                    if (chromeDriver == null) {
+                    } else {
                         
                         byte[] content = downloadContent(currentUrl);
                         String md5 = DigestUtils.md5Hex(content);
                         
                         result.setContent(content);
                         result.setMd5(md5);
-                        
-                    } else {
-                       
-                        WebDriverResult webDriverResult = webDriverController.getURL(result.getUrl(), chromeDriver, userAgent, waitForCssSelector, maxWaitForCssSelector, enableJsLinks);
-                        String md5 = DigestUtils.md5Hex(webDriverResult.getBytes());
-                        
-                        result.setContent(webDriverResult.getBytes());
-                        result.setMd5(md5);
-                        
-                        result.setChildUrls(webDriverResult.getUrls());
+                        result.setRenderRequired(render && renderClassifier.isRenderRequired(currentUrl, result.getContentType(), content));
                     }
 
                 }
@@ -161,8 +398,8 @@ public class URLController {
             	
             } else if (code == HttpURLConnection.HTTP_MOVED_TEMP || code == 307 || code == HttpURLConnection.HTTP_SEE_OTHER) {
 
-                String newUrl = httpURLConnection.getHeaderField("Location");
-                closeConnection(httpURLConnection);
+                String newUrl = fetchResponse.getHeaderField("Location");
+                closeResponse(fetchResponse);
 
 				if (redirectCount < 10) {
 
@@ -173,51 +410,53 @@ public class URLController {
 						
 						LOGGER.debug("Redirect needed to :  {}", newUrl);
 						result.getRedirectUrls().add(currentUrl);
-						return getURL(index, newUrl, initialUrl, chromeDriver, result.getRedirectUrls(), redirectCount + 1, ignoreHttpError);
+						return getURL(index, newUrl, initialUrl, render, result.getRedirectUrls(), redirectCount + 1, ignoreHttpError);
 					}
 				}
 
             } else {
                 LOGGER.warn("Failed To Read status {}, url {}, message {}", code, url, message);
-
-                if (redirectCount < 10 && code == 502) {
-
-                    // Bad Gateway, sleep and try again
-                    Thread.sleep(5000);
-                    return getURL(index, currentUrl, initialUrl, chromeDriver, redirectUrls, redirectCount + 1, ignoreHttpError);
-                }
             }
 
         } catch (SocketTimeoutException e) {
 
-            LOGGER.warn("Thread url {}, sleeping and trying again", currentUrl);
-            closeConnection(httpURLConnection);
+            LOGGER.warn("Thread url {}, timed out, retrying later", currentUrl);
+            result.setTransientFailure(true);
+            closeResponse(fetchResponse);
             return result;
 
         } catch (SSLException e) {
 
-            LOGGER.warn("Thread url {}, SSLException error, sleeping and trying again", currentUrl, e);
-            closeConnection(httpURLConnection);
+            LOGGER.warn("Thread url {}, SSLException error, retrying later", currentUrl, e);
+            result.setTransientFailure(true);
+            closeResponse(fetchResponse);
             return result;
 
         } catch (MalformedURLException mue) {
             LOGGER.error("Malformed url : {}", currentUrl, mue);
-            closeConnection(httpURLConnection);
+            closeResponse(fetchResponse);
+            return result;
+
+        } catch (IOException e) {
+
+            LOGGER.warn("Thread url {}, connection error, retrying later", currentUrl, e);
+            result.setTransientFailure(true);
+            closeResponse(fetchResponse);
             return result;
 
         } catch (Exception e) {
             LOGGER.error("Failed to retrieve URL url {}", currentUrl, e);
         } finally {
-            closeConnection(httpURLConnection);
+            closeResponse(fetchResponse);
         }
 
         return result;
     }
 
-    private boolean isSameDocument(HttpURLConnection httpURLConnection, Result result) {
+    private boolean isSameDocument(FetchResponse fetchResponse, Result result) {
 
-        int length = httpURLConnection.getContentLength();
-        String eTag = httpURLConnection.getHeaderField("ETag");
+        int length = fetchResponse.getContentLength();
+        String eTag = fetchResponse.getHeaderField("ETag");
 
         if (eTag != null && result.geteTag() != null && result.geteTag().equals(eTag)) {
             return true;
@@ -250,63 +489,82 @@ public class URLController {
         return contentType.trim().toLowerCase();
     }
 
-    private byte[] downloadContent(String currentUrl) {
+    /**
+     * Retry-After is either a number of seconds or a http date
+     */
+    private Long parseRetryAfter(String retryAfter) {
 
-        HttpURLConnection httpURLConnection = null;
+        if (retryAfter == null || retryAfter.trim().isEmpty()) {
+            return null;
+        }
 
         try {
 
-            URL url = this.createUrl(currentUrl);
-
-            if (proxy == null) {
-                httpURLConnection = (HttpURLConnection) url.openConnection();
-            } else {
-                httpURLConnection = (HttpURLConnection) url.openConnection(proxy);
+            if (retryAfter.trim().matches("\\d+")) {
+                return Long.parseLong(retryAfter.trim()) * 1000;
             }
 
-            httpURLConnection.setConnectTimeout(timeout.intValue());
-            httpURLConnection.setReadTimeout(timeout.intValue());
-            httpURLConnection.addRequestProperty("Accept-Language", "en-US,en;q=0.8");
-            httpURLConnection.addRequestProperty("User-Agent", userAgent);
-            httpURLConnection.addRequestProperty("Referer", referer);
+            ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
 
-            httpURLConnection.connect();
+        } catch (DateTimeParseException | NumberFormatException e) {
 
-            try (InputStream inputStream = httpURLConnection.getInputStream()) {
+            LOGGER.warn("Invalid Retry-After {}", retryAfter);
+            return null;
+        }
+    }
 
-                byte[] bytes = IOUtils.toByteArray(inputStream);
-                closeConnection(httpURLConnection);
-                return bytes;
-            }
+    private Map<String, String> getRequestHeaders() {
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Accept-Language", "en-US,en;q=0.8");
+        headers.put("User-Agent", userAgent);
+        headers.put("Referer", referer);
+
+        return headers;
+    }
+
+    private byte[] downloadContent(String currentUrl) {
+
+        FetchResponse fetchResponse = null;
+
+        try {
+
+            URL url = this.createUrl(currentUrl);
+            fetchResponse = fetchEngine.execute("GET", url, getRequestHeaders());
+
+            byte[] bytes = fetchResponse.readContent();
+            closeResponse(fetchResponse);
+            return bytes;
 
         } catch (SocketTimeoutException e) {
 
             LOGGER.warn("Thread url {}, sleeping and trying again", currentUrl);
-            closeConnection(httpURLConnection);
+            closeResponse(fetchResponse);
 
         } catch (SSLException e) {
 
             LOGGER.warn("Thread url {}, SSLException error, sleeping and trying again", currentUrl, e);
-            closeConnection(httpURLConnection);
+            closeResponse(fetchResponse);
 
         } catch (MalformedURLException mue) {
             LOGGER.error("Malformed url : {}", currentUrl, mue);
-            closeConnection(httpURLConnection);
+            closeResponse(fetchResponse);
 
         } catch (Exception e) {
             LOGGER.error("Failed to retrieve URL url {}", currentUrl, e);
         } finally {
-            closeConnection(httpURLConnection);
+            closeResponse(fetchResponse);
         }
 
         return null;
 
     }
 
-    private void closeConnection(HttpURLConnection httpURLConnection) {
+    private void closeResponse(FetchResponse fetchResponse) {
 
-        if (httpURLConnection != null) {
-            httpURLConnection.disconnect();
+        if (fetchResponse != null) {
+            fetchResponse.close();
         }
     }
 
@@ -315,9 +573,4 @@ public class URLController {
         return new URL(currentUrl);
     }
 
-    public void setTimeout(Long timeOut) {
-
-        this.timeout = timeOut;
-    }
-
 }
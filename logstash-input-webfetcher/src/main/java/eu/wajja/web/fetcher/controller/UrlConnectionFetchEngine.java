@@ -0,0 +1,125 @@
+package eu.wajja.web.fetcher.controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Fallback engine opening a new {@link HttpURLConnection} per request and
+ * disconnecting it afterwards.
+ */
+public class UrlConnectionFetchEngine implements FetchEngine {
+
+    private Proxy proxy;
+    private int timeout;
+
+    public UrlConnectionFetchEngine(Proxy proxy, int timeout) {
+
+        this.proxy = proxy;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public FetchResponse execute(String method, URL url, Map<String, String> headers) throws IOException {
+
+        HttpURLConnection httpURLConnection;
+
+        if (proxy == null) {
+            httpURLConnection = (HttpURLConnection) url.openConnection();
+        } else {
+            httpURLConnection = (HttpURLConnection) url.openConnection(proxy);
+        }
+
+        try {
+
+            httpURLConnection.setConnectTimeout(timeout);
+            httpURLConnection.setReadTimeout(timeout);
+            httpURLConnection.setRequestMethod(method);
+            headers.forEach(httpURLConnection::addRequestProperty);
+            httpURLConnection.connect();
+
+            return new UrlConnectionFetchResponse(httpURLConnection);
+
+        } catch (IOException e) {
+
+            httpURLConnection.disconnect();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+
+        // Nothing is kept open between requests
+    }
+
+    private static class UrlConnectionFetchResponse implements FetchResponse {
+
+        private HttpURLConnection httpURLConnection;
+        private int code;
+        private String message;
+
+        public UrlConnectionFetchResponse(HttpURLConnection httpURLConnection) throws IOException {
+
+            this.httpURLConnection = httpURLConnection;
+            this.code = httpURLConnection.getResponseCode();
+            this.message = httpURLConnection.getResponseMessage();
+        }
+
+        @Override
+        public int getCode() {
+
+            return code;
+        }
+
+        @Override
+        public String getMessage() {
+
+            return message;
+        }
+
+        @Override
+        public String getContentType() {
+
+            return httpURLConnection.getContentType();
+        }
+
+        @Override
+        public int getContentLength() {
+
+            return httpURLConnection.getContentLength();
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+
+            return httpURLConnection.getHeaderField(name);
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaderFields() {
+
+            return httpURLConnection.getHeaderFields();
+        }
+
+        @Override
+        public byte[] readContent() throws IOException {
+
+            try (InputStream inputStream = httpURLConnection.getInputStream()) {
+                return IOUtils.toByteArray(inputStream);
+            }
+        }
+
+        @Override
+        public void close() {
+
+            httpURLConnection.disconnect();
+        }
+    }
+}
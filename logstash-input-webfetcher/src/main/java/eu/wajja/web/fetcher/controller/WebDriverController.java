@@ -1,203 +1,376 @@
 package eu.wajja.web.fetcher.controller;
 
 import java.net.MalformedURLException;
-import java.net.URL;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
-import org.apache.commons.lang3.StringUtils;
 import org.openqa.selenium.By;
+import org.openqa.selenium.JavascriptException;
 import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.ScriptTimeoutException;
+import org.openqa.selenium.TimeoutException;
 import org.openqa.selenium.WebDriver;
 import org.openqa.selenium.WebElement;
-import org.openqa.selenium.chrome.ChromeDriver;
-import org.openqa.selenium.chrome.ChromeOptions;
-import org.openqa.selenium.json.JsonException;
-import org.openqa.selenium.remote.RemoteWebDriver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import eu.wajja.web.fetcher.exception.WebDriverException;
+import eu.wajja.web.fetcher.model.RenderingProfile;
 import eu.wajja.web.fetcher.model.WebDriverResult;
 
 public class WebDriverController {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(WebDriverController.class);
 
-    public WebDriverResult getURL(String url, String chromeDriver, String userAgent, String waitForCssSelector, Integer maxWaitForCssSelector, boolean enableJsLinks) throws MalformedURLException, WebDriverException {
+    private static final String SOURCE = "source";
+    private static final String LINKS = "links";
+    private static final String TEXTS = "texts";
+    private static final String NEXT = "next";
+    private static final String HANDLERS = "handlers";
+    private static final String DONE = "done";
+    private static final int MAX_JS_LINK_RELOADS = 20;
+    private static final long NETWORK_IDLE_TIME = 500;
+    private static final long SCRIPT_TIMEOUT_MARGIN = 5000;
+
+    /**
+     * Resolves as soon as arguments[0] matches an element, watching the page
+     * for changes, or with false once arguments[1] milliseconds passed
+     */
+    private static final String WAIT_FOR_SELECTOR_SCRIPT = "var selector = arguments[0], timeout = arguments[1], callback = arguments[arguments.length - 1];"
+            + "if (document.querySelector(selector)) { callback(true); return; }"
+            + "var timer, observer = new MutationObserver(function() {"
+            + "  if (document.querySelector(selector)) { observer.disconnect(); clearTimeout(timer); callback(true); }"
+            + "});"
+            + "timer = setTimeout(function() { observer.disconnect(); callback(false); }, timeout);"
+            + "observer.observe(document, { childList: true, subtree: true, attributes: true });";
+
+    /**
+     * Resolves once the document is loaded and no resource finished loading
+     * for arguments[1] milliseconds, or with false once arguments[0]
+     * milliseconds passed
+     */
+    private static final String WAIT_FOR_NETWORK_IDLE_SCRIPT = "var timeout = arguments[0], idleTime = arguments[1], callback = arguments[arguments.length - 1];"
+            + "var started = Date.now(), last = Date.now(), observer = null;"
+            + "if (window.PerformanceObserver) {"
+            + "  observer = new PerformanceObserver(function() { last = Date.now(); });"
+            + "  observer.observe({ entryTypes: ['resource'] });"
+            + "}"
+            + "var check = function() {"
+            + "  var now = Date.now();"
+            + "  if (document.readyState === 'complete' && now - last >= idleTime) { if (observer) { observer.disconnect(); } callback(true); }"
+            + "  else if (now - started >= timeout) { if (observer) { observer.disconnect(); } callback(false); }"
+            + "  else { setTimeout(check, 50); }"
+            + "};"
+            + "check();";
+
+    /**
+     * Collects the page source, the hrefs of all anchors and the text of the
+     * anchors without href in a single round trip
+     */
+    private static final String HARVEST_SCRIPT = "var links = [], texts = [];"
+            + "var anchors = document.getElementsByTagName('a');"
+            + "for (var i = 0; i < anchors.length; i++) {"
+            + "  var anchor = anchors[i];"
+            + "  if (anchor.hasAttribute('href')) { if (typeof anchor.href === 'string') { links.push(anchor.href); } }"
+            + "  else { texts.push(anchor.innerText || ''); }"
+            + "}"
+            + "var doctype = document.doctype ? new XMLSerializer().serializeToString(document.doctype) : '';"
+            + "return { source: doctype + document.documentElement.outerHTML, links: links, texts: texts };";
+
+    /**
+     * Clicks the visible anchors without href from arguments[0] on, recording
+     * where they lead instead of following them: history changes, window.open
+     * and, where the navigation api exists, any navigation are captured and
+     * cancelled. Anchors with the same handler and text are clicked once,
+     * arguments[1] holds the handlers already clicked. Without the navigation
+     * api the script stops after each click so a real navigation can be
+     * detected and undone by the caller.
+     */
+    private static final String DISCOVER_SCRIPT = "var next = arguments[0], handlers = arguments[1] || [], links = [];"
+            + "var record = function(u) { if (u !== undefined && u !== null && u !== '') { try { links.push(new URL(String(u), document.baseURI).href); } catch (e) { } } };"
+            + "var pushState = history.pushState, replaceState = history.replaceState, open = window.open;"
+            + "var intercept = function(e) { if (e.cancelable) { record(e.destination.url); e.preventDefault(); } };"
+            + "var navigation = window.navigation;"
+            + "history.pushState = function(s, t, u) { record(u); };"
+            + "history.replaceState = function(s, t, u) { record(u); };"
+            + "window.open = function(u) { record(u); return null; };"
+            + "if (navigation) { navigation.addEventListener('navigate', intercept); }"
+            + "var start = location.href, anchors = document.getElementsByTagName('a'), done = true;"
+            + "try {"
+            + "  for (; next < anchors.length; next++) {"
+            + "    var anchor = anchors[next];"
+            + "    if (anchor.hasAttribute('href') || anchor.getClientRects().length === 0) { continue; }"
+            + "    var handler = (anchor.getAttribute('onclick') || '') + '|' + (anchor.innerText || '');"
+            + "    if (handlers.indexOf(handler) >= 0) { continue; }"
+            + "    handlers.push(handler);"
+            + "    try { anchor.click(); } catch (e) { }"
+            + "    if (location.href !== start) { record(location.href); replaceState.call(history, history.state, '', start); }"
+            + "    if (!navigation) { next++; done = next >= anchors.length; break; }"
+            + "  }"
+            + "} finally {"
+            + "  history.pushState = pushState; history.replaceState = replaceState; window.open = open;"
+            + "  if (navigation) { navigation.removeEventListener('navigate', intercept); }"
+            + "}"
+            + "return { links: links, next: next, handlers: handlers, done: done };";
+
+    private int maxPagesPerSession;
+    private int maxTabsPerDriver;
+    private RenderingProfile renderingProfile;
+    private Map<String, WebDriverPool> webDriverPools = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxPagesPerSession
+     *            number of pages rendered by a web driver session before it is
+     *            replaced
+     * @param maxTabsPerDriver
+     *            number of pages rendered at the same time on each chrome
+     *            driver
+     */
+    public WebDriverController(int maxPagesPerSession, int maxTabsPerDriver, RenderingProfile renderingProfile) {
+
+        this.maxPagesPerSession = maxPagesPerSession;
+        this.maxTabsPerDriver = maxTabsPerDriver;
+        this.renderingProfile = renderingProfile;
+    }
+
+    /**
+     * @param maxWaitForCssSelector
+     *            maximum time in seconds to wait for the css selector or for
+     *            the network to be idle
+     * @return the rendered page, its bytes are null when the page is empty
+     * @throws WebDriverException
+     *             if the page failed to render, the session is then recycled
+     */
+    public WebDriverResult getURL(String url, String chromeDriver, String userAgent, String waitForCssSelector, Integer maxWaitForCssSelector, boolean waitForNetworkIdle, boolean enableJsLinks) throws MalformedURLException, WebDriverException, InterruptedException {
 
         WebDriverResult webDriverResult = new WebDriverResult();
-        WebDriver webDriver = getWebDriver(chromeDriver, userAgent);
+        WebDriverPool webDriverPool = getWebDriverPool(chromeDriver, userAgent);
+        WebDriverPool.Session session = webDriverPool.borrow();
+        WebDriver webDriver = session.getWebDriver();
+        boolean failed = false;
 
-        Set<String> childUrls = new HashSet<>();
         Set<String> unparsedJavascriptChildUrls = new HashSet<>();
 
         try {
 
-            webDriver.get(url);
+            try {
+                webDriver.get(url);
 
-            if (waitForCssSelector != null) {
+            } catch (TimeoutException e) {
 
-                List<WebElement> webElement = webDriver.findElements(By.cssSelector(waitForCssSelector));
-                int x = 0;
+                // Keep what was rendered within the render time
+                LOGGER.info("Page {} did not load within {} ms, stopping it", url, renderingProfile.getMaxRenderTime());
+                ((JavascriptExecutor) webDriver).executeScript("window.stop();");
+            }
 
-                while (webElement.isEmpty()) {
+            if (waitForCssSelector != null || waitForNetworkIdle) {
+                waitForPage(url, webDriver, waitForCssSelector, maxWaitForCssSelector, waitForNetworkIdle);
+            }
 
-                    Thread.sleep(1000);
-                    webElement = webDriver.findElements(By.cssSelector(waitForCssSelector));
-                    LOGGER.info("Waiting for css selector {} to appear on page {}", waitForCssSelector, url);
+            /*
+             * Extract the content and all child urls
+             */
+            try {
+                unparsedJavascriptChildUrls = harvest(webDriver, webDriverResult);
 
-                    if (x > maxWaitForCssSelector) {
-                        LOGGER.info("Could not find css selector {} on page {}", waitForCssSelector, url);
-                        break;
-                    }
+            } catch (JavascriptException e) {
+                LOGGER.warn("Failed to harvest page {} with a script, reading the elements one by one", url, e);
+                unparsedJavascriptChildUrls = harvestElements(webDriver, webDriverResult);
+            }
 
-                    x++;
+            if (enableJsLinks && !unparsedJavascriptChildUrls.isEmpty()) {
+                webDriverResult.getUrls().addAll(getJsLinks(url, webDriver));
+            }
 
-                }
+        } catch (Exception e) {
+            failed = true;
+            throw new WebDriverException("Failed to retrieve page " + url, e);
 
-            }
+        } finally {
+            webDriverPool.release(session, failed);
+        }
 
-            /*
-             * Extract the content
-             */
+        return webDriverResult;
+    }
 
-            String content = webDriver.getPageSource();
+    /**
+     * Waits inside the page for the css selector to appear and then, or
+     * instead, for the network to be idle. Each wait is a single asynchronous
+     * script returning as soon as its condition is met.
+     */
+    private void waitForPage(String url, WebDriver webDriver, String waitForCssSelector, Integer maxWaitForCssSelector, boolean waitForNetworkIdle) {
 
-            if (content == null || content.isEmpty()) {
-                LOGGER.error("Current url {} is empty or null", url);
-            } else {
-                webDriverResult.setBytes(content.getBytes());
-            }
+        long timeout = TimeUnit.SECONDS.toMillis(maxWaitForCssSelector);
+        webDriver.manage().timeouts().setScriptTimeout(timeout + SCRIPT_TIMEOUT_MARGIN, TimeUnit.MILLISECONDS);
 
-            /*
-             * Find all child urls
-             */
-            List<WebElement> webElements = webDriver.findElements(By.tagName("a"));
+        try {
 
-            childUrls = webElements.stream().filter(h -> h.getAttribute("href") != null).map(h -> h.getAttribute("href")).collect(Collectors.toSet());
+            if (waitForCssSelector != null) {
 
-            unparsedJavascriptChildUrls = webElements.stream()
-                    .filter(h -> h.getAttribute("href") == null)
-                    .map(WebElement::getText).collect(Collectors.toSet());
+                Object found = ((JavascriptExecutor) webDriver).executeAsyncScript(WAIT_FOR_SELECTOR_SCRIPT, waitForCssSelector, timeout);
 
-        } catch (Exception e) {
-            LOGGER.error("Failed to retrieve page {}", url, e);
-        } finally {
+                if (!Boolean.TRUE.equals(found)) {
+                    LOGGER.info("Could not find css selector {} on page {}", waitForCssSelector, url);
+                }
+            }
 
-            try {
-                webDriver.quit();
-            } catch (JsonException e) {
-                LOGGER.warn("Failed to close webDriver");
+            if (waitForNetworkIdle) {
+
+                Object idle = ((JavascriptExecutor) webDriver).executeAsyncScript(WAIT_FOR_NETWORK_IDLE_SCRIPT, timeout, NETWORK_IDLE_TIME);
+
+                if (!Boolean.TRUE.equals(idle)) {
+                    LOGGER.info("Network not idle after {} ms on page {}", timeout, url);
+                }
             }
-        }
 
-        if (enableJsLinks) {
-            Set<String> newChildUrls = getJsLinks(url, chromeDriver, userAgent, unparsedJavascriptChildUrls);
-            childUrls.addAll(newChildUrls);
+        } catch (ScriptTimeoutException | JavascriptException e) {
+            LOGGER.info("Failed to wait for page {}", url, e);
         }
+    }
 
-        webDriverResult.setUrls(childUrls);
+    /**
+     * Reads the page source and the child urls with a single script
+     *
+     * @return the text of the anchors without href, candidates for javascript
+     *         links
+     */
+    @SuppressWarnings("unchecked")
+    private Set<String> harvest(WebDriver webDriver, WebDriverResult webDriverResult) {
 
-        return webDriverResult;
-    }
+        Object harvested = ((JavascriptExecutor) webDriver).executeScript(HARVEST_SCRIPT);
 
-    private Set<String> getJsLinks(String url, String chromeDriver, String userAgent, Set<String> unparsedJavascriptChildUrls) throws WebDriverException, MalformedURLException {
+        if (!(harvested instanceof Map)) {
+            throw new JavascriptException("Unexpected harvest result " + harvested);
+        }
 
-        Set<String> childUrls = new HashSet<>();
+        Map<String, Object> harvest = (Map<String, Object>) harvested;
+        String content = (String) harvest.get(SOURCE);
 
-        for (String childUrlText : unparsedJavascriptChildUrls) {
+        if (content != null && !content.isEmpty()) {
+            webDriverResult.setBytes(content.getBytes());
+        }
 
-            WebDriver webDriverForChild = getWebDriver(chromeDriver, userAgent);
+        webDriverResult.setUrls(toStrings(harvest.get(LINKS)));
 
-            try {
+        return toStrings(harvest.get(TEXTS));
+    }
 
-                webDriverForChild.get(url);
-                List<WebElement> webElementsChild = webDriverForChild.findElements(By.tagName("a"));
+    /**
+     * Reads the page source and the child urls element by element, one round
+     * trip per call
+     */
+    private Set<String> harvestElements(WebDriver webDriver, WebDriverResult webDriverResult) {
 
-                WebElement webElement = webElementsChild.stream()
-                        .filter(h -> h.getAttribute("href") == null)
-                        .filter(h -> h.isDisplayed() && h.isEnabled())
-                        .filter(h -> h.getText().equals(childUrlText))
-                        .findFirst().orElse(null);
+        String content = webDriver.getPageSource();
 
-                if (webElement != null) {
+        if (content != null && !content.isEmpty()) {
+            webDriverResult.setBytes(content.getBytes());
+        }
 
-                    webElement.click();
-                    String childUrl = webDriverForChild.getCurrentUrl();
-                    LOGGER.info("Javascript child url detected {}", childUrl);
+        List<WebElement> webElements = webDriver.findElements(By.tagName("a"));
 
-                    childUrls.add(childUrl);
+        webDriverResult.setUrls(webElements.stream().filter(h -> h.getAttribute("href") != null).map(h -> h.getAttribute("href")).collect(Collectors.toSet()));
 
-                }
+        return webElements.stream()
+                .filter(h -> h.getAttribute("href") == null)
+                .map(WebElement::getText).collect(Collectors.toSet());
+    }
 
-            } catch (Exception e) {
-                LOGGER.error("Failed to retrieve child page {}", childUrlText);
-            } finally {
+    private static Set<String> toStrings(Object values) {
 
-                try {
-                    webDriverForChild.quit();
-                } catch (JsonException e) {
-                    LOGGER.warn("Failed to close webDriverForChild");
-                }
-            }
+        if (!(values instanceof Collection)) {
+            return new HashSet<>();
         }
 
-        return childUrls;
+        return ((Collection<?>) values).stream().filter(Objects::nonNull).map(Object::toString).collect(Collectors.toSet());
     }
 
-    private WebDriver getWebDriver(String chromeDriver, String userAgent) throws WebDriverException, MalformedURLException {
+    /**
+     * Quits all the pooled web driver sessions
+     */
+    public void close() {
 
-        WebDriver webDriver = null;
+        webDriverPools.values().stream().forEach(WebDriverPool::close);
+        webDriverPools.clear();
+    }
 
-        if (StringUtils.isEmpty(chromeDriver)) {
+    /**
+     * Discovers the urls behind the javascript anchors of the loaded page in
+     * the same session. The page is only loaded again when a click really
+     * navigated away.
+     */
+    @SuppressWarnings("unchecked")
+    private Set<String> getJsLinks(String url, WebDriver webDriver) {
 
-            throw new WebDriverException("You need to specify a valid chrome driver. Either the path to the executable or a browserless/chrome instance");
+        Set<String> childUrls = new HashSet<>();
+        List<Object> handlers = new ArrayList<>();
+        long next = 0;
+        int reloads = 0;
+        String pageUrl = url;
 
-        } else if (chromeDriver.startsWith("http")) {
+        try {
+
+            pageUrl = webDriver.getCurrentUrl();
+
+            while (true) {
 
-            ChromeOptions chromeOptions = new ChromeOptions();
-            chromeOptions.addArguments("--headless");
-            chromeOptions.addArguments("--no-sandbox");
-            Optional.ofNullable(userAgent)
-                    .filter(StringUtils::isNotBlank)
-                    .ifPresent(ua -> chromeOptions.addArguments("user-agent=" + ua));
+                Object discovered = ((JavascriptExecutor) webDriver).executeScript(DISCOVER_SCRIPT, next, handlers);
+
+                if (!(discovered instanceof Map)) {
+                    break;
+                }
 
-            webDriver = new RemoteWebDriver(new URL(chromeDriver), chromeOptions);
+                Map<String, Object> discovery = (Map<String, Object>) discovered;
+                childUrls.addAll(toStrings(discovery.get(LINKS)));
+                handlers = new ArrayList<>((Collection<Object>) discovery.get(HANDLERS));
+                next = ((Number) discovery.get(NEXT)).longValue();
 
-        } else {
+                String currentUrl = webDriver.getCurrentUrl();
 
-            Path chrome = Paths.get(chromeDriver);
-            Boolean isExecutable = chrome.toFile().setExecutable(true);
+                if (!pageUrl.equals(currentUrl)) {
+
+                    // The click left the page, go back to it for the next one
+                    childUrls.add(currentUrl);
+
+                    if (reloads++ >= MAX_JS_LINK_RELOADS) {
+                        LOGGER.warn("Too many javascript navigations on page {}, stopping", url);
+                        break;
+                    }
 
-            if (isExecutable) {
-                LOGGER.info("set {} to be executable", chromeDriver);
+                    webDriver.get(pageUrl);
+                }
+
+                if (Boolean.TRUE.equals(discovery.get(DONE))) {
+                    break;
+                }
             }
 
-            System.setProperty("webdriver.chrome.driver", chrome.toAbsolutePath().toString());
+        } catch (Exception e) {
+            LOGGER.error("Failed to discover javascript links of page {}", url, e);
+        }
 
-            ChromeOptions chromeOptions = new ChromeOptions();
-            chromeOptions.addArguments("--headless");
-            chromeOptions.addArguments("--no-sandbox");
-            chromeOptions.addArguments("--disable-dev-shm-usage");
-            Optional.ofNullable(userAgent)
-                    .filter(StringUtils::isNotBlank)
-                    .ifPresent(ua -> chromeOptions.addArguments("user-agent=" + ua));
+        childUrls.remove(url);
+        childUrls.remove(pageUrl);
+        childUrls.stream().forEach(childUrl -> LOGGER.info("Javascript child url detected {}", childUrl));
 
-            webDriver = new ChromeDriver(chromeOptions);
+        return childUrls;
+    }
 
-            // https://github.com/seleniumhq/selenium-google-code-issue-archive/issues/27
-            ((JavascriptExecutor) webDriver).executeScript("window.alert = function(msg) { }");
-            ((JavascriptExecutor) webDriver).executeScript("window.confirm = function(msg) { }");
+    private WebDriverPool getWebDriverPool(String chromeDriver, String userAgent) throws WebDriverException {
 
+        if (chromeDriver == null) {
+            throw new WebDriverException("You need to specify a valid chrome driver. Either the path to the executable or a browserless/chrome instance");
         }
 
-        return webDriver;
+        return webDriverPools.computeIfAbsent(chromeDriver, driver -> new WebDriverPool(driver, userAgent, maxPagesPerSession, maxTabsPerDriver, renderingProfile));
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,364 @@
+package eu.wajja.web.fetcher.controller;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.chrome.ChromeDriver;
+import org.openqa.selenium.chrome.ChromeOptions;
+import org.openqa.selenium.chromium.ChromiumDriver;
+import org.openqa.selenium.remote.Command;
+import org.openqa.selenium.remote.CommandInfo;
+import org.openqa.selenium.remote.HttpCommandExecutor;
+import org.openqa.selenium.remote.RemoteWebDriver;
+import org.openqa.selenium.remote.Response;
+import org.openqa.selenium.remote.http.HttpMethod;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.wajja.web.fetcher.enums.ResourceType;
+import eu.wajja.web.fetcher.exception.WebDriverException;
+import eu.wajja.web.fetcher.model.RenderingProfile;
+
+/**
+ * Long lived web driver sessions of a single chrome driver entry. Starting a
+ * chrome process or a browserless session takes seconds, so sessions are kept
+ * between pages and only reset: cookies and storage are cleared and the
+ * session is parked on about:blank.
+ * <p>
+ * A session is recycled after a number of pages, after any failure and when it
+ * does not answer the health check made before reusing a session that sat idle.
+ * Every session is started with the {@link RenderingProfile}.
+ * <p>
+ * Up to maxSessions sessions of the same chrome driver render pages at the
+ * same time, each one being its own browser context. Borrowing waits while
+ * all of them are in use.
+ */
+public class WebDriverPool implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WebDriverPool.class);
+
+    private static final String BLANK_PAGE = "about:blank";
+    private static final String CLEAR_STORAGE_SCRIPT = "try { window.localStorage.clear(); window.sessionStorage.clear(); } catch (e) { }";
+    private static final long HEALTH_CHECK_IDLE_TIME = 30000;
+    private static final String EXECUTE_CDP_COMMAND = "executeCdpCommand";
+    private static final String CDP_COMMAND_PATH = "/session/:sessionId/goog/cdp/execute";
+
+    private String chromeDriver;
+    private String userAgent;
+    private int maxPagesPerSession;
+    private RenderingProfile renderingProfile;
+    private Semaphore sessions;
+
+    private Deque<Session> idleSessions = new ArrayDeque<>();
+    private boolean closed = false;
+
+    /**
+     * @param maxPagesPerSession
+     *            number of pages rendered by a session before it is replaced
+     *            by a fresh one
+     * @param maxSessions
+     *            number of sessions in use at the same time
+     */
+    public WebDriverPool(String chromeDriver, String userAgent, int maxPagesPerSession, int maxSessions, RenderingProfile renderingProfile) {
+
+        this.chromeDriver = chromeDriver;
+        this.userAgent = userAgent;
+        this.maxPagesPerSession = Math.max(1, maxPagesPerSession);
+        this.sessions = new Semaphore(Math.max(1, maxSessions), true);
+        this.renderingProfile = renderingProfile;
+    }
+
+    /**
+     * Takes an idle session or starts a new one, waiting while all the
+     * sessions are in use. Every session taken must be handed back with
+     * {@link #release(Session, boolean)}.
+     */
+    public Session borrow() throws WebDriverException, MalformedURLException, InterruptedException {
+
+        sessions.acquire();
+
+        try {
+
+            Session session;
+
+            while ((session = pollIdle()) != null) {
+
+                if (System.currentTimeMillis() - session.lastUsed < HEALTH_CHECK_IDLE_TIME || isHealthy(session)) {
+                    return session;
+                }
+
+                LOGGER.info("Web driver session of {} failed its health check, replacing it", chromeDriver);
+                quit(session);
+            }
+
+            WebDriver webDriver = getWebDriver();
+
+            try {
+                applyRenderingProfile(webDriver);
+
+            } catch (RuntimeException e) {
+                quit(webDriver);
+                throw e;
+            }
+
+            return new Session(webDriver);
+
+        } catch (WebDriverException | MalformedURLException | RuntimeException e) {
+            sessions.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Hands a session back to the pool, resetting it for the next page
+     *
+     * @param failed
+     *            true if the session failed while in use, it is then quit
+     *            instead of reused
+     */
+    public void release(Session session, boolean failed) {
+
+        if (session == null) {
+            return;
+        }
+
+        // The permit is only given back once the session is reset or quit,
+        // a waiting borrow would otherwise start one session too many
+        try {
+
+            session.pages++;
+
+            if (failed || session.pages >= maxPagesPerSession || !reset(session)) {
+                quit(session);
+                return;
+            }
+
+            session.lastUsed = System.currentTimeMillis();
+
+            synchronized (this) {
+
+                if (!closed) {
+                    idleSessions.push(session);
+                    return;
+                }
+            }
+
+            quit(session);
+
+        } finally {
+            sessions.release();
+        }
+    }
+
+    /**
+     * Quits all the idle sessions, sessions still in use are quit when they
+     * are released
+     */
+    @Override
+    public void close() {
+
+        Deque<Session> sessions;
+
+        synchronized (this) {
+            closed = true;
+            sessions = idleSessions;
+            idleSessions = new ArrayDeque<>();
+        }
+
+        sessions.stream().forEach(this::quit);
+    }
+
+    private synchronized Session pollIdle() {
+
+        return idleSessions.poll();
+    }
+
+    private boolean reset(Session session) {
+
+        try {
+
+            WebDriver webDriver = session.getWebDriver();
+            ((JavascriptExecutor) webDriver).executeScript(CLEAR_STORAGE_SCRIPT);
+            webDriver.manage().deleteAllCookies();
+            webDriver.get(BLANK_PAGE);
+
+            return true;
+
+        } catch (Exception e) {
+            LOGGER.warn("Failed to reset web driver session of {}", chromeDriver, e);
+        }
+
+        return false;
+    }
+
+    private boolean isHealthy(Session session) {
+
+        try {
+            return session.getWebDriver().getWindowHandles() != null;
+
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void quit(Session session) {
+
+        quit(session.getWebDriver());
+    }
+
+    private void quit(WebDriver webDriver) {
+
+        try {
+            webDriver.quit();
+
+        } catch (Exception e) {
+            LOGGER.warn("Failed to close webDriver of {}", chromeDriver);
+        }
+    }
+
+    /**
+     * Caps the page load time and blocks the unwanted resources through the
+     * chrome devtools protocol, for the whole life of the session
+     */
+    private void applyRenderingProfile(WebDriver webDriver) {
+
+        webDriver.manage().timeouts().pageLoadTimeout(renderingProfile.getMaxRenderTime(), TimeUnit.MILLISECONDS);
+
+        List<String> blockedUrls = renderingProfile.getBlockedUrls();
+
+        if (blockedUrls.isEmpty()) {
+            return;
+        }
+
+        try {
+
+            executeCdpCommand(webDriver, "Network.enable", new HashMap<>());
+            executeCdpCommand(webDriver, "Network.setBlockedURLs", Collections.singletonMap("urls", blockedUrls));
+
+        } catch (Exception e) {
+            LOGGER.warn("Chrome driver {} does not allow blocking urls, only the chrome options apply", chromeDriver, e);
+        }
+    }
+
+    private void executeCdpCommand(WebDriver webDriver, String command, Map<String, Object> parameters) throws IOException {
+
+        if (webDriver instanceof ChromiumDriver) {
+            ((ChromiumDriver) webDriver).executeCdpCommand(command, parameters);
+            return;
+        }
+
+        RemoteWebDriver remoteWebDriver = (RemoteWebDriver) webDriver;
+
+        Map<String, Object> cdpCommand = new HashMap<>();
+        cdpCommand.put("cmd", command);
+        cdpCommand.put("params", parameters);
+
+        Response response = remoteWebDriver.getCommandExecutor().execute(new Command(remoteWebDriver.getSessionId(), EXECUTE_CDP_COMMAND, cdpCommand));
+
+        if (response.getStatus() != null && response.getStatus() != 0) {
+            throw new IOException("Failed to execute " + command + " : " + response.getValue());
+        }
+    }
+
+    private void addRenderingOptions(ChromeOptions chromeOptions) {
+
+        if (renderingProfile.isBlocked(ResourceType.image)) {
+            chromeOptions.addArguments("--blink-settings=imagesEnabled=false");
+        }
+
+        if (renderingProfile.isBlocked(ResourceType.font)) {
+            chromeOptions.addArguments("--disable-remote-fonts");
+        }
+    }
+
+    private WebDriver getWebDriver() throws WebDriverException, MalformedURLException {
+
+        WebDriver webDriver = null;
+
+        if (StringUtils.isEmpty(chromeDriver)) {
+
+            throw new WebDriverException("You need to specify a valid chrome driver. Either the path to the executable or a browserless/chrome instance");
+
+        } else if (chromeDriver.startsWith("http")) {
+
+            ChromeOptions chromeOptions = new ChromeOptions();
+            chromeOptions.addArguments("--headless");
+            chromeOptions.addArguments("--no-sandbox");
+            addRenderingOptions(chromeOptions);
+            Optional.ofNullable(userAgent)
+                    .filter(StringUtils::isNotBlank)
+                    .ifPresent(ua -> chromeOptions.addArguments("user-agent=" + ua));
+
+            // The devtools command is not part of the webdriver protocol
+            Map<String, CommandInfo> cdpCommands = Collections.singletonMap(EXECUTE_CDP_COMMAND, new CommandInfo(CDP_COMMAND_PATH, HttpMethod.POST));
+            webDriver = new RemoteWebDriver(new HttpCommandExecutor(cdpCommands, new URL(chromeDriver)), chromeOptions);
+
+        } else {
+
+            Path chrome = Paths.get(chromeDriver);
+            Boolean isExecutable = chrome.toFile().setExecutable(true);
+
+            if (isExecutable) {
+                LOGGER.info("set {} to be executable", chromeDriver);
+            }
+
+            System.setProperty("webdriver.chrome.driver", chrome.toAbsolutePath().toString());
+
+            ChromeOptions chromeOptions = new ChromeOptions();
+            chromeOptions.addArguments("--headless");
+            chromeOptions.addArguments("--no-sandbox");
+            chromeOptions.addArguments("--disable-dev-shm-usage");
+            addRenderingOptions(chromeOptions);
+            Optional.ofNullable(userAgent)
+                    .filter(StringUtils::isNotBlank)
+                    .ifPresent(ua -> chromeOptions.addArguments("user-agent=" + ua));
+
+            webDriver = new ChromeDriver(chromeOptions);
+
+            // https://github.com/seleniumhq/selenium-google-code-issue-archive/issues/27
+            ((JavascriptExecutor) webDriver).executeScript("window.alert = function(msg) { }");
+            ((JavascriptExecutor) webDriver).executeScript("window.confirm = function(msg) { }");
+
+        }
+
+        LOGGER.info("Started web driver session on {}", chromeDriver);
+
+        return webDriver;
+    }
+
+    /**
+     * A web driver with the number of pages it rendered so far
+     */
+    public static class Session {
+
+        private WebDriver webDriver;
+        private int pages = 0;
+        private long lastUsed = System.currentTimeMillis();
+
+        private Session(WebDriver webDriver) {
+
+            this.webDriver = webDriver;
+        }
+
+        public WebDriver getWebDriver() {
+
+            return webDriver;
+        }
+    }
+}
@@ -1,26 +1,34 @@
 package eu.wajja.web.fetcher.elasticsearch;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.codec.digest.DigestUtils;
-import org.elasticsearch.action.admin.indices.flush.FlushRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
 import org.elasticsearch.action.bulk.BackoffPolicy;
 import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.search.ClearScrollRequest;
-import org.elasticsearch.action.search.ClearScrollResponse;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchScrollRequest;
@@ -35,27 +43,41 @@ import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
 import org.elasticsearch.search.Scroll;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
 import org.elasticsearch.search.sort.SortOrder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import eu.wajja.web.fetcher.enums.Status;
 import eu.wajja.web.fetcher.enums.SubStatus;
 import eu.wajja.web.fetcher.model.Result;
+import eu.wajja.web.fetcher.services.BlobStore;
+import eu.wajja.web.fetcher.state.CrawlStateStore;
+import eu.wajja.web.fetcher.state.ResultStream;
 
-public class ElasticSearchService {
+public class ElasticSearchService implements CrawlStateStore {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ElasticSearchService.class);
     private static final Scroll scroll = new Scroll(TimeValue.timeValueHours(1l));;
+    private static final Scroll sliceScroll = new Scroll(TimeValue.timeValueMinutes(5));
 
     private static final String INDEX_SHARDS = "index.number_of_shards";
     private static final String INDEX_NUMBER_OF_REPLICAS = "index.number_of_replicas";
+    private static final TypeReference<Map<String, List<String>>> HEADERS_TYPE = new TypeReference<Map<String, List<String>>>() {};
+    private static final TypeReference<Set<String>> CHILD_URLS_TYPE = new TypeReference<Set<String>>() {};
     private ObjectMapper objectMapper = new ObjectMapper();
 
     private static final String CODE = "code";
@@ -63,10 +85,12 @@ public class ElasticSearchService {
     private static final String CONTENT_TYPE = "contentType";
     private static final String CONTENT = "content";
     private static final String CONTENT_MD5 = "contentMd5";
+    private static final String CONTENT_HASH = "contentHash";
     private static final String CONTENT_SIZE = "contentSize";
     private static final String MESSAGE = "message";
     private static final String REASON = "reason";
     private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "lastModified";
     private static final String ROOT_URL = "rootUrl";
     private static final String URL = "url";
     private static final String HEADERS = "headers";
@@ -75,6 +99,24 @@ public class ElasticSearchService {
     private static final String SUB_STATUS = "subStatus";
     private static final String JOB_ID = "jobId";
     private static final String CHILD_URLS = "childUrls";
+    private static final String RETRY_COUNT = "retryCount";
+    private static final String NEXT_ATTEMPT = "nextAttempt";
+    private static final int DUE_RETRIES_SIZE = 1000;
+    private static final int STREAM_BUFFER_SIZE = 1000;
+    private static final long BULK_WAIT = 60000;
+
+    // Every site has its own state index, they all may share the blob store
+    private static final String STATE_INDEX_PATTERN = "logstash_web_fetcher_*";
+
+    private static final String CHILD_URL_REASON = "Found on parent page";
+    private static final String QUEUE_CHILD_URL_SCRIPT = "if (ctx._source.jobId == params.jobId "
+            + "|| ctx._source.status == '" + Status.retry.name() + "' || ctx._source.status == '" + Status.dead.name() + "') { ctx.op = 'noop' } else { "
+            + "ctx._source.status = params.status; ctx._source.subStatus = params.subStatus; "
+            + "ctx._source.reason = params.reason; ctx._source.jobId = params.jobId }";
+
+    private static final String[] VALIDATOR_FIELDS = { URL, ROOT_URL, REFERRER, CONTENT_TYPE, CODE, MESSAGE, CONTENT_SIZE, CONTENT_MD5, ETAG, LAST_MODIFIED, HEADERS, CHILD_URLS };
+    private static final String[] STATE_FIELDS = { URL, ROOT_URL, STATUS, SUB_STATUS };
+    private static final String[] CONTENT_FIELDS = { CONTENT, CONTENT_HASH, CONTENT_TYPE };
 
     private static final String MAPPINGS = "mappings";
     private static final String TYPE = "type";
@@ -83,8 +125,19 @@ public class ElasticSearchService {
     private static final String PROPERTIES = "properties";
 
     private RestHighLevelClient restHighLevelClient;
-    private ExecutorService executor = Executors.newSingleThreadExecutor();
+    private ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "webfetcher-state-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private int readPageSize = 1000;
+    private int readSlices = 1;
     private BulkProcessor bulkProcessor;
+    private Map<String, SeenUrlFilter> seenUrlFilters = new ConcurrentHashMap<>();
+    private StateOverlay stateOverlay = new StateOverlay();
+    private Object bulkLock = new Object();
+    private int pendingBulks = 0;
+    private BlobStore blobStore;
 
     public ElasticSearchService(List<String> hostnames, String username, String password, String proxyScheme, String proxyHostname, Long proxyPort, String proxyUsername, String proxyPassword) {
 
@@ -95,6 +148,10 @@ public class ElasticSearchService {
             @Override
             public void beforeBulk(long executionId, BulkRequest request) {
 
+                synchronized (bulkLock) {
+                    pendingBulks++;
+                }
+
                 LOGGER.info("Sending Queue Bulk Ingestion Request : {}, with documents : {}", executionId, request.numberOfActions());
 
                 request.requests().stream().forEach(r -> {
@@ -108,13 +165,14 @@ public class ElasticSearchService {
             public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
 
                 LOGGER.error("Failed Queue Bulk Ingestion Request : {}, Error : {}", executionId, failure.getLocalizedMessage());
+                bulkDone();
             }
 
             @Override
             public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
 
                 LOGGER.info("Finished Queue Bulk Ingestion Request : {}", executionId);
-
+                bulkDone();
             }
         };
 
@@ -122,12 +180,36 @@ public class ElasticSearchService {
                 .setBulkActions(100)
                 .setConcurrentRequests(3)
                 .setBulkSize(new ByteSizeValue(30, ByteSizeUnit.MB))
-                .setFlushInterval(TimeValue.timeValueSeconds(30))
+                .setFlushInterval(TimeValue.timeValueSeconds(1))
                 .setBackoffPolicy(BackoffPolicy.exponentialBackoff(TimeValue.timeValueMillis(100), 3))
                 .build();
 
     }
 
+    /**
+     * @param readPageSize
+     *            number of urls read from the state index per request
+     * @param readSlices
+     *            number of slices the state index is read with in parallel
+     */
+    public void setReadOptions(int readPageSize, int readSlices) {
+
+        this.readPageSize = Math.max(1, readPageSize);
+        this.readSlices = Math.max(1, readSlices);
+    }
+
+    /**
+     * Keeps the page bodies in the blob store, the state index then only
+     * stores their hash. Without a blob store the bodies are stored in the
+     * state index.
+     */
+    @Override
+    public void setBlobStore(BlobStore blobStore) {
+
+        this.blobStore = blobStore;
+    }
+
+    @Override
     public void checkIndex(String index) {
 
         try {
@@ -151,6 +233,7 @@ public class ElasticSearchService {
                     xBuilder.startObject(CODE).field(TYPE, KEYWORD).endObject();
                     xBuilder.startObject(CONTENT_TYPE).field(TYPE, KEYWORD).endObject();
                     xBuilder.startObject(CONTENT_SIZE).field(TYPE, NUMERIC).endObject();
+                    xBuilder.startObject(CONTENT_HASH).field(TYPE, KEYWORD).endObject();
                     xBuilder.startObject(MESSAGE).field(TYPE, KEYWORD).endObject();
                     xBuilder.startObject(ROOT_URL).field(TYPE, KEYWORD).endObject();
                     xBuilder.startObject(URL).field(TYPE, KEYWORD).endObject();
@@ -158,6 +241,8 @@ public class ElasticSearchService {
                     xBuilder.startObject(MODIFIED_DATE).field(TYPE, NUMERIC).endObject();
                     xBuilder.startObject(STATUS).field(TYPE, KEYWORD).endObject();
                     xBuilder.startObject(JOB_ID).field(TYPE, KEYWORD).endObject();
+                    xBuilder.startObject(RETRY_COUNT).field(TYPE, NUMERIC).endObject();
+                    xBuilder.startObject(NEXT_ATTEMPT).field(TYPE, NUMERIC).endObject();
 
                     xBuilder.endObject();
                     xBuilder.endObject();
@@ -179,23 +264,71 @@ public class ElasticSearchService {
         }
     }
 
+    /**
+     * Sends the buffered writes, waits for every bulk in flight and refreshes
+     * the index so searches see them. Only needed where a search has to read
+     * what was just written, reads by id are served by elasticsearch in real
+     * time and the retry counts and content hashes not refreshed yet by the
+     * overlay.
+     */
+    @Override
     public void flushIndex(String index) {
 
         try {
 
-            bulkProcessor.flush();
+            long mark = stateOverlay.mark();
 
-            FlushRequest flushRequest = new FlushRequest(index);
-            flushRequest.force(true);
+            bulkProcessor.flush();
+            awaitBulks();
 
-            restHighLevelClient.indices().flush(flushRequest, RequestOptions.DEFAULT);
+            restHighLevelClient.indices().refresh(new RefreshRequest(index), RequestOptions.DEFAULT);
+            stateOverlay.refreshed(index, mark);
 
         } catch (IOException e) {
 
-            e.printStackTrace();
+            LOGGER.error("Failed to refresh index {}", index, e);
+
+        } catch (InterruptedException e) {
+
+            LOGGER.warn("Interrupted while waiting for bulks of {}", index);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void bulkDone() {
+
+        synchronized (bulkLock) {
+            pendingBulks--;
+            bulkLock.notifyAll();
         }
     }
 
+    private void awaitBulks() throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + BULK_WAIT;
+
+        synchronized (bulkLock) {
+
+            while (pendingBulks > 0) {
+
+                long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining <= 0) {
+                    LOGGER.warn("Still {} bulks in flight after {} ms", pendingBulks, BULK_WAIT);
+                    return;
+                }
+
+                bulkLock.wait(remaining);
+            }
+        }
+    }
+
+    private SeenUrlFilter getSeenUrlFilter(String index) {
+
+        return seenUrlFilters.computeIfAbsent(index, i -> new SeenUrlFilter());
+    }
+
+    @Override
     public void updateStatus(String url, String index, Status status, SubStatus subStatus, String message) {
 
         String id = Base64.getEncoder().encodeToString(url.replace("https://", "").replace("http://", "").getBytes());
@@ -221,30 +354,31 @@ public class ElasticSearchService {
 
     }
 
+    @Override
     public void addNewUrl(Result result, String jobId, String index, Status status, SubStatus subStatus, String message) {
 
         String id = Base64.getEncoder().encodeToString(result.getUrl().replace("https://", "").replace("http://", "").getBytes());
 
-        IndexRequest indexRequest = new IndexRequest(index);
-        indexRequest.id(id);
-
         try (XContentBuilder contentBuilder = XContentFactory.jsonBuilder()) {
 
             contentBuilder.startObject();
 
+            String md5 = null;
+
             if (result.getContent() != null) {
 
-                String content;
+                md5 = DigestUtils.md5Hex(result.getContent());
+                contentBuilder.field(CONTENT_MD5, md5);
+
+                if (blobStore != null) {
+                    contentBuilder.field(CONTENT_HASH, blobStore.put(result.getContent()));
+
+                } else if (result.getContentType().contains("html")) {
+                    contentBuilder.field(CONTENT, new String(result.getContent()));
 
-                if (result.getContentType().contains("html")) {
-                    content = new String(result.getContent());
                 } else {
-                    content = Base64.getEncoder().encodeToString(result.getContent());
+                    contentBuilder.field(CONTENT, Base64.getEncoder().encodeToString(result.getContent()));
                 }
-
-                String md5 = DigestUtils.md5Hex(result.getContent());
-                contentBuilder.field(CONTENT_MD5, md5);
-                contentBuilder.field(CONTENT, content);
             }
 
             Map<String, List<String>> map = new HashMap<>();
@@ -264,11 +398,30 @@ public class ElasticSearchService {
             contentBuilder.field(REASON, message);
             contentBuilder.field(REFERRER, result.getReferrer());
             contentBuilder.field(ETAG, result.geteTag());
+            contentBuilder.field(LAST_MODIFIED, result.getLastModified());
             contentBuilder.field(CHILD_URLS, objectMapper.writeValueAsString(result.getChildUrls()));
+            contentBuilder.field(RETRY_COUNT, 0);
             contentBuilder.endObject();
 
-            indexRequest.source(contentBuilder);
-            bulkProcessor.add(indexRequest);
+            if (result.isCached() && result.getContent() == null) {
+
+                // Not modified, keep the stored content and only update the
+                // rest
+                UpdateRequest updateRequest = new UpdateRequest(index, id);
+                updateRequest.doc(contentBuilder);
+                bulkProcessor.add(updateRequest);
+                stateOverlay.update(index, id, null, 0);
+
+            } else {
+
+                IndexRequest indexRequest = new IndexRequest(index);
+                indexRequest.id(id);
+                indexRequest.source(contentBuilder);
+                bulkProcessor.add(indexRequest);
+                stateOverlay.replace(index, id, md5, 0);
+            }
+
+            getSeenUrlFilter(index).markSeenByJob(id);
 
         } catch (IOException e) {
             LOGGER.error("Failed to addNewUrl to index", e);
@@ -279,6 +432,39 @@ public class ElasticSearchService {
         }
     }
 
+    /**
+     * Writes the status of a url kept in another state store, the rest of the
+     * document is left untouched
+     */
+    public void mirrorUrl(Result result, String index) {
+
+        String id = Base64.getEncoder().encodeToString(result.getUrl().replace("https://", "").replace("http://", "").getBytes());
+
+        UpdateRequest updateRequest = new UpdateRequest(index, id);
+
+        try (XContentBuilder contentBuilder = XContentFactory.jsonBuilder()) {
+
+            contentBuilder.startObject();
+
+            contentBuilder.field(MODIFIED_DATE, new Date().getTime());
+            contentBuilder.field(STATUS, result.getStatus());
+            contentBuilder.field(SUB_STATUS, result.getSubStatus());
+            contentBuilder.field(ROOT_URL, result.getRootUrl());
+            contentBuilder.field(URL, result.getUrl());
+
+            contentBuilder.endObject();
+
+            updateRequest.doc(contentBuilder);
+            updateRequest.docAsUpsert(true);
+
+            bulkProcessor.add(updateRequest);
+
+        } catch (IOException e) {
+            LOGGER.error("Failed to mirror url to index", e);
+        }
+    }
+
+    @Override
     public void addNewUrl(String url, String rootUrl, String jobId, String index, Status status, SubStatus subStatus, String message, String referrer) {
 
         String id = Base64.getEncoder().encodeToString(url.replace("https://", "").replace("http://", "").getBytes());
@@ -304,82 +490,272 @@ public class ElasticSearchService {
             indexRequest.source(contentBuilder);
 
             bulkProcessor.add(indexRequest);
+            stateOverlay.replace(index, id, null, 0);
+            getSeenUrlFilter(index).markSeenByJob(id);
 
         } catch (IOException e) {
             LOGGER.error("Failed to addNewUrl to index", e);
         }
     }
 
-    public Future<Boolean> getAsyncUrls(String index, List<Result> results, Status status) {
+    /**
+     * Marks a url to be fetched again later. The document is updated rather
+     * than replaced so a previously stored page and its validators are kept
+     * until the retry succeeds.
+     *
+     * @param nextAttempt
+     *            epoch time in milliseconds from which the url is due again
+     */
+    @Override
+    public void addRetryUrl(String url, String rootUrl, String jobId, String index, Status status, int retryCount, long nextAttempt, String message, String referrer) {
 
-        return getAsyncUrls(index, results, status, null);
+        String id = Base64.getEncoder().encodeToString(url.replace("https://", "").replace("http://", "").getBytes());
+
+        UpdateRequest updateRequest = new UpdateRequest(index, id);
+
+        try (XContentBuilder contentBuilder = XContentFactory.jsonBuilder()) {
+
+            contentBuilder.startObject();
+
+            contentBuilder.field(MODIFIED_DATE, new Date().getTime());
+            contentBuilder.field(STATUS, status.name());
+            contentBuilder.field(SUB_STATUS, SubStatus.excluded.name());
+            contentBuilder.field(JOB_ID, jobId);
+            contentBuilder.field(REASON, message);
+            contentBuilder.field(ROOT_URL, rootUrl);
+            contentBuilder.field(URL, url);
+            contentBuilder.field(REFERRER, referrer);
+            contentBuilder.field(RETRY_COUNT, retryCount);
+            contentBuilder.field(NEXT_ATTEMPT, nextAttempt);
+
+            contentBuilder.endObject();
+
+            updateRequest.doc(contentBuilder);
+            updateRequest.docAsUpsert(true);
+
+            bulkProcessor.add(updateRequest);
+            stateOverlay.update(index, id, null, retryCount);
+            getSeenUrlFilter(index).markSeenByJob(id);
+
+        } catch (IOException e) {
+            LOGGER.error("Failed to addRetryUrl to index", e);
+        }
     }
 
-    public Future<Boolean> getAsyncUrls(String index, List<Result> results, Status status, SubStatus subStatus) {
+    /**
+     * @return the number of retries already made for a url, 0 if none
+     */
+    @Override
+    public int getRetryCount(String url, String index) throws IOException {
 
-        return executor.submit(() -> {
+        String id = Base64.getEncoder().encodeToString(url.replace("https://", "").replace("http://", "").getBytes());
+        Integer pendingRetryCount = stateOverlay.getRetryCount(index, id);
 
-            try {
+        if (pendingRetryCount != null) {
+            return pendingRetryCount;
+        }
 
-                SearchRequest searchRequest = new SearchRequest(index);
-                SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+        GetRequest getRequest = new GetRequest(index, id);
+        getRequest.fetchSourceContext(new FetchSourceContext(true, new String[] { RETRY_COUNT }, null));
 
-                BoolQueryBuilder booleanQuery = QueryBuilders.boolQuery();
-                booleanQuery.must().add(QueryBuilders.termQuery(STATUS, status));
+        GetResponse getResponse = restHighLevelClient.get(getRequest, RequestOptions.DEFAULT);
 
-                if (subStatus != null) {
-                    String subStatusKeyword = SUB_STATUS + ".keyword";
-                    booleanQuery.must().add(QueryBuilders.termQuery(subStatusKeyword, subStatus));
-                }
+        if (!getResponse.isExists() || getResponse.getSourceAsMap() == null) {
+            return 0;
+        }
 
-                searchSourceBuilder.query(booleanQuery);
+        Number retryCount = (Number) getResponse.getSourceAsMap().get(RETRY_COUNT);
+        return retryCount == null ? 0 : retryCount.intValue();
+    }
 
-                searchSourceBuilder.sort(URL, SortOrder.DESC);
-                searchSourceBuilder.size(1);
-                searchRequest.source(searchSourceBuilder);
+    /**
+     * Reads the urls waiting for a retry whose next attempt is due, the
+     * earliest first
+     */
+    @Override
+    public List<Result> getDueRetries(String index, long now) {
 
-                searchRequest.scroll(scroll);
+        List<Result> results = new ArrayList<>();
 
-                SearchResponse searchResponse = restHighLevelClient.search(searchRequest, RequestOptions.DEFAULT);
-                Long countDocuments = 0l;
+        try {
 
-                String scrollId = searchResponse.getScrollId();
-                SearchHit[] searchHits = searchResponse.getHits().getHits();
+            SearchRequest searchRequest = new SearchRequest(index);
+            SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
+            sourceBuilder.size(DUE_RETRIES_SIZE);
+            sourceBuilder.fetchSource(new String[] { URL, ROOT_URL }, null);
 
-                countDocuments = countDocuments + searchHits.length;
+            BoolQueryBuilder booleanQuery = QueryBuilders.boolQuery();
+            booleanQuery.must().add(QueryBuilders.termQuery(STATUS, Status.retry));
+            booleanQuery.must().add(QueryBuilders.rangeQuery(NEXT_ATTEMPT).lte(now));
 
-                while (searchHits != null && searchHits.length > 0) {
+            sourceBuilder.query(booleanQuery);
+            sourceBuilder.sort(SortBuilders.fieldSort(NEXT_ATTEMPT).order(SortOrder.ASC).unmappedType(NUMERIC));
+            searchRequest.source(sourceBuilder);
 
-                    for (SearchHit searchHit : searchHits) {
-                        results.add(mapResult(searchHit));
-                    }
+            SearchResponse searchResponse = restHighLevelClient.search(searchRequest, RequestOptions.DEFAULT);
 
-                    while (results.size() > 1000) {
-                        LOGGER.debug("{} - {} list is becoming too big, sleeping a bit", index, status);
-                        Thread.sleep(1000);
-                    }
+            for (SearchHit searchHit : searchResponse.getHits().getHits()) {
+                results.add(mapResult(searchHit));
+            }
 
-                    SearchScrollRequest scrollRequest = new SearchScrollRequest(scrollId);
-                    scrollRequest.scroll(scroll);
-                    searchResponse = restHighLevelClient.scroll(scrollRequest, RequestOptions.DEFAULT);
-                    scrollId = searchResponse.getScrollId();
-                    searchHits = searchResponse.getHits().getHits();
+        } catch (IOException e) {
+            LOGGER.error("Failed to read due retries", e);
+        }
+
+        return results;
+    }
+
+    @Override
+    public ResultStream streamUrls(String index, Status status) {
+
+        return streamUrls(index, status, null);
+    }
+
+    /**
+     * Streams the urls with the given status, read in the background. With a
+     * single read slice the urls are paged with search_after on the url, with
+     * more slices every slice is scrolled by its own thread. The stream must
+     * be closed, read to the end or not.
+     * <p>
+     * Only the url, root url and status are read, the content can be loaded
+     * afterwards with {@link #loadContents(List, String)}.
+     */
+    @Override
+    public ResultStream streamUrls(String index, Status status, SubStatus subStatus) {
+
+        BoolQueryBuilder booleanQuery = QueryBuilders.boolQuery();
+        booleanQuery.must().add(QueryBuilders.termQuery(STATUS, status));
+
+        if (subStatus != null) {
+            String subStatusKeyword = SUB_STATUS + ".keyword";
+            booleanQuery.must().add(QueryBuilders.termQuery(subStatusKeyword, subStatus));
+        }
+
+        ResultStream resultStream = new ResultStream(Math.max(STREAM_BUFFER_SIZE, readPageSize), readSlices);
+
+        if (readSlices <= 1) {
+            resultStream.addProducer(executor.submit(() -> searchAfter(index, booleanQuery, resultStream)));
 
-                    countDocuments = countDocuments + searchHits.length;
+        } else {
+
+            for (int slice = 0; slice < readSlices; slice++) {
+
+                int sliceId = slice;
+                resultStream.addProducer(executor.submit(() -> scrollSlice(index, booleanQuery, sliceId, resultStream)));
+            }
+        }
+
+        return resultStream;
+    }
+
+    private Void searchAfter(String index, QueryBuilder query, ResultStream resultStream) throws InterruptedException {
+
+        try {
+
+            SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+            searchSourceBuilder.query(query);
+            searchSourceBuilder.fetchSource(STATE_FIELDS, null);
+            searchSourceBuilder.sort(URL, SortOrder.ASC);
+            searchSourceBuilder.size(readPageSize);
+
+            SearchHit[] searchHits = restHighLevelClient.search(new SearchRequest(index).source(searchSourceBuilder), RequestOptions.DEFAULT).getHits().getHits();
+
+            while (searchHits.length > 0 && !resultStream.isClosed()) {
+
+                for (SearchHit searchHit : searchHits) {
+                    resultStream.put(mapResult(searchHit));
                 }
 
-                ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
-                clearScrollRequest.addScrollId(scrollId);
-                ClearScrollResponse clearScrollResponse = restHighLevelClient.clearScroll(clearScrollRequest, RequestOptions.DEFAULT);
+                // The url is the document id, so it is unique and enough to resume from
+                searchSourceBuilder.searchAfter(searchHits[searchHits.length - 1].getSortValues());
+                searchHits = restHighLevelClient.search(new SearchRequest(index).source(searchSourceBuilder), RequestOptions.DEFAULT).getHits().getHits();
+            }
 
-                return clearScrollResponse.isSucceeded();
+        } catch (IOException | RuntimeException e) {
 
-            } catch (IOException e) {
-                LOGGER.info("Failed to find next in scroll ", e);
+            // Error responses, such as rejections, come as runtime exceptions
+            LOGGER.error("Failed to find next page of urls of {}", index, e);
+            resultStream.fail(e);
+            return null;
+
+        } catch (InterruptedException e) {
+            LOGGER.debug("{} - stream closed before the last page", index);
+            return null;
+        }
+
+        resultStream.end();
+        return null;
+    }
+
+    private Void scrollSlice(String index, QueryBuilder query, int sliceId, ResultStream resultStream) throws InterruptedException {
+
+        String scrollId = null;
+
+        try {
+
+            SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+            searchSourceBuilder.query(query);
+            searchSourceBuilder.fetchSource(STATE_FIELDS, null);
+            searchSourceBuilder.sort(FieldSortBuilder.DOC_FIELD_NAME);
+            searchSourceBuilder.slice(new SliceBuilder(sliceId, readSlices));
+            searchSourceBuilder.size(readPageSize);
+
+            SearchRequest searchRequest = new SearchRequest(index);
+            searchRequest.source(searchSourceBuilder);
+            searchRequest.scroll(sliceScroll);
+
+            SearchResponse searchResponse = restHighLevelClient.search(searchRequest, RequestOptions.DEFAULT);
+
+            scrollId = searchResponse.getScrollId();
+            SearchHit[] searchHits = searchResponse.getHits().getHits();
+
+            while (searchHits != null && searchHits.length > 0 && !resultStream.isClosed()) {
+
+                for (SearchHit searchHit : searchHits) {
+                    resultStream.put(mapResult(searchHit));
+                }
+
+                SearchScrollRequest scrollRequest = new SearchScrollRequest(scrollId);
+                scrollRequest.scroll(sliceScroll);
+                searchResponse = restHighLevelClient.scroll(scrollRequest, RequestOptions.DEFAULT);
+                scrollId = searchResponse.getScrollId();
+                searchHits = searchResponse.getHits().getHits();
             }
 
-            return false;
-        });
+        } catch (IOException | RuntimeException e) {
+
+            // Error responses, such as rejections, come as runtime exceptions
+            LOGGER.error("Failed to find next in scroll of slice {}", sliceId, e);
+            resultStream.fail(e);
+            return null;
+
+        } catch (InterruptedException e) {
+            LOGGER.debug("{} - stream closed before the end of slice {}", index, sliceId);
+            return null;
+
+        } finally {
+            clearScroll(scrollId);
+        }
+
+        resultStream.end();
+        return null;
+    }
+
+    private void clearScroll(String scrollId) {
+
+        if (scrollId == null) {
+            return;
+        }
+
+        try {
+
+            ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
+            clearScrollRequest.addScrollId(scrollId);
+            restHighLevelClient.clearScroll(clearScrollRequest, RequestOptions.DEFAULT);
+
+        } catch (IOException e) {
+            LOGGER.warn("Failed to clear scroll {}", scrollId, e);
+        }
     }
 
     private Result mapResult(SearchHit searchHit) throws IOException {
@@ -396,26 +772,11 @@ public class ElasticSearchService {
 
         if (result.getContentType() != null) {
 
-            String contentTmp = (String) source.get(CONTENT);
-
-            if (contentTmp != null) {
-
-                if (result.getContentType().contains("html")) {
-                    result.setContent(contentTmp.getBytes());
-                } else {
-                    byte[] content = Base64.getDecoder().decode(contentTmp.getBytes());
-                    result.setContent(content);
-                }
-            }
-
-            String childUrls = (String) source.get(CHILD_URLS);
-            if (childUrls != null) {
-                result.setChildUrls(objectMapper.readValue(childUrls, Set.class));
-            }
+            result.setContent(readContent(source));
+            readHeadersAndChildUrls(source, result);
 
             result.setMd5((String) source.get(CONTENT_MD5));
             result.setCode((Integer) source.get(CODE));
-            result.setHeaders(objectMapper.readValue((String) source.get(HEADERS), Map.class));
             result.setLength((Integer) source.get(CONTENT_SIZE));
             result.setMessage((String) source.get(MESSAGE));
             result.seteTag((String) source.get(ETAG));
@@ -425,100 +786,240 @@ public class ElasticSearchService {
         return result;
     }
 
+    /**
+     * Parses the headers and child urls, stored as json strings
+     */
+    private void readHeadersAndChildUrls(Map<String, Object> source, Result result) throws IOException {
+
+        String headers = (String) source.get(HEADERS);
+        if (headers != null) {
+            result.setHeaders(objectMapper.readValue(headers, HEADERS_TYPE));
+        }
+
+        String childUrls = (String) source.get(CHILD_URLS);
+        if (childUrls != null) {
+            result.setChildUrls(objectMapper.readValue(childUrls, CHILD_URLS_TYPE));
+        }
+    }
+
+    /**
+     * Reads the body of a stored document, from the blob store when only its
+     * hash was stored
+     */
+    private byte[] readContent(Map<String, Object> source) throws IOException {
+
+        String contentType = (String) source.get(CONTENT_TYPE);
+        String content = (String) source.get(CONTENT);
+        String contentHash = (String) source.get(CONTENT_HASH);
+
+        if (contentHash != null && blobStore != null) {
+            return blobStore.get(contentHash);
+        }
+
+        if (content == null || contentType == null) {
+            return null;
+        }
+
+        if (contentType.contains("html")) {
+            return content.getBytes();
+        }
+
+        return Base64.getDecoder().decode(content.getBytes());
+    }
+
     public void addNewChildUrl(String url, String rootUrl, String jobId, String index, String referrer) {
 
-        String id = Base64.getEncoder().encodeToString(url.replace("https://", "").replace("http://", "").getBytes());
-        
-        GetRequest getRequest = new GetRequest(index);
-        getRequest.id(id);
+        addNewChildUrls(Collections.singleton(url), rootUrl, jobId, index, referrer);
+    }
 
-        try {
+    /**
+     * Queues all the child urls found on one page. Urls already registered by
+     * this job are skipped locally, the rest are queued with scripted upserts
+     * that leave the documents already seen by this job untouched server
+     * side.
+     */
+    @Override
+    public void addNewChildUrls(Collection<String> urls, String rootUrl, String jobId, String index, String referrer) {
 
-            boolean exists = restHighLevelClient.exists(getRequest, RequestOptions.DEFAULT);
+        SeenUrlFilter seenUrlFilter = getSeenUrlFilter(index);
+        Map<String, String> childUrls = new HashMap<>();
 
-            if (exists) {
+        urls.stream().forEach(url -> {
 
-                SearchRequest searchRequest = new SearchRequest(index);
-                SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
-                sourceBuilder.size(0);
+            String id = Base64.getEncoder().encodeToString(url.replace("https://", "").replace("http://", "").getBytes());
 
-                BoolQueryBuilder booleanQuery = QueryBuilders.boolQuery();
-                booleanQuery.must().add(QueryBuilders.termQuery("_id", id));
-                booleanQuery.must().add(QueryBuilders.termQuery(JOB_ID, jobId));
+            if (!seenUrlFilter.isSeenByJob(id)) {
+                childUrls.put(id, url);
+            }
+        });
 
-                sourceBuilder.query(booleanQuery);
-                searchRequest.source(sourceBuilder);
+        childUrls.entrySet().stream().forEach(entry -> {
 
-                SearchResponse searchResponse = restHighLevelClient.search(searchRequest, RequestOptions.DEFAULT);
-                boolean documentWithJobIdExist = searchResponse.getHits().getTotalHits().value > 0;
+            String id = entry.getKey();
+            String url = entry.getValue();
 
-                if (documentWithJobIdExist) {
-                    return;
-                }
+            UpdateRequest updateRequest = new UpdateRequest(index, id);
 
-                updateStatus(url, index, Status.queue, SubStatus.included, "Found on parent page");
-                return;
+            try (XContentBuilder contentBuilder = XContentFactory.jsonBuilder()) {
+
+                contentBuilder.startObject();
+
+                contentBuilder.field(MODIFIED_DATE, new Date().getTime());
+                contentBuilder.field(STATUS, Status.queue);
+                contentBuilder.field(SUB_STATUS, SubStatus.included.name());
+                contentBuilder.field(JOB_ID, jobId);
+                contentBuilder.field(REASON, CHILD_URL_REASON);
+                contentBuilder.field(ROOT_URL, rootUrl);
+                contentBuilder.field(URL, url);
+                contentBuilder.field(REFERRER, referrer);
 
+                contentBuilder.endObject();
+
+                Map<String, Object> params = new HashMap<>();
+                params.put(JOB_ID, jobId);
+                params.put(STATUS, Status.queue.name());
+                params.put(SUB_STATUS, SubStatus.included.name());
+                params.put(REASON, CHILD_URL_REASON);
+
+                updateRequest.script(new Script(ScriptType.INLINE, Script.DEFAULT_SCRIPT_LANG, QUEUE_CHILD_URL_SCRIPT, params));
+                updateRequest.upsert(contentBuilder);
+
+                bulkProcessor.add(updateRequest);
+                seenUrlFilter.markSeenByJob(id);
+
+            } catch (IOException e) {
+                LOGGER.error("Failed to addNewChildUrl to index", e);
             }
+        });
+    }
 
-            addNewUrl(url, rootUrl, jobId, index, Status.queue, SubStatus.included, "Found on parent page", referrer);
+    /**
+     * Lightweight lookup of the stored cache validators of a url, the content
+     * is not read.
+     *
+     * @return the stored result without content or null if unknown
+     */
+    @Override
+    public Result getValidators(String url, String index) throws IOException {
 
-        } catch (IOException e1) {
-            LOGGER.error("Failed to check if document exists", e1);
+        String id = Base64.getEncoder().encodeToString(url.replace("https://", "").replace("http://", "").getBytes());
+
+        GetRequest getRequest = new GetRequest(index, id);
+        getRequest.fetchSourceContext(new FetchSourceContext(true, VALIDATOR_FIELDS, null));
+
+        GetResponse getResponse = restHighLevelClient.get(getRequest, RequestOptions.DEFAULT);
+
+        if (!getResponse.isExists() || getResponse.getSourceAsMap() == null) {
+            return null;
         }
 
+        Map<String, Object> source = getResponse.getSourceAsMap();
+
+        if (source.get(CONTENT_TYPE) == null) {
+            // Only queued so far, never downloaded
+            return null;
+        }
+
+        Result result = new Result();
+        result.setUrl((String) source.get(URL));
+        result.setRootUrl((String) source.get(ROOT_URL));
+        result.setReferrer((String) source.get(REFERRER));
+        result.setContentType((String) source.get(CONTENT_TYPE));
+        result.setCode((Integer) source.get(CODE));
+        result.setMessage((String) source.get(MESSAGE));
+        result.setLength((Integer) source.get(CONTENT_SIZE));
+        result.setMd5((String) source.get(CONTENT_MD5));
+        result.seteTag((String) source.get(ETAG));
+        result.setLastModified((String) source.get(LAST_MODIFIED));
+        readHeadersAndChildUrls(source, result);
+
+        return result;
     }
 
-    public Result getFromIndex(String url, String index) throws IOException {
+    /**
+     * Loads only the stored content of a url
+     */
+    @Override
+    public byte[] getContent(String url, String index) throws IOException {
 
         String id = Base64.getEncoder().encodeToString(url.replace("https://", "").replace("http://", "").getBytes());
 
-        SearchRequest searchRequest = new SearchRequest(index);
-        SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
-        sourceBuilder.size(1);
-        sourceBuilder.query(QueryBuilders.termQuery("_id", id));
+        GetRequest getRequest = new GetRequest(index, id);
+        getRequest.fetchSourceContext(new FetchSourceContext(true, CONTENT_FIELDS, null));
 
-        searchRequest.source(sourceBuilder);
+        GetResponse getResponse = restHighLevelClient.get(getRequest, RequestOptions.DEFAULT);
 
-        SearchResponse searchResponse = restHighLevelClient.search(searchRequest, RequestOptions.DEFAULT);
+        if (!getResponse.isExists() || getResponse.getSourceAsMap() == null) {
+            return null;
+        }
 
-        if (searchResponse.getHits().getTotalHits().value > 0) {
+        return readContent(getResponse.getSourceAsMap());
+    }
 
-            SearchHit searchHit = searchResponse.getHits().getAt(0);
-            Map<String, Object> source = searchHit.getSourceAsMap();
+    /**
+     * Loads the stored content and content type of a batch of streamed urls
+     * with a single multi get
+     */
+    @Override
+    public void loadContents(List<Result> results, String index) throws IOException {
 
-            Result result = new Result();
-            result.setContentType((String) source.get(CONTENT_TYPE));
+        if (results.isEmpty()) {
+            return;
+        }
 
-            String contentTmp = (String) source.get(CONTENT);
+        Map<String, Result> resultsById = new HashMap<>();
+        MultiGetRequest multiGetRequest = new MultiGetRequest();
+        FetchSourceContext fetchSourceContext = new FetchSourceContext(true, CONTENT_FIELDS, null);
 
-            if (contentTmp != null) {
+        results.stream().forEach(result -> {
 
-                if (result.getContentType().contains("html")) {
-                    result.setContent(contentTmp.getBytes());
-                } else {
-                    byte[] content = Base64.getDecoder().decode(contentTmp.getBytes());
-                    result.setContent(content);
-                }
+            String id = Base64.getEncoder().encodeToString(result.getUrl().replace("https://", "").replace("http://", "").getBytes());
+
+            if (resultsById.put(id, result) == null) {
+                multiGetRequest.add(new MultiGetRequest.Item(index, id).fetchSourceContext(fetchSourceContext));
             }
+        });
 
-            result.setCode((Integer) source.get(CODE));
+        MultiGetResponse multiGetResponse = restHighLevelClient.mget(multiGetRequest, RequestOptions.DEFAULT);
 
-            String headerString = (String) source.get(HEADERS);
-            if (headerString != null) {
-                result.setHeaders(objectMapper.readValue(headerString, Map.class));
-            }
+        for (MultiGetItemResponse itemResponse : multiGetResponse.getResponses()) {
 
-            String childUrls = (String) source.get(CHILD_URLS);
-            if (childUrls != null) {
-                result.setChildUrls(objectMapper.readValue(childUrls, Set.class));
+            if (!itemResponse.isFailed() && itemResponse.getResponse().isExists() && itemResponse.getResponse().getSourceAsMap() != null) {
+
+                Map<String, Object> source = itemResponse.getResponse().getSourceAsMap();
+                Result result = resultsById.get(itemResponse.getId());
+
+                result.setContentType((String) source.get(CONTENT_TYPE));
+                result.setContent(readContent(source));
             }
+        }
+    }
+
+    @Override
+    public Result getFromIndex(String url, String index) throws IOException {
+
+        String id = Base64.getEncoder().encodeToString(url.replace("https://", "").replace("http://", "").getBytes());
+
+        // Gets by id are real time, unlike searches they see unrefreshed writes
+        GetResponse getResponse = restHighLevelClient.get(new GetRequest(index, id), RequestOptions.DEFAULT);
+
+        if (getResponse.isExists() && getResponse.getSourceAsMap() != null) {
+
+            Map<String, Object> source = getResponse.getSourceAsMap();
+
+            Result result = new Result();
+            result.setContentType((String) source.get(CONTENT_TYPE));
+            result.setContent(readContent(source));
+
+            result.setCode((Integer) source.get(CODE));
+            readHeadersAndChildUrls(source, result);
 
             result.setLength((Integer) source.get(CONTENT_SIZE));
             result.setMessage((String) source.get(MESSAGE));
             result.setRootUrl((String) source.get(ROOT_URL));
             result.setUrl((String) source.get(URL));
             result.seteTag((String) source.get(ETAG));
+            result.setLastModified((String) source.get(LAST_MODIFIED));
             result.setReferrer((String) source.get(REFERRER));
             
             return result;
@@ -527,25 +1028,26 @@ public class ElasticSearchService {
         return null;
     }
 
+    @Override
     public boolean existsInIndex(String url, String index) throws IOException {
 
         String id = Base64.getEncoder().encodeToString(url.replace("https://", "").replace("http://", "").getBytes());
 
-        SearchRequest searchRequest = new SearchRequest(index);
-        SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
-        sourceBuilder.size(0);
+        GetRequest getRequest = new GetRequest(index, id);
+        getRequest.fetchSourceContext(FetchSourceContext.DO_NOT_FETCH_SOURCE);
 
-        sourceBuilder.query(QueryBuilders.termQuery("_id", id));
-        searchRequest.source(sourceBuilder);
-
-        SearchResponse searchResponse = restHighLevelClient.search(searchRequest, RequestOptions.DEFAULT);
-        return searchResponse.getHits().getTotalHits().value > 0;
+        return restHighLevelClient.exists(getRequest, RequestOptions.DEFAULT);
     }
 
+    @Override
     public boolean existsMd5InIndex(String url, String md5, String index) throws IOException {
 
         String id = Base64.getEncoder().encodeToString(url.replace("https://", "").replace("http://", "").getBytes());
 
+        if (stateOverlay.containsMd5(index, md5, id)) {
+            return true;
+        }
+
         SearchRequest searchRequest = new SearchRequest(index);
         SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
         sourceBuilder.size(0);
@@ -581,6 +1083,7 @@ public class ElasticSearchService {
         return false;
     }
 
+    @Override
     public long totalCountWithJobId(String jobId, String index) {
 
         try {
@@ -605,4 +1108,78 @@ public class ElasticSearchService {
 
         return 0l;
     }
+
+    /**
+     * Collects the content hash of every url of every state index and sweeps
+     * the other blobs. The urls are read in the order of their hash with
+     * search_after and the hash is read from the sort values, so urls sharing
+     * a body cost nothing more than a hit. Nothing is deleted unless every
+     * hash was read.
+     */
+    @Override
+    public void sweepBlobs() {
+
+        if (blobStore == null) {
+            return;
+        }
+
+        try {
+
+            if (!blobStore.claimSweep()) {
+                return;
+            }
+
+            long writtenBefore = System.currentTimeMillis() - BlobStore.SWEEP_GRACE;
+            Set<String> hashes = new HashSet<>();
+
+            SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+            searchSourceBuilder.query(QueryBuilders.existsQuery(CONTENT_HASH));
+            searchSourceBuilder.fetchSource(false);
+            searchSourceBuilder.sort(SortBuilders.fieldSort(CONTENT_HASH).order(SortOrder.ASC).unmappedType(KEYWORD));
+            searchSourceBuilder.size(readPageSize);
+
+            SearchHit[] searchHits = restHighLevelClient.search(new SearchRequest(STATE_INDEX_PATTERN).source(searchSourceBuilder), RequestOptions.DEFAULT).getHits().getHits();
+
+            while (searchHits.length > 0) {
+
+                for (SearchHit searchHit : searchHits) {
+                    hashes.add(searchHit.getSortValues()[0].toString());
+                }
+
+                searchSourceBuilder.searchAfter(searchHits[searchHits.length - 1].getSortValues());
+                searchHits = restHighLevelClient.search(new SearchRequest(STATE_INDEX_PATTERN).source(searchSourceBuilder), RequestOptions.DEFAULT).getHits().getHits();
+            }
+
+            int deleted = blobStore.sweep(hashes, writtenBefore);
+            LOGGER.info("Deleted {} page bodies no url refers to", deleted);
+
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Failed to sweep the page bodies of the state indexes", e);
+        }
+    }
+
+    /**
+     * Sends the writes still buffered and releases the client and the reader
+     * threads, the service is built again for every crawl
+     */
+    @Override
+    public void close() {
+
+        try {
+            bulkProcessor.awaitClose(BULK_WAIT, TimeUnit.MILLISECONDS);
+
+        } catch (InterruptedException e) {
+            LOGGER.warn("Interrupted while closing the bulk processor");
+            Thread.currentThread().interrupt();
+        }
+
+        executor.shutdownNow();
+
+        try {
+            restHighLevelClient.close();
+
+        } catch (IOException e) {
+            LOGGER.error("Failed to close elasticsearch client", e);
+        }
+    }
 }
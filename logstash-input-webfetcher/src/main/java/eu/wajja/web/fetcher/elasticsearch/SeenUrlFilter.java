@@ -0,0 +1,99 @@
+package eu.wajja.web.fetcher.elasticsearch;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Per index set of 64 bit document id fingerprints kept in front of
+ * elasticsearch. It remembers which documents were already written during the
+ * current job, so the child urls found again on every page are not sent to
+ * elasticsearch once more.
+ */
+public class SeenUrlFilter {
+
+    private static final float LOAD_FACTOR = 0.5f;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private long[] seenByJob = new long[INITIAL_CAPACITY];
+    private int seenByJobSize = 0;
+
+    public static long fingerprint(String id) {
+
+        long fingerprint = ByteBuffer.wrap(DigestUtils.md5(id.getBytes(StandardCharsets.UTF_8))).getLong();
+
+        // 0 marks an empty slot
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    public synchronized boolean isSeenByJob(String id) {
+
+        return contains(seenByJob, fingerprint(id));
+    }
+
+    public synchronized void markSeenByJob(String id) {
+
+        if (add(seenByJob, fingerprint(id))) {
+
+            seenByJobSize++;
+
+            if (seenByJobSize > seenByJob.length * LOAD_FACTOR) {
+                seenByJob = grow(seenByJob);
+            }
+        }
+    }
+
+    public synchronized int size() {
+
+        return seenByJobSize;
+    }
+
+    private static boolean contains(long[] table, long fingerprint) {
+
+        int mask = table.length - 1;
+        int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+
+        while (table[slot] != 0) {
+
+            if (table[slot] == fingerprint) {
+                return true;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        return false;
+    }
+
+    private static boolean add(long[] table, long fingerprint) {
+
+        int mask = table.length - 1;
+        int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+
+        while (table[slot] != 0) {
+
+            if (table[slot] == fingerprint) {
+                return false;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        table[slot] = fingerprint;
+        return true;
+    }
+
+    private static long[] grow(long[] table) {
+
+        long[] newTable = new long[table.length * 2];
+
+        for (long fingerprint : table) {
+            if (fingerprint != 0) {
+                add(newTable, fingerprint);
+            }
+        }
+
+        return newTable;
+    }
+}
@@ -0,0 +1,162 @@
+package eu.wajja.web.fetcher.elasticsearch;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per index view of the states handed to the bulk processor that
+ * elasticsearch may not return yet. Writes are sent in bulks and only made
+ * searchable by the refresh at the end of a phase, until then the crawl reads
+ * its own retry counts and content hashes from here.
+ */
+public class StateOverlay {
+
+    private AtomicLong sequence = new AtomicLong();
+    private Map<String, IndexOverlay> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * Records a document written as a whole, fields not given are gone
+     *
+     * @param md5
+     *            hash of the content or null if the document has none
+     */
+    public void replace(String index, String id, String md5, int retryCount) {
+
+        getIndexOverlay(index).write(id, md5, retryCount, true, sequence.incrementAndGet());
+    }
+
+    /**
+     * Records a partial update of a document, null fields are left as they
+     * were
+     */
+    public void update(String index, String id, String md5, Integer retryCount) {
+
+        getIndexOverlay(index).write(id, md5, retryCount, false, sequence.incrementAndGet());
+    }
+
+    /**
+     * @return the retry count last written for the document, null if it is
+     *         not known here
+     */
+    public Integer getRetryCount(String index, String id) {
+
+        return getIndexOverlay(index).getRetryCount(id);
+    }
+
+    /**
+     * @return true if a document other than the given one was written with
+     *         the same content hash, false if not known here
+     */
+    public boolean containsMd5(String index, String md5, String id) {
+
+        return getIndexOverlay(index).containsMd5(md5, id);
+    }
+
+    /**
+     * @return a mark covering every write recorded so far
+     */
+    public long mark() {
+
+        return sequence.get();
+    }
+
+    /**
+     * Forgets the writes recorded up to the mark, once elasticsearch was
+     * refreshed with them
+     */
+    public void refreshed(String index, long mark) {
+
+        getIndexOverlay(index).removeUpTo(mark);
+    }
+
+    public int size(String index) {
+
+        return getIndexOverlay(index).size();
+    }
+
+    private IndexOverlay getIndexOverlay(String index) {
+
+        return indexes.computeIfAbsent(index, i -> new IndexOverlay());
+    }
+
+    private static class IndexOverlay {
+
+        private Map<String, Entry> entries = new HashMap<>();
+        private Map<String, Set<String>> idsByMd5 = new HashMap<>();
+
+        public synchronized void write(String id, String md5, Integer retryCount, boolean replace, long sequence) {
+
+            Entry entry = entries.computeIfAbsent(id, i -> new Entry());
+
+            if (replace || md5 != null) {
+                setMd5(id, entry, md5);
+            }
+
+            if (replace || retryCount != null) {
+                entry.retryCount = retryCount;
+            }
+
+            entry.sequence = sequence;
+        }
+
+        public synchronized Integer getRetryCount(String id) {
+
+            Entry entry = entries.get(id);
+            return entry == null ? null : entry.retryCount;
+        }
+
+        public synchronized boolean containsMd5(String md5, String id) {
+
+            Set<String> ids = idsByMd5.get(md5);
+            return ids != null && ids.stream().anyMatch(other -> !other.equals(id));
+        }
+
+        public synchronized void removeUpTo(long mark) {
+
+            entries.entrySet().removeIf(e -> {
+
+                if (e.getValue().sequence > mark) {
+                    return false;
+                }
+
+                setMd5(e.getKey(), e.getValue(), null);
+                return true;
+            });
+        }
+
+        public synchronized int size() {
+
+            return entries.size();
+        }
+
+        private void setMd5(String id, Entry entry, String md5) {
+
+            if (entry.md5 != null) {
+
+                Set<String> ids = idsByMd5.get(entry.md5);
+                ids.remove(id);
+
+                if (ids.isEmpty()) {
+                    idsByMd5.remove(entry.md5);
+                }
+            }
+
+            entry.md5 = md5;
+
+            if (md5 != null) {
+                idsByMd5.computeIfAbsent(md5, m -> new HashSet<>()).add(id);
+            }
+        }
+    }
+
+    private static class Entry {
+
+        private String md5;
+        private Integer retryCount;
+        private long sequence;
+    }
+}
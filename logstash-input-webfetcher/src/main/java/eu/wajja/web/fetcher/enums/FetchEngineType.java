@@ -0,0 +1,7 @@
+package eu.wajja.web.fetcher.enums;
+
+public enum FetchEngineType {
+
+	pooled,
+	urlconnection
+}
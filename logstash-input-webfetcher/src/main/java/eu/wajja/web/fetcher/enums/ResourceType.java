@@ -0,0 +1,26 @@
+package eu.wajja.web.fetcher.enums;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Resource types a rendering browser can be told not to download, with the url
+ * patterns blocking them
+ */
+public enum ResourceType {
+
+	image("*.png*", "*.jpg*", "*.jpeg*", "*.gif*", "*.webp*", "*.svg*", "*.ico*", "*.bmp*", "*.avif*"),
+	font("*.woff*", "*.woff2*", "*.ttf*", "*.otf*", "*.eot*"),
+	media("*.mp4*", "*.webm*", "*.ogg*", "*.ogv*", "*.mp3*", "*.wav*", "*.m4a*", "*.avi*", "*.mov*", "*.m3u8*"),
+	stylesheet("*.css*");
+
+	private List<String> urlPatterns;
+
+	private ResourceType(String... urlPatterns) {
+		this.urlPatterns = Arrays.asList(urlPatterns);
+	}
+
+	public List<String> getUrlPatterns() {
+		return urlPatterns;
+	}
+}
@@ -4,5 +4,7 @@ public enum Status {
 
 	queue,
 	processed,
-	failed
+	failed,
+	retry,
+	dead
 }
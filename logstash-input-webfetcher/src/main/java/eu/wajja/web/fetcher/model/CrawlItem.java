@@ -0,0 +1,124 @@
+package eu.wajja.web.fetcher.model;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import eu.wajja.web.fetcher.enums.Status;
+import eu.wajja.web.fetcher.enums.SubStatus;
+
+/**
+ * A frontier entry travelling through the crawl pipeline, collecting the
+ * fetched result, the outcome decided for it and the child urls found.
+ */
+public class CrawlItem {
+
+    private FrontierEntry entry;
+    private String url;
+    private String baseUrl;
+    private Result result;
+    private Set<String> childUrls = new HashSet<>();
+    private Status status;
+    private SubStatus subStatus;
+    private String reason;
+    private boolean storeResult = false;
+    private boolean send = false;
+    private boolean reserved = false;
+
+    public CrawlItem(FrontierEntry entry, String url, String baseUrl) {
+
+        this.entry = entry;
+        this.url = url;
+        this.baseUrl = baseUrl;
+    }
+
+    /**
+     * @param storeResult
+     *            true to store the whole fetched result, false to only store
+     *            the url with its status
+     */
+    public void setOutcome(Status status, SubStatus subStatus, String reason, boolean storeResult) {
+
+        this.status = status;
+        this.subStatus = subStatus;
+        this.reason = reason;
+        this.storeResult = storeResult;
+    }
+
+    public FrontierEntry getEntry() {
+
+        return entry;
+    }
+
+    public String getUrl() {
+
+        return url;
+    }
+
+    public String getBaseUrl() {
+
+        return baseUrl;
+    }
+
+    public Result getResult() {
+
+        return result;
+    }
+
+    public void setResult(Result result) {
+
+        this.result = result;
+    }
+
+    public Set<String> getChildUrls() {
+
+        return childUrls;
+    }
+
+    public void setChildUrls(Set<String> childUrls) {
+
+        this.childUrls = childUrls;
+    }
+
+    public Status getStatus() {
+
+        return status;
+    }
+
+    public SubStatus getSubStatus() {
+
+        return subStatus;
+    }
+
+    public String getReason() {
+
+        return reason;
+    }
+
+    public boolean isStoreResult() {
+
+        return storeResult;
+    }
+
+    public boolean isSend() {
+
+        return send;
+    }
+
+    public void setSend(boolean send) {
+
+        this.send = send;
+    }
+
+    /**
+     * @return true while the item holds a slot of the page budget
+     */
+    public boolean isReserved() {
+
+        return reserved;
+    }
+
+    public void setReserved(boolean reserved) {
+
+        this.reserved = reserved;
+    }
+}
@@ -0,0 +1,117 @@
+package eu.wajja.web.fetcher.model;
+
+/**
+ * A url waiting in the crawl frontier. Entries are ordered by depth first so
+ * the crawl stays breadth first, then by the order they were discovered in.
+ */
+public class FrontierEntry implements Comparable<FrontierEntry> {
+
+    private String url;
+    private String rootUrl;
+    private int depth;
+    private long sequence;
+    private String host;
+    private boolean released = false;
+    private int attempts = 0;
+    private long dueTime = 0;
+
+    public FrontierEntry(String url, String rootUrl, int depth, long sequence, String host) {
+
+        this.url = url;
+        this.rootUrl = rootUrl;
+        this.depth = depth;
+        this.sequence = sequence;
+        this.host = host;
+    }
+
+    public String getUrl() {
+
+        return url;
+    }
+
+    public String getRootUrl() {
+
+        return rootUrl;
+    }
+
+    public int getDepth() {
+
+        return depth;
+    }
+
+    public long getSequence() {
+
+        return sequence;
+    }
+
+    public String getHost() {
+
+        return host;
+    }
+
+    public int getAttempts() {
+
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+
+        this.attempts = attempts;
+    }
+
+    /**
+     * @return the time in milliseconds before which a retried entry must not
+     *         be handed out
+     */
+    public long getDueTime() {
+
+        return dueTime;
+    }
+
+    public void setDueTime(long dueTime) {
+
+        this.dueTime = dueTime;
+    }
+
+    public boolean isReleased() {
+
+        return released;
+    }
+
+    public void setReleased(boolean released) {
+
+        this.released = released;
+    }
+
+    @Override
+    public int compareTo(FrontierEntry other) {
+
+        int compare = Integer.compare(depth, other.depth);
+
+        if (compare == 0) {
+            compare = Long.compare(sequence, other.sequence);
+        }
+
+        return compare;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+        if (this == obj) {
+            return true;
+        }
+
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+
+        return sequence == ((FrontierEntry) obj).sequence;
+    }
+
+    @Override
+    public int hashCode() {
+
+        return Long.hashCode(sequence);
+    }
+}
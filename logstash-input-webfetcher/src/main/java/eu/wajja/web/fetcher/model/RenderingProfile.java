@@ -0,0 +1,60 @@
+package eu.wajja.web.fetcher.model;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import eu.wajja.web.fetcher.enums.ResourceType;
+
+/**
+ * How chrome renders pages: the resources it does not download and the time a
+ * page may take to load
+ */
+public class RenderingProfile {
+
+    private Set<ResourceType> blockedResourceTypes = EnumSet.noneOf(ResourceType.class);
+    private List<String> blockedUrlPatterns = new ArrayList<>();
+    private long maxRenderTime;
+
+    /**
+     * @param blockedUrlPatterns
+     *            url patterns not downloaded, * matching any characters
+     * @param maxRenderTime
+     *            time in milliseconds a page may take to load
+     */
+    public RenderingProfile(Set<ResourceType> blockedResourceTypes, List<String> blockedUrlPatterns, long maxRenderTime) {
+
+        this.blockedResourceTypes.addAll(blockedResourceTypes);
+        this.blockedUrlPatterns.addAll(blockedUrlPatterns);
+        this.maxRenderTime = maxRenderTime;
+    }
+
+    public Set<ResourceType> getBlockedResourceTypes() {
+
+        return blockedResourceTypes;
+    }
+
+    public long getMaxRenderTime() {
+
+        return maxRenderTime;
+    }
+
+    public boolean isBlocked(ResourceType resourceType) {
+
+        return blockedResourceTypes.contains(resourceType);
+    }
+
+    /**
+     * @return the patterns of the blocked resource types and the blocked url
+     *         patterns
+     */
+    public List<String> getBlockedUrls() {
+
+        List<String> blockedUrls = new ArrayList<>();
+        blockedResourceTypes.stream().forEach(resourceType -> blockedUrls.addAll(resourceType.getUrlPatterns()));
+        blockedUrls.addAll(blockedUrlPatterns);
+
+        return blockedUrls;
+    }
+}
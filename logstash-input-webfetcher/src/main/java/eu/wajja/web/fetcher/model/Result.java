@@ -15,12 +15,16 @@ public class Result {
     private String md5;
     private Integer length;
     private String eTag;
+    private String lastModified;
+    private Long retryAfter;
     private String status;
     private String subStatus;
     private String message;
     private byte[] content;
     private String contentType;
     private boolean isCached = false;
+    private boolean renderRequired = false;
+    private boolean transientFailure = false;
     private Set<String> childUrls = new HashSet<>();
     private Map<String, List<String>> headers = new HashMap<>();
     private String referrer;
@@ -35,6 +39,20 @@ public class Result {
         this.referrer = referrer;
     }
 
+    /**
+     * @return true if the fetch failed on a timeout or a connection error
+     *         and is worth retrying later
+     */
+    public boolean isTransientFailure() {
+
+        return transientFailure;
+    }
+
+    public void setTransientFailure(boolean transientFailure) {
+
+        this.transientFailure = transientFailure;
+    }
+
     public String getMd5() {
 
         return md5;
@@ -45,6 +63,30 @@ public class Result {
         this.md5 = md5;
     }
 
+    /**
+     * @return the time in milliseconds the server asked to wait before the
+     *         next request, null if not asked
+     */
+    public Long getRetryAfter() {
+
+        return retryAfter;
+    }
+
+    public void setRetryAfter(Long retryAfter) {
+
+        this.retryAfter = retryAfter;
+    }
+
+    public boolean isRenderRequired() {
+
+        return renderRequired;
+    }
+
+    public void setRenderRequired(boolean renderRequired) {
+
+        this.renderRequired = renderRequired;
+    }
+
     public Set<String> getChildUrls() {
 
         return childUrls;
@@ -80,6 +122,16 @@ public class Result {
         return eTag;
     }
 
+    public String getLastModified() {
+
+        return lastModified;
+    }
+
+    public void setLastModified(String lastModified) {
+
+        this.lastModified = lastModified;
+    }
+
     public String getStatus() {
 
         return status;
@@ -0,0 +1,240 @@
+package eu.wajja.web.fetcher.model;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+/**
+ * State of a single url kept by the local crawl state store, the same fields
+ * as the document of the url in the elasticsearch state index
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class UrlState {
+
+    private String url;
+    private String rootUrl;
+    private String referrer;
+    private String status;
+    private String subStatus;
+    private String jobId;
+    private String reason;
+    private Integer code;
+    private String message;
+    private String contentType;
+    private Integer contentSize;
+    private String contentMd5;
+    private String contentHash;
+    private String etag;
+    private String lastModified;
+    private Map<String, List<String>> headers = new HashMap<>();
+    private Set<String> childUrls = new HashSet<>();
+    private int retryCount;
+    private Long nextAttempt;
+    private long modifiedDate;
+
+    public UrlState() {}
+
+    public String getUrl() {
+
+        return url;
+    }
+
+    public void setUrl(String url) {
+
+        this.url = url;
+    }
+
+    public String getRootUrl() {
+
+        return rootUrl;
+    }
+
+    public void setRootUrl(String rootUrl) {
+
+        this.rootUrl = rootUrl;
+    }
+
+    public String getReferrer() {
+
+        return referrer;
+    }
+
+    public void setReferrer(String referrer) {
+
+        this.referrer = referrer;
+    }
+
+    public String getStatus() {
+
+        return status;
+    }
+
+    public void setStatus(String status) {
+
+        this.status = status;
+    }
+
+    public String getSubStatus() {
+
+        return subStatus;
+    }
+
+    public void setSubStatus(String subStatus) {
+
+        this.subStatus = subStatus;
+    }
+
+    public String getJobId() {
+
+        return jobId;
+    }
+
+    public void setJobId(String jobId) {
+
+        this.jobId = jobId;
+    }
+
+    public String getReason() {
+
+        return reason;
+    }
+
+    public void setReason(String reason) {
+
+        this.reason = reason;
+    }
+
+    public Integer getCode() {
+
+        return code;
+    }
+
+    public void setCode(Integer code) {
+
+        this.code = code;
+    }
+
+    public String getMessage() {
+
+        return message;
+    }
+
+    public void setMessage(String message) {
+
+        this.message = message;
+    }
+
+    public String getContentType() {
+
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+
+        this.contentType = contentType;
+    }
+
+    public Integer getContentSize() {
+
+        return contentSize;
+    }
+
+    public void setContentSize(Integer contentSize) {
+
+        this.contentSize = contentSize;
+    }
+
+    public String getContentMd5() {
+
+        return contentMd5;
+    }
+
+    public void setContentMd5(String contentMd5) {
+
+        this.contentMd5 = contentMd5;
+    }
+
+    public String getContentHash() {
+
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+
+        this.contentHash = contentHash;
+    }
+
+    public String getEtag() {
+
+        return etag;
+    }
+
+    public void setEtag(String etag) {
+
+        this.etag = etag;
+    }
+
+    public String getLastModified() {
+
+        return lastModified;
+    }
+
+    public void setLastModified(String lastModified) {
+
+        this.lastModified = lastModified;
+    }
+
+    public Map<String, List<String>> getHeaders() {
+
+        return headers;
+    }
+
+    public void setHeaders(Map<String, List<String>> headers) {
+
+        this.headers = headers;
+    }
+
+    public Set<String> getChildUrls() {
+
+        return childUrls;
+    }
+
+    public void setChildUrls(Set<String> childUrls) {
+
+        this.childUrls = childUrls;
+    }
+
+    public int getRetryCount() {
+
+        return retryCount;
+    }
+
+    public void setRetryCount(int retryCount) {
+
+        this.retryCount = retryCount;
+    }
+
+    public Long getNextAttempt() {
+
+        return nextAttempt;
+    }
+
+    public void setNextAttempt(Long nextAttempt) {
+
+        this.nextAttempt = nextAttempt;
+    }
+
+    public long getModifiedDate() {
+
+        return modifiedDate;
+    }
+
+    public void setModifiedDate(long modifiedDate) {
+
+        this.modifiedDate = modifiedDate;
+    }
+}
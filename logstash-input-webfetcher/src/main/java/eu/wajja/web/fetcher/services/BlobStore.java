@@ -0,0 +1,198 @@
+package eu.wajja.web.fetcher.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content addressable store of the crawled page bodies on local disk. Every
+ * body is written once, gzip compressed, under the sha-256 of its bytes, so
+ * pages with the same content share a single file and the state index only
+ * keeps the hash. Files are spread over two levels of directories named after
+ * the start of the hash.
+ * <p>
+ * Blobs are only deleted by {@link #sweep(Set, long)}, the store does not know
+ * which urls refer to them. The state store sharing the directory collects
+ * the hashes its urls refer to and sweeps the rest, at most once per
+ * {@link #SWEEP_INTERVAL} unless it asks for it.
+ */
+public class BlobStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlobStore.class);
+
+    private static final String EXTENSION = ".gz";
+    private static final String HASH_PATTERN = "[0-9a-f]{64}";
+    private static final String TMP_EXTENSION = ".tmp";
+    private static final String SWEEP_MARKER = ".sweep";
+
+    /**
+     * Blobs written within this time are never swept, the state of their url
+     * may not be written or visible yet
+     */
+    public static final long SWEEP_GRACE = TimeUnit.HOURS.toMillis(1);
+    public static final long SWEEP_INTERVAL = TimeUnit.DAYS.toMillis(1);
+
+    private Path directory;
+
+    public BlobStore(String directory) throws IOException {
+
+        this.directory = Paths.get(directory);
+        Files.createDirectories(this.directory);
+    }
+
+    /**
+     * @return the hash the content is stored under
+     */
+    public String put(byte[] content) throws IOException {
+
+        String hash = DigestUtils.sha256Hex(content);
+        Path path = getPath(hash);
+
+        if (Files.exists(path)) {
+
+            // A blob put again is as recent as a new one for the sweep
+            touch(path);
+            return hash;
+        }
+
+        Files.createDirectories(path.getParent());
+        Path tmpPath = Files.createTempFile(path.getParent(), hash, TMP_EXTENSION);
+
+        try {
+
+            try (OutputStream outputStream = new GZIPOutputStream(Files.newOutputStream(tmpPath))) {
+                outputStream.write(content);
+            }
+
+            // Readers never see a partly written blob
+            Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (FileAlreadyExistsException e) {
+            // Stored by another thread in the meantime, same content
+
+        } finally {
+            Files.deleteIfExists(tmpPath);
+        }
+
+        return hash;
+    }
+
+    /**
+     * @return the content stored under the hash, null if unknown
+     */
+    public byte[] get(String hash) throws IOException {
+
+        if (hash == null || !hash.matches(HASH_PATTERN)) {
+            return null;
+        }
+
+        Path path = getPath(hash);
+
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        try (InputStream inputStream = new GZIPInputStream(Files.newInputStream(path))) {
+            return IOUtils.toByteArray(inputStream);
+        }
+    }
+
+    /**
+     * Records the start of a sweep unless one started within the
+     * {@link #SWEEP_INTERVAL}, whatever the job or the process that made it
+     *
+     * @return true if the caller should sweep now
+     */
+    public boolean claimSweep() throws IOException {
+
+        Path marker = directory.resolve(SWEEP_MARKER);
+        long now = System.currentTimeMillis();
+
+        if (Files.exists(marker) && now - Files.getLastModifiedTime(marker).toMillis() < SWEEP_INTERVAL) {
+            return false;
+        }
+
+        try {
+            Files.createFile(marker);
+
+        } catch (FileAlreadyExistsException e) {
+            // Swept before the interval
+        }
+
+        Files.setLastModifiedTime(marker, FileTime.fromMillis(now));
+        return true;
+    }
+
+    /**
+     * Deletes the blobs and the temporary files of unfinished puts that were
+     * last written before the given time and whose hash is not referenced.
+     * Blobs written after that time are kept whatever the references say, a
+     * put is only referenced once the state of its url is written.
+     *
+     * @return the number of files deleted
+     */
+    public int sweep(Set<String> referencedHashes, long writtenBefore) throws IOException {
+
+        int deleted = 0;
+
+        try (Stream<Path> paths = Files.walk(directory)) {
+
+            Iterator<Path> iterator = paths.filter(Files::isRegularFile).iterator();
+
+            while (iterator.hasNext()) {
+
+                Path path = iterator.next();
+                String fileName = path.getFileName().toString();
+                String hash = fileName.substring(0, Math.max(0, fileName.length() - EXTENSION.length()));
+                boolean blob = fileName.endsWith(EXTENSION) && hash.matches(HASH_PATTERN);
+
+                if ((blob && !referencedHashes.contains(hash)) || fileName.endsWith(TMP_EXTENSION)) {
+
+                    try {
+
+                        if (Files.getLastModifiedTime(path).toMillis() < writtenBefore && Files.deleteIfExists(path)) {
+                            deleted++;
+                        }
+
+                    } catch (IOException e) {
+                        LOGGER.warn("Failed to delete blob {}", path, e);
+                    }
+                }
+            }
+        }
+
+        return deleted;
+    }
+
+    private void touch(Path path) {
+
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+
+        } catch (IOException e) {
+            LOGGER.warn("Failed to touch blob {}", path, e);
+        }
+    }
+
+    private Path getPath(String hash) {
+
+        return directory.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash + EXTENSION);
+    }
+}
@@ -0,0 +1,427 @@
+package eu.wajja.web.fetcher.services;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.wajja.web.fetcher.model.FrontierEntry;
+
+/**
+ * In memory crawl frontier for a single site. Discovered urls are queued here
+ * directly and workers pull from it, elasticsearch is only kept as the durable
+ * mirror of the queue.
+ * <p>
+ * Urls are queued per host. A host is only handed out again once its delay
+ * has passed since the last url taken from it and while it has less than its
+ * maximum number of urls being fetched, so every host is crawled politely
+ * while different hosts are crawled in parallel. The delay and the number of
+ * urls of a host adapt to its responses, see {@link HostRateController}.
+ * <p>
+ * The frontier also tracks every url handed out until it is completed, so a
+ * waiting worker is woken up the moment the crawl drains instead of finding
+ * out on its next timeout.
+ */
+public class FrontierService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FrontierService.class);
+
+    private Map<String, HostQueue> hosts = new HashMap<>();
+    private PriorityQueue<FrontierEntry> retries = new PriorityQueue<>(Comparator.comparingLong(FrontierEntry::getDueTime));
+    private Set<String> seenUrls = ConcurrentHashMap.newKeySet();
+    private AtomicLong sequence = new AtomicLong();
+    private int inFlight = 0;
+    private int queued = 0;
+
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition changed = lock.newCondition();
+
+    private long defaultDelay;
+    private int maxConnectionsPerHost;
+
+    public FrontierService() {
+
+        this(0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param defaultDelay
+     *            minimum time in milliseconds between two urls of the same
+     *            host
+     * @param maxConnectionsPerHost
+     *            maximum number of urls of the same host being fetched at
+     *            the same time
+     */
+    public FrontierService(long defaultDelay, int maxConnectionsPerHost) {
+
+        this.defaultDelay = defaultDelay;
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    /**
+     * Queues a url unless it was already queued during this crawl
+     *
+     * @return true if the url was added
+     */
+    public boolean offer(String url, String rootUrl, int depth) {
+
+        if (url == null || !seenUrls.add(url)) {
+            return false;
+        }
+
+        queue(url, rootUrl, depth);
+        return true;
+    }
+
+    /**
+     * Queues a url again even if it was already queued during this crawl,
+     * used for failed urls whose retry is due
+     */
+    public void retry(String url, String rootUrl, int depth) {
+
+        if (url != null) {
+            seenUrls.add(url);
+            queue(url, rootUrl, depth);
+        }
+    }
+
+    private void queue(String url, String rootUrl, int depth) {
+
+        FrontierEntry entry = new FrontierEntry(url, rootUrl, depth, sequence.incrementAndGet(), getHost(url));
+
+        lock.lock();
+
+        try {
+
+            getHostQueue(entry.getHost()).entries.offer(entry);
+            queued++;
+            changed.signalAll();
+
+        } finally {
+            lock.unlock();
+        }
+
+        LOGGER.debug("Queued url {} at depth {}", url, depth);
+    }
+
+    /**
+     * Takes the next url whose host is ready to be crawled, waiting up to the
+     * timeout for one. Returns null straight away once the crawl is drained.
+     * Every entry returned must be released with
+     * {@link #complete(FrontierEntry)} once processed.
+     */
+    public FrontierEntry poll(long timeout, TimeUnit unit) throws InterruptedException {
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        lock.lockInterruptibly();
+
+        try {
+
+            while (queued > 0 || inFlight > 0) {
+
+                long now = System.currentTimeMillis();
+                long wakeUp = Long.MAX_VALUE;
+                HostQueue next = null;
+
+                while (!retries.isEmpty() && retries.peek().getDueTime() <= now) {
+
+                    FrontierEntry retry = retries.poll();
+                    getHostQueue(retry.getHost()).entries.offer(retry);
+                }
+
+                if (!retries.isEmpty()) {
+                    wakeUp = retries.peek().getDueTime();
+                }
+
+                for (HostQueue hostQueue : hosts.values()) {
+
+                    if (hostQueue.entries.isEmpty() || hostQueue.active >= hostQueue.rate.getConcurrency()) {
+                        continue;
+                    }
+
+                    if (hostQueue.nextDispatch > now) {
+                        wakeUp = Math.min(wakeUp, hostQueue.nextDispatch);
+
+                    } else if (next == null || hostQueue.entries.peek().compareTo(next.entries.peek()) < 0) {
+                        next = hostQueue;
+                    }
+                }
+
+                if (next != null) {
+
+                    next.active++;
+                    next.nextDispatch = now + next.rate.getDelay();
+                    queued--;
+                    inFlight++;
+
+                    return next.entries.poll();
+                }
+
+                long remaining = deadline - System.nanoTime();
+
+                if (remaining <= 0) {
+                    break;
+                }
+
+                if (wakeUp != Long.MAX_VALUE) {
+                    remaining = Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(Math.max(1, wakeUp - now)));
+                }
+
+                changed.awaitNanos(remaining);
+            }
+
+        } finally {
+            lock.unlock();
+        }
+
+        return null;
+    }
+
+    /**
+     * Frees the host slot of the entry once it was fetched, so the next url
+     * of the host can be handed out while this one is still being processed
+     */
+    public void release(FrontierEntry entry) {
+
+        if (entry == null) {
+            return;
+        }
+
+        lock.lock();
+
+        try {
+
+            if (!entry.isReleased()) {
+
+                entry.setReleased(true);
+                getHostQueue(entry.getHost()).active--;
+                changed.signalAll();
+            }
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void complete(FrontierEntry entry) {
+
+        if (entry == null) {
+            return;
+        }
+
+        lock.lock();
+
+        try {
+
+            release(entry);
+            inFlight--;
+            changed.signalAll();
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Feeds the response of a fetch to the rate of its host, throttling codes
+     * narrow the host down while fast responses widen it again
+     */
+    public void onResponse(FrontierEntry entry, boolean throttled, long latency) {
+
+        lock.lock();
+
+        try {
+
+            HostRateController rate = getHostQueue(entry.getHost()).rate;
+
+            if (throttled) {
+                rate.onThrottle();
+                LOGGER.info("Host {} throttled, concurrency {}, delay {} ms", entry.getHost(), rate.getConcurrency(), rate.getDelay());
+
+            } else {
+                rate.onSuccess(latency);
+            }
+
+            changed.signalAll();
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Puts an entry taken from the frontier back in the queue, to be handed
+     * out again once the delay has passed. The entry counts as completed, the
+     * retry replaces it.
+     *
+     * @param delay
+     *            time in milliseconds to wait, null to use the current delay
+     *            of the host
+     */
+    public void requeue(FrontierEntry entry, Long delay) {
+
+        requeue(entry, delay, true);
+    }
+
+    /**
+     * Puts an entry back in the queue without counting an attempt, for urls
+     * that were not fetched at all, such as those waiting for the page budget
+     */
+    public void postpone(FrontierEntry entry, long delay) {
+
+        requeue(entry, delay, false);
+    }
+
+    private void requeue(FrontierEntry entry, Long delay, boolean attempt) {
+
+        lock.lock();
+
+        try {
+
+            release(entry);
+
+            HostQueue hostQueue = getHostQueue(entry.getHost());
+            long retryDelay = delay == null ? hostQueue.rate.getDelay() : delay;
+
+            FrontierEntry retry = new FrontierEntry(entry.getUrl(), entry.getRootUrl(), entry.getDepth(), entry.getSequence(), entry.getHost());
+            retry.setAttempts(attempt ? entry.getAttempts() + 1 : entry.getAttempts());
+            retry.setDueTime(System.currentTimeMillis() + retryDelay);
+
+            retries.offer(retry);
+            queued++;
+            inFlight--;
+            changed.signalAll();
+
+            if (attempt) {
+                LOGGER.info("Retrying url {} in {} ms, attempt {}", entry.getUrl(), retryDelay, retry.getAttempts());
+            } else {
+                LOGGER.debug("Postponing url {} for {} ms", entry.getUrl(), retryDelay);
+            }
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the delay of a host, as asked by the robots.txt crawl delay. Hosts
+     * with a crawl delay are crawled one url at a time.
+     */
+    public void setCrawlDelay(String url, long delay) {
+
+        lock.lock();
+
+        try {
+
+            HostQueue hostQueue = getHostQueue(getHost(url));
+            hostQueue.rate.setCrawlDelay(delay);
+
+            LOGGER.info("Crawl delay of {} ms for host {}", hostQueue.rate.getDelay(), getHost(url));
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Holds back all urls of the host for the given time, as asked by a
+     * Retry-After header
+     */
+    public void defer(String url, long delay) {
+
+        lock.lock();
+
+        try {
+
+            HostQueue hostQueue = getHostQueue(getHost(url));
+            hostQueue.nextDispatch = Math.max(hostQueue.nextDispatch, System.currentTimeMillis() + delay);
+
+            LOGGER.info("Deferring host {} for {} ms", getHost(url), delay);
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The crawl is drained once nothing is queued and nothing is being
+     * processed that could still discover new urls. Children are queued before
+     * their parent completes, so the crawl never looks drained in between.
+     */
+    public boolean isDrained() {
+
+        lock.lock();
+
+        try {
+            return inFlight == 0 && queued == 0;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+
+        lock.lock();
+
+        try {
+            return queued;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int inFlight() {
+
+        lock.lock();
+
+        try {
+            return inFlight;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private HostQueue getHostQueue(String host) {
+
+        return hosts.computeIfAbsent(host, h -> new HostQueue(defaultDelay, maxConnectionsPerHost));
+    }
+
+    private static String getHost(String url) {
+
+        try {
+
+            String authority = new URL(url).getAuthority();
+            return authority == null ? "" : authority.toLowerCase();
+
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    private static class HostQueue {
+
+        private PriorityQueue<FrontierEntry> entries = new PriorityQueue<>();
+        private HostRateController rate;
+        private int active = 0;
+        private long nextDispatch = 0;
+
+        public HostQueue(long delay, int maxConcurrency) {
+
+            this.rate = new HostRateController(delay, maxConcurrency);
+        }
+    }
+}
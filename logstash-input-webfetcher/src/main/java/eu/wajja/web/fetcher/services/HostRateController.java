@@ -0,0 +1,85 @@
+package eu.wajja.web.fetcher.services;
+
+/**
+ * Adaptive rate of a single host. A host starts at its maximum concurrency,
+ * which is halved when it throttles or slows down and grows back by one after
+ * every round of fast responses. The delay between requests doubles on
+ * throttling and shrinks back step by step towards its base on success
+ * (AIMD).
+ */
+public class HostRateController {
+
+    private static final long MIN_BACKOFF = 1000;
+    private static final long MAX_DELAY = 60000;
+    private static final long DELAY_STEP = 100;
+    private static final long SLOW_RESPONSE = 1000;
+    private static final double SLOW_FACTOR = 3;
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private long baseDelay;
+    private int maxConcurrency;
+
+    private long delay;
+    private int concurrency;
+    private int successes = 0;
+    private double averageLatency = -1;
+
+    public HostRateController(long baseDelay, int maxConcurrency) {
+
+        this.baseDelay = baseDelay;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.delay = baseDelay;
+        this.concurrency = this.maxConcurrency;
+    }
+
+    /**
+     * A robots.txt crawl delay raises the base delay and allows one request
+     * at a time
+     */
+    public void setCrawlDelay(long crawlDelay) {
+
+        baseDelay = Math.max(baseDelay, crawlDelay);
+        delay = Math.max(delay, baseDelay);
+        maxConcurrency = 1;
+        concurrency = 1;
+    }
+
+    public void onSuccess(long latency) {
+
+        boolean slow = averageLatency > 0 && latency > SLOW_RESPONSE && latency > averageLatency * SLOW_FACTOR;
+        averageLatency = averageLatency < 0 ? latency : averageLatency * (1 - LATENCY_WEIGHT) + latency * LATENCY_WEIGHT;
+
+        if (slow) {
+
+            // The host struggles, back off without waiting for errors
+            concurrency = Math.max(1, concurrency / 2);
+            successes = 0;
+            return;
+        }
+
+        delay = Math.max(baseDelay, delay - DELAY_STEP);
+
+        if (++successes >= concurrency) {
+
+            concurrency = Math.min(maxConcurrency, concurrency + 1);
+            successes = 0;
+        }
+    }
+
+    public void onThrottle() {
+
+        concurrency = Math.max(1, concurrency / 2);
+        delay = Math.min(MAX_DELAY, Math.max(MIN_BACKOFF, delay * 2));
+        successes = 0;
+    }
+
+    public long getDelay() {
+
+        return delay;
+    }
+
+    public int getConcurrency() {
+
+        return concurrency;
+    }
+}
@@ -0,0 +1,88 @@
+package eu.wajja.web.fetcher.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Number of pages a crawl may still send, kept in memory instead of counting
+ * the stored pages before every url. A page takes a slot before it is
+ * fetched and either keeps it once it is stored as included or gives it back,
+ * so the workers never go over the maximum between them.
+ */
+public class PageBudget {
+
+    private long maxPages;
+    private AtomicLong used = new AtomicLong();
+    private AtomicLong counted = new AtomicLong();
+
+    /**
+     * @param maxPages
+     *            maximum number of pages of the crawl
+     * @param counted
+     *            number of pages already stored for the crawl
+     */
+    public PageBudget(long maxPages, long counted) {
+
+        this.maxPages = maxPages;
+        this.used.set(counted);
+        this.counted.set(counted);
+    }
+
+    /**
+     * Takes a slot for a page about to be fetched
+     *
+     * @return false if the maximum is reached
+     */
+    public boolean tryAcquire() {
+
+        long current;
+
+        do {
+            current = used.get();
+
+            if (current >= maxPages) {
+                return false;
+            }
+
+        } while (!used.compareAndSet(current, current + 1));
+
+        return true;
+    }
+
+    /**
+     * Keeps the slot of a page that was stored as included
+     */
+    public void commit() {
+
+        counted.incrementAndGet();
+    }
+
+    /**
+     * Gives back the slot of a page that was not included
+     */
+    public void release() {
+
+        used.decrementAndGet();
+    }
+
+    /**
+     * Replaces the pages counted so far with the number found in the state
+     * store, only to be called while no page holds a slot
+     */
+    public void reconcile(long count) {
+
+        long reserved = used.get() - counted.get();
+
+        counted.set(count);
+        used.set(count + reserved);
+    }
+
+    public long getCount() {
+
+        return counted.get();
+    }
+
+    public long getMaxPages() {
+
+        return maxPages;
+    }
+}
@@ -0,0 +1,104 @@
+package eu.wajja.web.fetcher.services;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One stage of the crawl pipeline. Items are handed over through a bounded
+ * queue, so a slow stage holds back the stages feeding it instead of letting
+ * work pile up in memory.
+ */
+public class PipelineStage<T> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PipelineStage.class);
+
+    private String name;
+    private BlockingQueue<T> queue;
+    private ExecutorService executorService;
+
+    /**
+     * @param handler
+     *            processes an item and hands it over to the next stage
+     * @param discard
+     *            called with the item when the handler failed, so it can be
+     *            released
+     */
+    public PipelineStage(String name, int threads, int capacity, Handler<T> handler, Consumer<T> discard) {
+
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+
+        AtomicInteger threadCount = new AtomicInteger();
+
+        this.executorService = Executors.newFixedThreadPool(threads, runnable -> {
+
+            Thread thread = new Thread(runnable, "webfetcher-" + name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for (int x = 0; x < threads; x++) {
+            executorService.execute(() -> run(handler, discard));
+        }
+    }
+
+    /**
+     * Blocks while the stage is full
+     */
+    public void put(T item) throws InterruptedException {
+
+        queue.put(item);
+    }
+
+    public int size() {
+
+        return queue.size();
+    }
+
+    public void shutdown() {
+
+        LOGGER.debug("Stopping stage {}", name);
+        executorService.shutdownNow();
+    }
+
+    private void run(Handler<T> handler, Consumer<T> discard) {
+
+        try {
+
+            while (!Thread.currentThread().isInterrupted()) {
+
+                T item = queue.take();
+
+                try {
+                    handler.handle(item);
+
+                } catch (InterruptedException e) {
+
+                    discard.accept(item);
+                    Thread.currentThread().interrupt();
+
+                } catch (Exception e) {
+
+                    LOGGER.error("Failed to process item in stage {}", name, e);
+                    discard.accept(item);
+                }
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @FunctionalInterface
+    public interface Handler<T> {
+
+        void handle(T item) throws Exception;
+    }
+}
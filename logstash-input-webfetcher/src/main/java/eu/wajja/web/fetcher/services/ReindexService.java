@@ -1,38 +1,39 @@
 package eu.wajja.web.fetcher.services;
 
+import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.Future;
 import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import eu.wajja.web.fetcher.elasticsearch.ElasticSearchService;
 import eu.wajja.web.fetcher.enums.Command;
 import eu.wajja.web.fetcher.enums.Status;
 import eu.wajja.web.fetcher.enums.SubStatus;
 import eu.wajja.web.fetcher.model.Result;
 import eu.wajja.web.fetcher.services.constants.MetadataConstant;
+import eu.wajja.web.fetcher.state.CrawlStateStore;
+import eu.wajja.web.fetcher.state.ResultStream;
 
 public class ReindexService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ReindexService.class);
+    private static final int REINDEX_BATCH_SIZE = 100;
 
-    private ElasticSearchService elasticSearchService;
+    private CrawlStateStore crawlStateStore;
     private List<String> excludedDataRegex;
     private List<String> excludedLinkRegex;
 
-    public ReindexService(ElasticSearchService elasticSearchService, List<String> excludedDataRegex, List<String> excludedLinkRegex) {
+    public ReindexService(CrawlStateStore crawlStateStore, List<String> excludedDataRegex, List<String> excludedLinkRegex) {
 
-        this.elasticSearchService = elasticSearchService;
+        this.crawlStateStore = crawlStateStore;
         this.excludedDataRegex = excludedDataRegex;
         this.excludedLinkRegex = excludedLinkRegex;
     }
@@ -41,23 +42,39 @@ public class ReindexService {
 
         LOGGER.info("Starting full reindex for thread : {}, url : {}", jobId, initialUrl);
 
-        LinkedList<Result> results = new LinkedList<>();
-        Future<Boolean> future = elasticSearchService.getAsyncUrls(index, results, Status.processed, SubStatus.included);
-        List<Result> queueItems = new ArrayList<>();
+        try (ResultStream results = crawlStateStore.streamUrls(index, Status.processed, SubStatus.included)) {
 
-        while (!future.isDone()) {
+            List<Result> queueItems = new ArrayList<>();
 
-            while (!results.isEmpty()) {
-                queueItems.add(results.pop());
+            while (results.hasNext()) {
+
+                queueItems.add(results.next());
+
+                if (queueItems.size() >= REINDEX_BATCH_SIZE || !results.hasNext()) {
+                    sendBatchToFilter(consumer, index, queueItems);
+                    queueItems.clear();
+                }
             }
+        }
+
+        LOGGER.info("Finished full reindex for thread : {}, url : {}", jobId, initialUrl);
+    }
+
+    /**
+     * The urls are streamed without their content, it is loaded here one
+     * batch at a time so only a batch of documents is held in memory
+     */
+    private void sendBatchToFilter(Consumer<Map<String, Object>> consumer, String index, List<Result> results) {
+
+        try {
+            crawlStateStore.loadContents(results, index);
 
-            queueItems.parallelStream().forEach(result -> sendResultToFilter(consumer, index, result));
-            queueItems.clear();
+        } catch (IOException e) {
+            LOGGER.error("Failed to load the content of {} urls, retrying on the next reindex", results.size(), e);
+            return;
         }
 
         results.parallelStream().forEach(result -> sendResultToFilter(consumer, index, result));
-
-        LOGGER.info("Finished full reindex for thread : {}, url : {}", jobId, initialUrl);
     }
 
     private void sendResultToFilter(Consumer<Map<String, Object>> consumer, String index, Result result) {
@@ -67,17 +84,17 @@ public class ReindexService {
         if (bytes == null || bytes.length == 0) {
 
             LOGGER.warn("Cannot Reindex, content is empty, url {}", result.getUrl());
-            elasticSearchService.updateStatus(result.getUrl(), index, Status.failed, SubStatus.excluded, "content is empty");
+            crawlStateStore.updateStatus(result.getUrl(), index, Status.failed, SubStatus.excluded, "content is empty");
 
         } else if (excludedLinkRegex.stream().anyMatch(ex -> result.getUrl().matches(ex))) {
 
             LOGGER.info("Url matched excludedLinkRegex, ignoring {}", result.getUrl());
-            elasticSearchService.updateStatus(result.getUrl(), index, Status.processed, SubStatus.excluded, "regex excludedLinkRegex");
+            crawlStateStore.updateStatus(result.getUrl(), index, Status.processed, SubStatus.excluded, "regex excludedLinkRegex");
 
         } else if (excludedDataRegex.stream().anyMatch(ex -> result.getUrl().matches(ex))) {
 
             LOGGER.info("Url matched excludedDataRegex, ignoring {}", result.getUrl());
-            elasticSearchService.updateStatus(result.getUrl(), index, Status.processed, SubStatus.excluded, "regex excludedDataRegex");
+            crawlStateStore.updateStatus(result.getUrl(), index, Status.processed, SubStatus.excluded, "regex excludedDataRegex");
 
         } else {
 
@@ -96,7 +113,7 @@ public class ReindexService {
             metadata.put(MetadataConstant.METADATA_CONTENT, Base64.getEncoder().encodeToString(bytes));
 
             consumer.accept(metadata);
-            elasticSearchService.updateStatus(result.getUrl(), index, Status.processed, SubStatus.included, "Document sent to filter");
+            crawlStateStore.updateStatus(result.getUrl(), index, Status.processed, SubStatus.included, "Document sent to filter");
 
         }
     }
@@ -0,0 +1,170 @@
+package eu.wajja.web.fetcher.services;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Picks the chrome driver a render worker uses for its next page. Workers pull
+ * from one shared render queue, so a slow page only holds back its own
+ * worker, and each page goes to the driver with free tabs and the lowest
+ * expected wait: its average render time times the pages it is rendering.
+ * <p>
+ * A driver failing several renders in a row is left out for a cooldown that
+ * doubles on every new failure, after which a single page probes it again.
+ */
+public class RenderDispatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RenderDispatcher.class);
+
+    private static final double LATENCY_WEIGHT = 0.2;
+    private static final int MAX_FAILURES = 3;
+    private static final long MIN_COOLDOWN = 5000;
+    private static final long MAX_COOLDOWN = 300000;
+
+    private Map<String, DriverState> drivers = new LinkedHashMap<>();
+    private int maxTabsPerDriver;
+
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition changed = lock.newCondition();
+
+    public RenderDispatcher(List<String> chromeDrivers, int maxTabsPerDriver) {
+
+        this.maxTabsPerDriver = Math.max(1, maxTabsPerDriver);
+        chromeDrivers.stream().forEach(chromeDriver -> drivers.put(chromeDriver, new DriverState(chromeDriver)));
+    }
+
+    /**
+     * Waits for a driver with a free tab, every driver returned must be handed
+     * back with {@link #release(String, boolean, long)}
+     */
+    public String acquire() throws InterruptedException {
+
+        lock.lockInterruptibly();
+
+        try {
+
+            while (true) {
+
+                long now = System.currentTimeMillis();
+                long wakeUp = Long.MAX_VALUE;
+                DriverState next = null;
+
+                for (DriverState driver : drivers.values()) {
+
+                    if (driver.inFlight >= maxTabsPerDriver || driver.probing) {
+                        continue;
+                    }
+
+                    if (driver.availableFrom > now) {
+                        wakeUp = Math.min(wakeUp, driver.availableFrom);
+
+                    } else if (next == null || driver.getExpectedWait() < next.getExpectedWait()) {
+                        next = driver;
+                    }
+                }
+
+                if (next != null) {
+
+                    next.inFlight++;
+                    next.probing = next.failures >= MAX_FAILURES;
+
+                    return next.chromeDriver;
+                }
+
+                if (wakeUp == Long.MAX_VALUE) {
+                    changed.await();
+                } else {
+                    changed.await(Math.max(1, wakeUp - now), TimeUnit.MILLISECONDS);
+                }
+            }
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param success
+     *            false if the driver failed to render the page
+     * @param latency
+     *            time in milliseconds the render took
+     */
+    public void release(String chromeDriver, boolean success, long latency) {
+
+        lock.lock();
+
+        try {
+
+            DriverState driver = drivers.get(chromeDriver);
+
+            if (driver == null) {
+                return;
+            }
+
+            driver.inFlight--;
+            driver.probing = false;
+
+            if (success) {
+
+                driver.failures = 0;
+                driver.averageLatency = driver.averageLatency < 0 ? latency : driver.averageLatency * (1 - LATENCY_WEIGHT) + latency * LATENCY_WEIGHT;
+
+            } else if (++driver.failures >= MAX_FAILURES) {
+
+                long cooldown = Math.min(MAX_COOLDOWN, MIN_COOLDOWN << Math.min(16, driver.failures - MAX_FAILURES));
+                driver.availableFrom = System.currentTimeMillis() + cooldown;
+
+                LOGGER.warn("Chrome driver {} failed {} renders in a row, leaving it out for {} ms", chromeDriver, driver.failures, cooldown);
+            }
+
+            changed.signalAll();
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int inFlight(String chromeDriver) {
+
+        lock.lock();
+
+        try {
+            DriverState driver = drivers.get(chromeDriver);
+            return driver == null ? 0 : driver.inFlight;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class DriverState {
+
+        private String chromeDriver;
+        private int inFlight = 0;
+        private int failures = 0;
+        private boolean probing = false;
+        private long availableFrom = 0;
+        private double averageLatency = -1;
+
+        public DriverState(String chromeDriver) {
+
+            this.chromeDriver = chromeDriver;
+        }
+
+        /**
+         * Drivers without a render yet come first so every driver gets
+         * measured
+         */
+        private double getExpectedWait() {
+
+            return Math.max(0, averageLatency) * (inFlight + 1);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package eu.wajja.web.fetcher.services;
+
+/**
+ * Capped exponential backoff for urls that failed on a transient error, such
+ * as a timeout or a broken connection. The wait doubles with every attempt up
+ * to the maximum, once the attempts are used up the url is given up.
+ */
+public class RetryPolicy {
+
+    private long initialBackoff;
+    private long maxBackoff;
+    private int maxRetries;
+
+    /**
+     * @param initialBackoff
+     *            time in milliseconds to wait before the first retry
+     * @param maxBackoff
+     *            maximum time in milliseconds to wait between two attempts
+     * @param maxRetries
+     *            number of retries before the url is given up
+     */
+    public RetryPolicy(long initialBackoff, long maxBackoff, int maxRetries) {
+
+        this.initialBackoff = Math.max(0, initialBackoff);
+        this.maxBackoff = Math.max(this.initialBackoff, maxBackoff);
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @param retryCount
+     *            number of the retry about to be scheduled, starting at 1
+     * @return the time in milliseconds to wait before this retry
+     */
+    public long getBackoff(int retryCount) {
+
+        long backoff = initialBackoff;
+
+        for (int x = 1; x < retryCount && backoff < maxBackoff; x++) {
+            backoff = backoff * 2;
+        }
+
+        return Math.min(maxBackoff, backoff);
+    }
+
+    /**
+     * @return true if the url should not be retried anymore
+     */
+    public boolean isExhausted(int retryCount) {
+
+        return retryCount > maxRetries;
+    }
+}
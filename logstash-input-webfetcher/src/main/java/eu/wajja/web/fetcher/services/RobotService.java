@@ -16,10 +16,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import eu.wajja.web.fetcher.controller.URLController;
-import eu.wajja.web.fetcher.elasticsearch.ElasticSearchService;
 import eu.wajja.web.fetcher.enums.Status;
 import eu.wajja.web.fetcher.enums.SubStatus;
 import eu.wajja.web.fetcher.model.Result;
+import eu.wajja.web.fetcher.state.CrawlStateStore;
 
 public class RobotService {
 
@@ -29,15 +29,16 @@ public class RobotService {
     private Map<String, Set<String>> disallowedLocations = new HashMap<>();
     private Map<String, Set<String>> allowedLocations = new HashMap<>();
     private Map<String, Set<String>> sitemapLocations = new HashMap<>();
+    private Map<String, Long> crawlDelays = new HashMap<>();
 
     private URLController urlController;
-    private ElasticSearchService elasticSearchService;
+    private CrawlStateStore crawlStateStore;
     private boolean readRobot;
 
-    public RobotService(URLController urlController, ElasticSearchService elasticSearchService, boolean readRobot) {
+    public RobotService(URLController urlController, CrawlStateStore crawlStateStore, boolean readRobot) {
 
         this.urlController = urlController;
-        this.elasticSearchService = elasticSearchService;
+        this.crawlStateStore = crawlStateStore;
         this.readRobot = readRobot;
     }
 
@@ -65,13 +66,25 @@ public class RobotService {
 
     private void readRobot(String index, String initialUrl, String robotUrl, List<String> chromeThreads, String jobId) {
 
+        // The delay only applies to the site the robot.txt belongs to
+        crawlDelays.clear();
+
         Result result = urlController.getURL(index, robotUrl, initialUrl, chromeThreads.stream().findFirst().orElse(null), false);
 
+        if (result != null && result.isCached() && result.getContent() == null) {
+
+            try {
+                result.setContent(crawlStateStore.getContent(robotUrl, index));
+            } catch (IOException e) {
+                LOGGER.warn("Failed to load stored robot.txt url {}", robotUrl, e);
+            }
+        }
+
         if (result != null && result.getContent() != null) {
 
             try (Scanner scanner = new Scanner(IOUtils.toString(result.getContent(), StandardCharsets.UTF_8.name()))) {
 
-                elasticSearchService.addNewUrl(result, jobId, index, Status.processed, SubStatus.excluded, "robot read");
+                crawlStateStore.addNewUrl(result, jobId, index, Status.processed, SubStatus.excluded, "robot read");
                 String userAgent = "*";
 
                 while (scanner.hasNextLine()) {
@@ -112,6 +125,16 @@ public class RobotService {
                             }
 
                             sitemapLocations.get(userAgent).add(perm);
+
+                        } else if (line.startsWith("Crawl-delay:")) {
+
+                            String delay = line.replace("Crawl-delay:", "").trim();
+
+                            try {
+                                crawlDelays.put(userAgent, (long) (Double.parseDouble(delay) * 1000));
+                            } catch (NumberFormatException e) {
+                                LOGGER.warn("Invalid crawl delay {} in url {}", delay, robotUrl);
+                            }
                         }
                     }
                 }
@@ -125,6 +148,22 @@ public class RobotService {
         }
     }
 
+    /**
+     * @return the crawl delay in milliseconds asked for the crawler user agent
+     *         or for all agents, null if none
+     */
+    public Long getCrawlDelay(String crawlerUserAgent) {
+
+        if (readRobot && crawlDelays.containsKey(crawlerUserAgent)) {
+            return crawlDelays.get(crawlerUserAgent);
+
+        } else if (readRobot) {
+            return crawlDelays.get("*");
+        }
+
+        return null;
+    }
+
     public boolean isAllowed(String urlString, String rootUrl, String index, String jobId, String crawlerUserAgent) throws IOException {
 
         if (readRobot) {
@@ -147,7 +186,7 @@ public class RobotService {
 
                 if (m.find()) {
                     LOGGER.info("URL {} is dissallowed", urlString);
-                    elasticSearchService.addNewUrl(urlString, rootUrl, jobId, index, Status.failed, SubStatus.excluded, "excluded by robot", null);
+                    crawlStateStore.addNewUrl(urlString, rootUrl, jobId, index, Status.failed, SubStatus.excluded, "excluded by robot", null);
                     return false;
                 }
             }
@@ -0,0 +1,115 @@
+package eu.wajja.web.fetcher.state;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+import eu.wajja.web.fetcher.enums.Status;
+import eu.wajja.web.fetcher.enums.SubStatus;
+import eu.wajja.web.fetcher.model.Result;
+import eu.wajja.web.fetcher.services.BlobStore;
+
+/**
+ * Bookkeeping of a crawl: the status of every url found, its cache validators
+ * and its stored content. The index names the state of a single site.
+ */
+public interface CrawlStateStore {
+
+    /**
+     * Keeps the page bodies in the blob store, only their hash is stored with
+     * the state of the url
+     */
+    void setBlobStore(BlobStore blobStore);
+
+    /**
+     * Creates or opens the state of a site before it is used
+     *
+     * @throws IOException
+     *             if the state exists but cannot be opened
+     */
+    void checkIndex(String index) throws IOException;
+
+    /**
+     * Makes every change made so far durable and visible to reads
+     */
+    void flushIndex(String index);
+
+    void updateStatus(String url, String index, Status status, SubStatus subStatus, String message);
+
+    /**
+     * Stores the fetched result with its status, a cached result without
+     * content keeps the content stored before
+     */
+    void addNewUrl(Result result, String jobId, String index, Status status, SubStatus subStatus, String message);
+
+    void addNewUrl(String url, String rootUrl, String jobId, String index, Status status, SubStatus subStatus, String message, String referrer);
+
+    /**
+     * @param nextAttempt
+     *            epoch time in milliseconds from which the url is due again
+     */
+    void addRetryUrl(String url, String rootUrl, String jobId, String index, Status status, int retryCount, long nextAttempt, String message, String referrer);
+
+    /**
+     * @return the number of retries already made for a url, 0 if none
+     */
+    int getRetryCount(String url, String index) throws IOException;
+
+    /**
+     * Reads the urls waiting for a retry whose next attempt is due, the
+     * earliest first
+     */
+    List<Result> getDueRetries(String index, long now);
+
+    ResultStream streamUrls(String index, Status status);
+
+    /**
+     * Streams the url, root url and status of the urls with the given status.
+     * The stream must be closed, read to the end or not.
+     */
+    ResultStream streamUrls(String index, Status status, SubStatus subStatus);
+
+    /**
+     * Queues the child urls found on a page, urls already seen by this job
+     * and urls waiting for a retry or given up are left untouched
+     */
+    void addNewChildUrls(Collection<String> urls, String rootUrl, String jobId, String index, String referrer);
+
+    /**
+     * @return the stored result without content or null if never downloaded
+     */
+    Result getValidators(String url, String index) throws IOException;
+
+    byte[] getContent(String url, String index) throws IOException;
+
+    /**
+     * Loads the stored content and content type of a batch of streamed urls
+     */
+    void loadContents(List<Result> results, String index) throws IOException;
+
+    Result getFromIndex(String url, String index) throws IOException;
+
+    boolean existsInIndex(String url, String index) throws IOException;
+
+    /**
+     * @return true if another url already has the same content
+     */
+    boolean existsMd5InIndex(String url, String md5, String index) throws IOException;
+
+    /**
+     * @return the number of pages processed and included by the job
+     */
+    long totalCountWithJobId(String jobId, String index);
+
+    /**
+     * Deletes the page bodies of the blob store no url refers to any more, at
+     * most once per {@link BlobStore#SWEEP_INTERVAL} whatever the number of
+     * jobs sharing the blob store
+     */
+    void sweepBlobs();
+
+    /**
+     * Releases the resources held between two crawls
+     */
+    default void close() {}
+}
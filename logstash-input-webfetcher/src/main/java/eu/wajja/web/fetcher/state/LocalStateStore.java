@@ -0,0 +1,691 @@
+package eu.wajja.web.fetcher.state;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.wajja.web.fetcher.enums.Status;
+import eu.wajja.web.fetcher.enums.SubStatus;
+import eu.wajja.web.fetcher.model.Result;
+import eu.wajja.web.fetcher.model.UrlState;
+import eu.wajja.web.fetcher.services.BlobStore;
+
+/**
+ * Crawl state kept on local disk, for deployments without an elasticsearch
+ * cluster. The state of every site is an append only {@link StateLog}. Like a
+ * Bitcask keydir, only the offset of the last record of every url and the
+ * few fields the crawl filters on are kept in memory, the rest of the state,
+ * such as headers and child urls, is read back from the log when needed. Page
+ * bodies are kept in a {@link BlobStore} next to the logs, the bodies no url
+ * refers to any more are deleted after a log is compacted and after a crawl.
+ */
+public class LocalStateStore implements CrawlStateStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LocalStateStore.class);
+
+    private static final String LOG_EXTENSION = ".log";
+    private static final String BLOBS = "blobs";
+    private static final String CHILD_URL_REASON = "Found on parent page";
+    private static final int DUE_RETRIES_SIZE = 1000;
+    private static final int STREAM_BUFFER_SIZE = 1000;
+    private static final int COMPACT_MIN_RECORDS = 10000;
+
+    private Path directory;
+    private BlobStore blobStore;
+    private Map<String, IndexState> indexes = new ConcurrentHashMap<>();
+    private ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "webfetcher-state-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public LocalStateStore(String directory) throws IOException {
+
+        this.directory = Paths.get(directory);
+        Files.createDirectories(this.directory);
+
+        this.blobStore = new BlobStore(this.directory.resolve(BLOBS).toString());
+    }
+
+    @Override
+    public void setBlobStore(BlobStore blobStore) {
+
+        this.blobStore = blobStore;
+    }
+
+    @Override
+    public void checkIndex(String index) throws IOException {
+
+        try {
+            getIndexState(index);
+
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Writes the log to disk, and rewrites it once it holds mostly replaced
+     * records. The page bodies are swept after a rewrite, outside of the lock
+     * of the index.
+     */
+    @Override
+    public void flushIndex(String index) {
+
+        IndexState indexState = getIndexState(index);
+        boolean compacted = false;
+
+        synchronized (indexState) {
+
+            try {
+
+                long records = indexState.log.getRecords();
+
+                if (records > COMPACT_MIN_RECORDS && records > 2l * indexState.urls.size()) {
+                    compact(indexState);
+                    compacted = true;
+                } else {
+                    indexState.log.sync();
+                }
+
+            } catch (IOException e) {
+                LOGGER.error("Failed to flush state of {}", index, e);
+            }
+        }
+
+        if (compacted) {
+            deleteUnreferencedBlobs();
+        }
+    }
+
+    @Override
+    public void updateStatus(String url, String index, Status status, SubStatus subStatus, String message) {
+
+        update(index, url, entry -> entry != null, urlState -> {
+
+            urlState.setStatus(status.name());
+            urlState.setSubStatus(subStatus.name());
+            urlState.setReason(message);
+
+            return urlState;
+        });
+    }
+
+    @Override
+    public void addNewUrl(Result result, String jobId, String index, Status status, SubStatus subStatus, String message) {
+
+        String contentHash = null;
+
+        if (result.getContent() != null) {
+
+            try {
+                contentHash = blobStore.put(result.getContent());
+
+            } catch (IOException e) {
+                LOGGER.error("Failed to store content of url {}", result.getUrl(), e);
+                return;
+            }
+        }
+
+        String storedHash = contentHash;
+
+        UnaryOperator<UrlState> change = urlState -> {
+
+            if (result.getContent() != null) {
+                urlState.setContentMd5(DigestUtils.md5Hex(result.getContent()));
+                urlState.setContentHash(storedHash);
+            }
+
+            Map<String, List<String>> headers = new HashMap<>();
+            result.getHeaders().entrySet().stream().filter(e -> e.getKey() != null && e.getValue() != null).forEach(e -> headers.put(e.getKey(), e.getValue()));
+
+            urlState.setCode(result.getCode());
+            urlState.setContentType(result.getContentType());
+            urlState.setContentSize(result.getLength());
+            urlState.setMessage(result.getMessage());
+            urlState.setRootUrl(result.getRootUrl());
+            urlState.setUrl(result.getUrl());
+            urlState.setHeaders(headers);
+            urlState.setModifiedDate(new Date().getTime());
+            urlState.setStatus(status.name());
+            urlState.setSubStatus(subStatus.name());
+            urlState.setJobId(jobId);
+            urlState.setReason(message);
+            urlState.setReferrer(result.getReferrer());
+            urlState.setEtag(result.geteTag());
+            urlState.setLastModified(result.getLastModified());
+            urlState.setChildUrls(new HashSet<>(result.getChildUrls()));
+            urlState.setRetryCount(0);
+
+            return urlState;
+        };
+
+        if (result.isCached() && result.getContent() == null) {
+
+            // Not modified, keep the stored content and only update the rest
+            update(index, result.getUrl(), entry -> true, stored -> change.apply(stored == null ? new UrlState() : stored));
+
+        } else {
+            replace(index, result.getUrl(), change.apply(new UrlState()));
+        }
+
+        if (result.getRedirectUrls() != null) {
+            result.getRedirectUrls().forEach(currentUrl -> addNewUrl(currentUrl, result.getRootUrl(), jobId, index, status, subStatus, message, result.getReferrer()));
+        }
+    }
+
+    @Override
+    public void addNewUrl(String url, String rootUrl, String jobId, String index, Status status, SubStatus subStatus, String message, String referrer) {
+
+        UrlState urlState = new UrlState();
+        urlState.setModifiedDate(new Date().getTime());
+        urlState.setStatus(status.name());
+        urlState.setSubStatus(subStatus.name());
+        urlState.setJobId(jobId);
+        urlState.setReason(message);
+        urlState.setRootUrl(rootUrl);
+        urlState.setUrl(url);
+        urlState.setReferrer(referrer);
+
+        replace(index, url, urlState);
+    }
+
+    @Override
+    public void addRetryUrl(String url, String rootUrl, String jobId, String index, Status status, int retryCount, long nextAttempt, String message, String referrer) {
+
+        update(index, url, entry -> true, stored -> {
+
+            UrlState urlState = stored == null ? new UrlState() : stored;
+            urlState.setModifiedDate(new Date().getTime());
+            urlState.setStatus(status.name());
+            urlState.setSubStatus(SubStatus.excluded.name());
+            urlState.setJobId(jobId);
+            urlState.setReason(message);
+            urlState.setRootUrl(rootUrl);
+            urlState.setUrl(url);
+            urlState.setReferrer(referrer);
+            urlState.setRetryCount(retryCount);
+            urlState.setNextAttempt(nextAttempt);
+
+            return urlState;
+        });
+    }
+
+    @Override
+    public int getRetryCount(String url, String index) {
+
+        UrlEntry entry = getEntry(index, url);
+        return entry == null ? 0 : entry.retryCount;
+    }
+
+    @Override
+    public List<Result> getDueRetries(String index, long now) {
+
+        return getIndexState(index).urls.values().stream()
+                .filter(entry -> Status.retry.name().equals(entry.status))
+                .filter(entry -> entry.nextAttempt != null && entry.nextAttempt <= now)
+                .sorted(Comparator.comparingLong(entry -> entry.nextAttempt))
+                .limit(DUE_RETRIES_SIZE)
+                .map(this::toStateResult)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public ResultStream streamUrls(String index, Status status) {
+
+        return streamUrls(index, status, null);
+    }
+
+    @Override
+    public ResultStream streamUrls(String index, Status status, SubStatus subStatus) {
+
+        List<UrlEntry> entries = getIndexState(index).urls.values().stream()
+                .filter(entry -> status.name().equals(entry.status))
+                .filter(entry -> subStatus == null || subStatus.name().equals(entry.subStatus))
+                .collect(Collectors.toList());
+
+        ResultStream resultStream = new ResultStream(STREAM_BUFFER_SIZE, 1);
+
+        resultStream.addProducer(executor.submit(() -> {
+
+            try {
+
+                for (UrlEntry entry : entries) {
+
+                    if (resultStream.isClosed()) {
+                        return null;
+                    }
+
+                    resultStream.put(toStateResult(entry));
+                }
+
+                resultStream.end();
+
+            } catch (RuntimeException e) {
+                LOGGER.error("Failed to stream {} urls of {}", status, index, e);
+                resultStream.fail(e);
+
+            } catch (InterruptedException e) {
+                LOGGER.debug("{} - {} stream closed before the end", index, status);
+            }
+
+            return null;
+        }));
+
+        return resultStream;
+    }
+
+    @Override
+    public void addNewChildUrls(Collection<String> urls, String rootUrl, String jobId, String index, String referrer) {
+
+        // Urls already seen by this job, waiting for a retry or given up are
+        // left untouched without reading them
+        urls.stream().forEach(url -> update(index, url, entry -> entry == null || !(jobId.equals(entry.jobId) || isRetryOrDead(entry)), stored -> {
+
+            UrlState urlState = stored;
+
+            if (urlState == null) {
+
+                urlState = new UrlState();
+                urlState.setModifiedDate(new Date().getTime());
+                urlState.setRootUrl(rootUrl);
+                urlState.setUrl(url);
+                urlState.setReferrer(referrer);
+            }
+
+            urlState.setStatus(Status.queue.name());
+            urlState.setSubStatus(SubStatus.included.name());
+            urlState.setReason(CHILD_URL_REASON);
+            urlState.setJobId(jobId);
+
+            return urlState;
+        }));
+    }
+
+    @Override
+    public Result getValidators(String url, String index) throws IOException {
+
+        UrlState urlState = read(index, url);
+
+        if (urlState == null || urlState.getContentType() == null) {
+            // Only queued so far, never downloaded
+            return null;
+        }
+
+        return toResult(urlState);
+    }
+
+    @Override
+    public byte[] getContent(String url, String index) throws IOException {
+
+        UrlEntry entry = getEntry(index, url);
+        return entry == null ? null : blobStore.get(entry.contentHash);
+    }
+
+    @Override
+    public void loadContents(List<Result> results, String index) throws IOException {
+
+        for (Result result : results) {
+
+            UrlState urlState = read(index, result.getUrl());
+
+            if (urlState != null) {
+                result.setContentType(urlState.getContentType());
+                result.setContent(blobStore.get(urlState.getContentHash()));
+            }
+        }
+    }
+
+    @Override
+    public Result getFromIndex(String url, String index) throws IOException {
+
+        UrlState urlState = read(index, url);
+
+        if (urlState == null) {
+            return null;
+        }
+
+        Result result = toResult(urlState);
+        result.setContent(blobStore.get(urlState.getContentHash()));
+
+        return result;
+    }
+
+    @Override
+    public boolean existsInIndex(String url, String index) {
+
+        return getEntry(index, url) != null;
+    }
+
+    @Override
+    public boolean existsMd5InIndex(String url, String md5, String index) {
+
+        Set<String> ids = getIndexState(index).idsByMd5.get(md5);
+        String id = getId(url);
+
+        return ids != null && ids.stream().anyMatch(other -> !other.equals(id));
+    }
+
+    @Override
+    public long totalCountWithJobId(String jobId, String index) {
+
+        return getIndexState(index).urls.values().stream()
+                .filter(entry -> jobId.equals(entry.jobId))
+                .filter(entry -> Status.processed.name().equals(entry.status))
+                .filter(entry -> SubStatus.included.name().equals(entry.subStatus))
+                .count();
+    }
+
+    @Override
+    public void close() {
+
+        indexes.entrySet().stream().forEach(entry -> {
+
+            try {
+                entry.getValue().log.close();
+
+            } catch (IOException e) {
+                LOGGER.error("Failed to close state of {}", entry.getKey(), e);
+            }
+        });
+
+        indexes.clear();
+        executor.shutdownNow();
+    }
+
+    /**
+     * @throws UncheckedIOException
+     *             if the log of the index cannot be opened, nothing is kept
+     *             so the next call tries again
+     */
+    private IndexState getIndexState(String index) {
+
+        return indexes.computeIfAbsent(index, this::openIndex);
+    }
+
+    private IndexState openIndex(String index) {
+
+        IndexState indexState = new IndexState(new StateLog(directory.resolve(index + LOG_EXTENSION)));
+
+        try {
+
+            indexState.log.open((urlState, offset) -> indexState.put(getId(urlState.getUrl()), new UrlEntry(urlState, offset)));
+            LOGGER.info("Loaded {} urls for index {}", indexState.urls.size(), index);
+
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open state of " + index, e);
+        }
+
+        return indexState;
+    }
+
+    /**
+     * Rewrites the log with the last record of every url, reading them in
+     * the order of the log
+     */
+    private void compact(IndexState indexState) throws IOException {
+
+        List<UrlEntry> entries = new ArrayList<>(indexState.urls.values());
+        entries.sort(Comparator.comparingLong(entry -> entry.offset));
+
+        long[] offsets = indexState.log.compact(entries.stream().mapToLong(entry -> entry.offset).toArray());
+
+        for (int x = 0; x < offsets.length; x++) {
+            entries.get(x).offset = offsets[x];
+        }
+    }
+
+    @Override
+    public void sweepBlobs() {
+
+        try {
+
+            if (blobStore.claimSweep()) {
+                deleteUnreferencedBlobs();
+            }
+
+        } catch (IOException e) {
+            LOGGER.error("Failed to start the sweep of the page bodies of {}", directory, e);
+        }
+    }
+
+    /**
+     * Deletes the page bodies no url of the directory refers to. The logs of
+     * the indexes this store has not opened may be written by another job at
+     * the same time, they are read from disk and the bodies written within the
+     * grace period are kept as their url may not be on disk yet.
+     */
+    private void deleteUnreferencedBlobs() {
+
+        long writtenBefore = System.currentTimeMillis() - BlobStore.SWEEP_GRACE;
+        Set<String> hashes = new HashSet<>();
+
+        try {
+
+            try (DirectoryStream<Path> logs = Files.newDirectoryStream(directory, "*" + LOG_EXTENSION)) {
+
+                for (Path log : logs) {
+
+                    String fileName = log.getFileName().toString();
+                    IndexState indexState = indexes.get(fileName.substring(0, fileName.length() - LOG_EXTENSION.length()));
+
+                    if (indexState != null) {
+                        indexState.urls.values().stream().map(entry -> entry.contentHash).filter(Objects::nonNull).forEach(hashes::add);
+                    } else {
+
+                        // The last record of a url wins, as when the log is opened
+                        Map<String, String> hashesById = new HashMap<>();
+                        StateLog.scan(log, urlState -> hashesById.put(getId(urlState.getUrl()), urlState.getContentHash()));
+                        hashesById.values().stream().filter(Objects::nonNull).forEach(hashes::add);
+                    }
+                }
+            }
+
+            int deleted = blobStore.sweep(hashes, writtenBefore);
+            LOGGER.info("Deleted {} page bodies no url of {} refers to", deleted, directory);
+
+        } catch (IOException e) {
+            LOGGER.error("Failed to sweep page bodies of {}", directory, e);
+        }
+    }
+
+    private static boolean isRetryOrDead(UrlEntry entry) {
+
+        return Status.retry.name().equals(entry.status) || Status.dead.name().equals(entry.status);
+    }
+
+    private UrlEntry getEntry(String index, String url) {
+
+        return getIndexState(index).urls.get(getId(url));
+    }
+
+    /**
+     * Reads the whole state of a url back from the log
+     *
+     * @return the state or null if the url is unknown
+     */
+    private UrlState read(String index, String url) throws IOException {
+
+        IndexState indexState = getIndexState(index);
+
+        // Offsets only change while the log is compacted under this lock
+        synchronized (indexState) {
+
+            UrlEntry entry = indexState.urls.get(getId(url));
+            return entry == null ? null : indexState.log.read(entry.offset);
+        }
+    }
+
+    /**
+     * Stores a new state of a url, whatever was stored before
+     */
+    private void replace(String index, String url, UrlState urlState) {
+
+        update(index, url, entry -> true, stored -> urlState, false);
+    }
+
+    /**
+     * Stores the state returned by the change, which gets the stored state or
+     * null if the url is unknown. The condition gets the in memory entry of
+     * the url, or null, and decides whether the stored state has to be read
+     * at all.
+     */
+    private void update(String index, String url, Predicate<UrlEntry> condition, UnaryOperator<UrlState> change) {
+
+        update(index, url, condition, change, true);
+    }
+
+    private void update(String index, String url, Predicate<UrlEntry> condition, UnaryOperator<UrlState> change, boolean readStored) {
+
+        IndexState indexState = getIndexState(index);
+        String id = getId(url);
+
+        synchronized (indexState) {
+
+            UrlEntry entry = indexState.urls.get(id);
+
+            if (!condition.test(entry)) {
+                return;
+            }
+
+            try {
+
+                UrlState stored = readStored && entry != null ? indexState.log.read(entry.offset) : null;
+                UrlState urlState = change.apply(stored);
+
+                long offset = indexState.log.append(urlState);
+                indexState.put(id, new UrlEntry(urlState, offset));
+
+            } catch (IOException e) {
+                LOGGER.error("Failed to store url {} in {}", url, index, e);
+            }
+        }
+    }
+
+    private Result toStateResult(UrlEntry entry) {
+
+        Result result = new Result();
+        result.setUrl(entry.url);
+        result.setRootUrl(entry.rootUrl);
+        result.setStatus(entry.status);
+        result.setSubStatus(entry.subStatus);
+
+        return result;
+    }
+
+    private Result toResult(UrlState urlState) {
+
+        Result result = new Result();
+        result.setUrl(urlState.getUrl());
+        result.setRootUrl(urlState.getRootUrl());
+        result.setStatus(urlState.getStatus());
+        result.setSubStatus(urlState.getSubStatus());
+        result.setReferrer(urlState.getReferrer());
+        result.setContentType(urlState.getContentType());
+        result.setCode(urlState.getCode());
+        result.setMessage(urlState.getMessage());
+        result.setLength(urlState.getContentSize());
+        result.setMd5(urlState.getContentMd5());
+        result.seteTag(urlState.getEtag());
+        result.setLastModified(urlState.getLastModified());
+        result.setHeaders(new HashMap<>(urlState.getHeaders()));
+        result.setChildUrls(new HashSet<>(urlState.getChildUrls()));
+
+        return result;
+    }
+
+    private static String getId(String url) {
+
+        return Base64.getEncoder().encodeToString(url.replace("https://", "").replace("http://", "").getBytes());
+    }
+
+    private static String intern(String value) {
+
+        return value == null ? null : value.intern();
+    }
+
+    /**
+     * What is kept in memory of a url, the offset of its last record and the
+     * fields the crawl filters on. Status values and root urls are shared by
+     * most urls, they are interned.
+     */
+    private static class UrlEntry {
+
+        private long offset;
+        private String url;
+        private String rootUrl;
+        private String status;
+        private String subStatus;
+        private String jobId;
+        private String contentMd5;
+        private String contentHash;
+        private int retryCount;
+        private Long nextAttempt;
+
+        public UrlEntry(UrlState urlState, long offset) {
+
+            this.offset = offset;
+            this.url = urlState.getUrl();
+            this.rootUrl = intern(urlState.getRootUrl());
+            this.status = intern(urlState.getStatus());
+            this.subStatus = intern(urlState.getSubStatus());
+            this.jobId = intern(urlState.getJobId());
+            this.contentMd5 = urlState.getContentMd5();
+            this.contentHash = urlState.getContentHash();
+            this.retryCount = urlState.getRetryCount();
+            this.nextAttempt = urlState.getNextAttempt();
+        }
+    }
+
+    private static class IndexState {
+
+        private StateLog log;
+        private Map<String, UrlEntry> urls = new ConcurrentHashMap<>();
+        private Map<String, Set<String>> idsByMd5 = new ConcurrentHashMap<>();
+
+        public IndexState(StateLog log) {
+
+            this.log = log;
+        }
+
+        private void put(String id, UrlEntry entry) {
+
+            UrlEntry previous = urls.put(id, entry);
+
+            if (previous != null && previous.contentMd5 != null && !previous.contentMd5.equals(entry.contentMd5)) {
+                idsByMd5.computeIfPresent(previous.contentMd5, (md5, ids) -> {
+                    ids.remove(id);
+                    return ids.isEmpty() ? null : ids;
+                });
+            }
+
+            if (entry.contentMd5 != null) {
+                idsByMd5.computeIfAbsent(entry.contentMd5, md5 -> ConcurrentHashMap.newKeySet()).add(id);
+            }
+        }
+    }
+}
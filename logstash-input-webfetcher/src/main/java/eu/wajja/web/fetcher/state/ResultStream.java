@@ -0,0 +1,154 @@
+package eu.wajja.web.fetcher.state;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.wajja.web.fetcher.model.Result;
+
+/**
+ * Results read in the background by one or more producers, one per slice of
+ * the index. The producers block once the buffer is full and the reader blocks
+ * until the next result arrives, so neither side spins. The stream ends once
+ * every producer ended, a producer that failed ends its part of the stream
+ * early. Closing the stream before the end cancels the producers, which then
+ * clear their scroll.
+ */
+public class ResultStream implements Iterator<Result>, AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResultStream.class);
+
+    private static final Result END = new Result();
+
+    private BlockingQueue<Result> buffer;
+    private List<Future<?>> producers = new CopyOnWriteArrayList<>();
+    private AtomicInteger running;
+    private volatile boolean closed = false;
+    private volatile Throwable failure;
+    private boolean ended = false;
+    private Result next;
+
+    /**
+     * @param producers
+     *            number of producers that will call {@link #end()} or
+     *            {@link #fail(Throwable)}
+     */
+    public ResultStream(int capacity, int producers) {
+
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        this.running = new AtomicInteger(producers);
+    }
+
+    public void addProducer(Future<?> producer) {
+
+        producers.add(producer);
+
+        if (closed) {
+            producer.cancel(true);
+        }
+    }
+
+    /**
+     * Called by the producer, waits while the buffer is full
+     */
+    public void put(Result result) throws InterruptedException {
+
+        buffer.put(result);
+    }
+
+    /**
+     * Called by each producer once its slice is exhausted or failed
+     */
+    public void end() throws InterruptedException {
+
+        if (running.decrementAndGet() == 0 && !closed) {
+            buffer.put(END);
+        }
+    }
+
+    /**
+     * Called by a producer that failed instead of {@link #end()}, the results
+     * it put so far are still read
+     */
+    public void fail(Throwable cause) throws InterruptedException {
+
+        if (failure == null) {
+            failure = cause;
+        }
+
+        end();
+    }
+
+    /**
+     * @return the failure of the first producer that failed, null if none did
+     */
+    public Throwable getFailure() {
+
+        return failure;
+    }
+
+    public boolean isClosed() {
+
+        return closed;
+    }
+
+    @Override
+    public boolean hasNext() {
+
+        if (next == null && !ended && !closed) {
+
+            try {
+
+                next = buffer.take();
+
+                if (next == END) {
+
+                    next = null;
+                    ended = true;
+
+                    if (failure != null) {
+                        LOGGER.warn("Stream ended before its last result, a producer failed", failure);
+                    }
+                }
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+            }
+        }
+
+        return next != null;
+    }
+
+    @Override
+    public Result next() {
+
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        Result result = next;
+        next = null;
+
+        return result;
+    }
+
+    @Override
+    public void close() {
+
+        closed = true;
+
+        producers.stream().forEach(producer -> producer.cancel(true));
+
+        buffer.clear();
+        next = null;
+    }
+}
@@ -0,0 +1,297 @@
+package eu.wajja.web.fetcher.state;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import eu.wajja.web.fetcher.model.UrlState;
+
+/**
+ * Append only log of url states on local disk, the last record of a url wins.
+ * Every record holds its length, a crc32 checksum and the state as json. A
+ * record cut short by a crash fails its checksum, it is dropped with
+ * everything after it when the log is opened again. A whole record that no
+ * longer parses is skipped.
+ * <p>
+ * Records are addressed by their offset in the log, so the caller only needs
+ * to keep the offset of a url in memory and reads the whole state back when
+ * it needs it.
+ */
+public class StateLog implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StateLog.class);
+
+    private static final int BUFFER_SIZE = 65536;
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    private ObjectMapper objectMapper = new ObjectMapper();
+    private Path path;
+    private FileChannel channel;
+    private DataOutputStream outputStream;
+    private long size = 0;
+    private long records = 0;
+
+    public StateLog(Path path) {
+
+        this.path = path;
+    }
+
+    /**
+     * Replays every valid record of the log with its offset and opens it for
+     * appending
+     */
+    public synchronized void open(ObjLongConsumer<UrlState> consumer) throws IOException {
+
+        records = 0;
+
+        if (Files.exists(path)) {
+
+            long validLength = replay(path, objectMapper, (urlState, offset) -> {
+                consumer.accept(urlState, offset);
+                records++;
+            });
+
+            if (validLength < Files.size(path)) {
+
+                LOGGER.warn("Dropping {} bytes of incomplete records at the end of {}", Files.size(path) - validLength, path);
+
+                try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    fileChannel.truncate(validLength);
+                }
+            }
+        }
+
+        openForAppend();
+    }
+
+    /**
+     * Reads every valid record of a log without opening it for appending, the
+     * log may be written by another store at the same time
+     */
+    public static void scan(Path path, Consumer<UrlState> consumer) throws IOException {
+
+        if (Files.exists(path)) {
+            replay(path, new ObjectMapper(), (urlState, offset) -> consumer.accept(urlState));
+        }
+    }
+
+    /**
+     * @return the offset of the record
+     */
+    public synchronized long append(UrlState urlState) throws IOException {
+
+        long offset = size;
+
+        size = size + write(outputStream, objectMapper.writeValueAsBytes(urlState));
+        records++;
+
+        return offset;
+    }
+
+    /**
+     * Reads back the state stored at the offset returned by
+     * {@link #append(UrlState)}
+     */
+    public synchronized UrlState read(long offset) throws IOException {
+
+        return objectMapper.readValue(readRecord(offset), UrlState.class);
+    }
+
+    /**
+     * Writes the records appended so far to disk
+     */
+    public synchronized void sync() throws IOException {
+
+        outputStream.flush();
+        channel.force(false);
+    }
+
+    /**
+     * Rewrites the log with the records at the given offsets only, replacing
+     * it atomically. The records are copied as they are, without being parsed.
+     *
+     * @return the new offset of every record, in the same order
+     */
+    public synchronized long[] compact(long[] offsets) throws IOException {
+
+        Path tmpPath = path.resolveSibling(path.getFileName() + ".compact");
+        long[] newOffsets = new long[offsets.length];
+        long newSize = 0;
+
+        try (FileChannel tmpChannel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            DataOutputStream tmpOutputStream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(tmpChannel), BUFFER_SIZE));
+
+            for (int x = 0; x < offsets.length; x++) {
+
+                newOffsets[x] = newSize;
+                newSize = newSize + write(tmpOutputStream, readRecord(offsets[x]));
+            }
+
+            tmpOutputStream.flush();
+            tmpChannel.force(false);
+        }
+
+        close();
+        Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        LOGGER.info("Compacted {} from {} to {} records", path, records, offsets.length);
+
+        records = offsets.length;
+        openForAppend();
+
+        return newOffsets;
+    }
+
+    public synchronized long getRecords() {
+
+        return records;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+
+        if (channel != null && channel.isOpen()) {
+            sync();
+            outputStream.close();
+        }
+    }
+
+    private void openForAppend() throws IOException {
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        size = channel.size();
+        channel.position(size);
+
+        outputStream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+    }
+
+    private byte[] readRecord(long offset) throws IOException {
+
+        if (offset < 0 || offset + HEADER_SIZE > size) {
+            throw new IOException("No record at offset " + offset + " of " + path);
+        }
+
+        // Records still in the write buffer are not in the file yet
+        outputStream.flush();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, offset);
+
+        int length = header.getInt(0);
+        long checksum = header.getInt(4) & 0xffffffffL;
+
+        if (length < 0 || length > MAX_RECORD_SIZE || offset + HEADER_SIZE + length > size) {
+            throw new IOException("Invalid record at offset " + offset + " of " + path);
+        }
+
+        ByteBuffer body = ByteBuffer.allocate(length);
+        readFully(body, offset + HEADER_SIZE);
+
+        if (getChecksum(body.array()) != checksum) {
+            throw new IOException("Corrupt record at offset " + offset + " of " + path);
+        }
+
+        return body.array();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+
+        while (buffer.hasRemaining()) {
+
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of " + path);
+            }
+        }
+    }
+
+    /**
+     * @return the length of the valid records at the start of the log
+     */
+    private static long replay(Path path, ObjectMapper objectMapper, ObjLongConsumer<UrlState> consumer) throws IOException {
+
+        long validLength = 0;
+
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE))) {
+
+            while (true) {
+
+                int length = inputStream.readInt();
+                long checksum = inputStream.readInt() & 0xffffffffL;
+
+                if (length < 0 || length > MAX_RECORD_SIZE) {
+                    break;
+                }
+
+                byte[] bytes = new byte[length];
+                inputStream.readFully(bytes);
+
+                if (getChecksum(bytes) != checksum) {
+                    break;
+                }
+
+                UrlState urlState = null;
+
+                try {
+                    urlState = objectMapper.readValue(bytes, UrlState.class);
+
+                } catch (JsonProcessingException e) {
+                    // The record is whole, only its url is lost
+                    LOGGER.warn("Skipping unreadable record at offset {} of {}", validLength, path, e);
+                }
+
+                if (urlState != null) {
+                    consumer.accept(urlState, validLength);
+                }
+
+                validLength = validLength + HEADER_SIZE + length;
+            }
+
+        } catch (EOFException e) {
+            // End of the log, or a record cut short
+        }
+
+        return validLength;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    private int write(DataOutputStream dataOutputStream, byte[] bytes) throws IOException {
+
+        dataOutputStream.writeInt(bytes.length);
+        dataOutputStream.writeInt((int) getChecksum(bytes));
+        dataOutputStream.write(bytes);
+
+        return HEADER_SIZE + bytes.length;
+    }
+
+    private static long getChecksum(byte[] bytes) {
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes);
+
+        return crc32.getValue();
+    }
+}
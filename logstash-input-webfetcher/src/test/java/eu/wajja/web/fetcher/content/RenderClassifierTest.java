@@ -0,0 +1,56 @@
+package eu.wajja.web.fetcher.content;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+
+public class RenderClassifierTest {
+
+    private static final String TEXT = StringUtils.repeat("Some text of a static page. ", 20);
+    private static final byte[] STATIC_PAGE = ("<html><body><p>" + TEXT + "</p><a href=\"/a\">a</a></body></html>").getBytes();
+
+    @Test
+    public void testApplicationRootIsRendered() {
+
+        RenderClassifier renderClassifier = new RenderClassifier();
+        byte[] content = "<html><body><div id=\"root\"></div><script src=\"/app.js\"></script></body></html>".getBytes();
+
+        assertTrue(renderClassifier.isRenderRequired("https://ec.europa.eu/app/", "text/html", content));
+    }
+
+    @Test
+    public void testNoscriptHintIsRendered() {
+
+        RenderClassifier renderClassifier = new RenderClassifier();
+        byte[] content = ("<html><body><noscript>Please enable JavaScript</noscript><p>" + TEXT + "</p></body></html>").getBytes();
+
+        assertTrue(renderClassifier.isRenderRequired("https://ec.europa.eu/info/", "text/html", content));
+    }
+
+    @Test
+    public void testStaticPrefixIsLearned() {
+
+        RenderClassifier renderClassifier = new RenderClassifier();
+
+        // Unknown prefixes are rendered until enough pages were compared
+        assertTrue(renderClassifier.isRenderRequired("https://ec.europa.eu/info/page1", "text/html", STATIC_PAGE));
+
+        for (int x = 0; x < 3; x++) {
+            renderClassifier.learn("https://ec.europa.eu/info/page" + x, STATIC_PAGE, STATIC_PAGE);
+        }
+
+        assertFalse(renderClassifier.isRenderRequired("https://ec.europa.eu/info/page4", "text/html", STATIC_PAGE));
+        assertTrue(renderClassifier.isRenderRequired("https://ec.europa.eu/news/page4", "text/html", STATIC_PAGE));
+        assertFalse(renderClassifier.isRenderRequired("https://ec.europa.eu/info/doc.pdf", "application/pdf", STATIC_PAGE));
+    }
+
+    @Test
+    public void testPrefix() {
+
+        assertEquals("ec.europa.eu/info", RenderClassifier.getPrefix("https://EC.europa.eu/info/news/page.html"));
+        assertEquals("ec.europa.eu/", RenderClassifier.getPrefix("https://ec.europa.eu/index.html"));
+    }
+}
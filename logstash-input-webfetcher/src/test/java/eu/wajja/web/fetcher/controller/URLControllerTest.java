@@ -0,0 +1,128 @@
+package eu.wajja.web.fetcher.controller;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import eu.wajja.web.fetcher.enums.RenderMode;
+import eu.wajja.web.fetcher.model.RenderingProfile;
+import eu.wajja.web.fetcher.model.Result;
+import eu.wajja.web.fetcher.state.CrawlStateStore;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+public class URLControllerTest {
+
+    private static final String INDEX = "logstash_web_fetcher_test";
+    private static final String ETAG = "\"5d8c72a5edda8\"";
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+    private MockWebServer mockWebServer;
+    private CrawlStateStore crawlStateStore;
+    private URLController urlController;
+
+    @Before
+    public void setUp() throws IOException {
+
+        mockWebServer = new MockWebServer();
+        mockWebServer.start();
+
+        crawlStateStore = Mockito.mock(CrawlStateStore.class);
+        RenderingProfile renderingProfile = new RenderingProfile(new HashSet<>(), new ArrayList<>(), 10000L);
+        urlController = new URLController(crawlStateStore, new UrlConnectionFetchEngine(null, 5000), "Wajja", "", null, 0, false, false, true, 100, 1, renderingProfile, RenderMode.auto);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+
+        urlController.closeFetchEngine();
+        mockWebServer.shutdown();
+    }
+
+    @Test
+    public void testValidatorsAreSent() throws IOException, InterruptedException {
+
+        String url = mockWebServer.url("/page").toString();
+        Mockito.when(crawlStateStore.getValidators(url, INDEX)).thenReturn(getStoredResult(url));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(304));
+
+        urlController.fetchURL(INDEX, url, url, false, false);
+
+        RecordedRequest recordedRequest = mockWebServer.takeRequest();
+        assertEquals("GET", recordedRequest.getMethod());
+        assertEquals(ETAG, recordedRequest.getHeader("If-None-Match"));
+        assertEquals(LAST_MODIFIED, recordedRequest.getHeader("If-Modified-Since"));
+    }
+
+    @Test
+    public void testNotModifiedReturnsCachedResult() throws IOException {
+
+        String url = mockWebServer.url("/page").toString();
+        Mockito.when(crawlStateStore.getValidators(url, INDEX)).thenReturn(getStoredResult(url));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(304));
+
+        Result result = urlController.fetchURL(INDEX, url, url, false, false);
+
+        assertTrue(result.isCached());
+        assertFalse(result.isTransientFailure());
+        assertEquals(Integer.valueOf(200), result.getCode());
+        assertEquals(ETAG, result.geteTag());
+        assertNull(result.getContent());
+    }
+
+    @Test
+    public void testModifiedPageIsDownloaded() throws IOException {
+
+        String url = mockWebServer.url("/page").toString();
+        Mockito.when(crawlStateStore.getValidators(url, INDEX)).thenReturn(getStoredResult(url));
+        mockWebServer.enqueue(new MockResponse().setHeader("Content-Type", "text/html").setHeader("ETag", "\"new\"").setBody("<html>new</html>"));
+
+        Result result = urlController.fetchURL(INDEX, url, url, false, false);
+
+        assertFalse(result.isCached());
+        assertEquals("\"new\"", result.geteTag());
+        assertArrayEquals("<html>new</html>".getBytes(), result.getContent());
+    }
+
+    @Test
+    public void testValidatorsFailureFetchesUnconditionally() throws IOException, InterruptedException {
+
+        String url = mockWebServer.url("/page").toString();
+        Mockito.when(crawlStateStore.getValidators(url, INDEX)).thenThrow(new IOException("index unavailable"));
+        mockWebServer.enqueue(new MockResponse().setHeader("Content-Type", "text/html").setBody("<html>page</html>"));
+
+        Result result = urlController.fetchURL(INDEX, url, url, false, false);
+
+        assertFalse(result.isTransientFailure());
+        assertFalse(result.isCached());
+        assertArrayEquals("<html>page</html>".getBytes(), result.getContent());
+
+        RecordedRequest recordedRequest = mockWebServer.takeRequest();
+        assertNull(recordedRequest.getHeader("If-None-Match"));
+        assertNull(recordedRequest.getHeader("If-Modified-Since"));
+    }
+
+    private Result getStoredResult(String url) {
+
+        Result result = new Result();
+        result.setUrl(url);
+        result.setRootUrl(url);
+        result.setContentType("text/html");
+        result.seteTag(ETAG);
+        result.setLastModified(LAST_MODIFIED);
+
+        return result;
+    }
+}
@@ -0,0 +1,42 @@
+package eu.wajja.web.fetcher.elasticsearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SeenUrlFilterTest {
+
+    @Test
+    public void testSeenByJob() {
+
+        SeenUrlFilter seenUrlFilter = new SeenUrlFilter();
+        assertFalse(seenUrlFilter.isSeenByJob("ZWMuZXVyb3BhLmV1L3BhZ2Ux"));
+
+        seenUrlFilter.markSeenByJob("ZWMuZXVyb3BhLmV1L3BhZ2Ux");
+        seenUrlFilter.markSeenByJob("ZWMuZXVyb3BhLmV1L3BhZ2Ux");
+
+        assertTrue(seenUrlFilter.isSeenByJob("ZWMuZXVyb3BhLmV1L3BhZ2Ux"));
+        assertFalse(seenUrlFilter.isSeenByJob("ZWMuZXVyb3BhLmV1L3BhZ2Uy"));
+        assertEquals(1, seenUrlFilter.size());
+    }
+
+    @Test
+    public void testGrowKeepsEntries() {
+
+        SeenUrlFilter seenUrlFilter = new SeenUrlFilter();
+
+        for (int x = 0; x < 50000; x++) {
+            seenUrlFilter.markSeenByJob("page" + x);
+        }
+
+        assertEquals(50000, seenUrlFilter.size());
+
+        for (int x = 0; x < 50000; x++) {
+            assertTrue(seenUrlFilter.isSeenByJob("page" + x));
+        }
+
+        assertFalse(seenUrlFilter.isSeenByJob("page50000"));
+    }
+}
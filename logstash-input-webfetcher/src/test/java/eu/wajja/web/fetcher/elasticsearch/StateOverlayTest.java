@@ -0,0 +1,49 @@
+package eu.wajja.web.fetcher.elasticsearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class StateOverlayTest {
+
+    private static final String INDEX = "logstash_web_fetcher_test";
+
+    @Test
+    public void testPartialUpdatesKeepOtherFields() {
+
+        StateOverlay stateOverlay = new StateOverlay();
+        assertNull(stateOverlay.getRetryCount(INDEX, "a"));
+
+        stateOverlay.update(INDEX, "a", null, 2);
+        stateOverlay.update(INDEX, "a", "md5", null);
+
+        assertEquals(Integer.valueOf(2), stateOverlay.getRetryCount(INDEX, "a"));
+        assertTrue(stateOverlay.containsMd5(INDEX, "md5", "b"));
+        assertFalse(stateOverlay.containsMd5(INDEX, "md5", "a"));
+
+        stateOverlay.replace(INDEX, "a", null, 0);
+
+        assertEquals(Integer.valueOf(0), stateOverlay.getRetryCount(INDEX, "a"));
+        assertFalse(stateOverlay.containsMd5(INDEX, "md5", "b"));
+    }
+
+    @Test
+    public void testRefreshForgetsOnlyMarkedWrites() {
+
+        StateOverlay stateOverlay = new StateOverlay();
+
+        stateOverlay.replace(INDEX, "a", "md5", 0);
+        long mark = stateOverlay.mark();
+        stateOverlay.replace(INDEX, "b", "md5", 1);
+
+        stateOverlay.refreshed(INDEX, mark);
+
+        assertEquals(1, stateOverlay.size(INDEX));
+        assertNull(stateOverlay.getRetryCount(INDEX, "a"));
+        assertEquals(Integer.valueOf(1), stateOverlay.getRetryCount(INDEX, "b"));
+        assertTrue(stateOverlay.containsMd5(INDEX, "md5", "a"));
+    }
+}
@@ -0,0 +1,102 @@
+package eu.wajja.web.fetcher.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BlobStoreTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testContentIsStoredOnce() throws IOException {
+
+        BlobStore blobStore = new BlobStore(temporaryFolder.getRoot().getAbsolutePath());
+        byte[] content = "<html><body>Hello</body></html>".getBytes();
+
+        String hash = blobStore.put(content);
+        assertEquals(hash, blobStore.put(content.clone()));
+        assertArrayEquals(content, blobStore.get(hash));
+
+        try (Stream<Path> files = Files.walk(temporaryFolder.getRoot().toPath())) {
+            assertEquals(1, files.filter(Files::isRegularFile).count());
+        }
+    }
+
+    @Test
+    public void testUnknownHashIsNull() throws IOException {
+
+        BlobStore blobStore = new BlobStore(temporaryFolder.getRoot().getAbsolutePath());
+
+        assertNull(blobStore.get("0000000000000000000000000000000000000000000000000000000000000000"));
+        assertNull(blobStore.get("../../etc/passwd"));
+    }
+
+    @Test
+    public void testSweepDeletesUnreferencedBlobs() throws IOException {
+
+        BlobStore blobStore = new BlobStore(temporaryFolder.getRoot().getAbsolutePath());
+
+        String kept = blobStore.put("<html>kept</html>".getBytes());
+        String dropped = blobStore.put("<html>dropped</html>".getBytes());
+
+        assertEquals(0, blobStore.sweep(Collections.emptySet(), 0));
+        assertEquals(1, blobStore.sweep(Collections.singleton(kept), System.currentTimeMillis() + 1000));
+
+        assertArrayEquals("<html>kept</html>".getBytes(), blobStore.get(kept));
+        assertNull(blobStore.get(dropped));
+    }
+
+    @Test
+    public void testPutAgainKeepsBlobFromSweep() throws IOException {
+
+        BlobStore blobStore = new BlobStore(temporaryFolder.getRoot().getAbsolutePath());
+        byte[] content = "<html>Hello</html>".getBytes();
+        long now = System.currentTimeMillis();
+
+        String hash = blobStore.put(content);
+        setLastModifiedTime(now - TimeUnit.HOURS.toMillis(2));
+        blobStore.put(content);
+
+        assertEquals(0, blobStore.sweep(Collections.emptySet(), now - TimeUnit.HOURS.toMillis(1)));
+        assertArrayEquals(content, blobStore.get(hash));
+    }
+
+    @Test
+    public void testSweepIsClaimedOncePerInterval() throws IOException {
+
+        BlobStore blobStore = new BlobStore(temporaryFolder.getRoot().getAbsolutePath());
+        BlobStore otherBlobStore = new BlobStore(temporaryFolder.getRoot().getAbsolutePath());
+
+        assertTrue(blobStore.claimSweep());
+        assertFalse(otherBlobStore.claimSweep());
+
+        setLastModifiedTime(System.currentTimeMillis() - BlobStore.SWEEP_INTERVAL - 1000);
+        assertTrue(otherBlobStore.claimSweep());
+    }
+
+    private void setLastModifiedTime(long time) throws IOException {
+
+        try (Stream<Path> files = Files.walk(temporaryFolder.getRoot().toPath())) {
+
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                Files.setLastModifiedTime(file, FileTime.fromMillis(time));
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package eu.wajja.web.fetcher.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import eu.wajja.web.fetcher.model.FrontierEntry;
+
+public class FrontierServiceTest {
+
+    private static final String ROOT = "https://ec.europa.eu/";
+    private static final String OTHER_ROOT = "https://europa.eu/";
+
+    @Test
+    public void testDuplicateUrlsAreQueuedOnce() throws InterruptedException {
+
+        FrontierService frontierService = new FrontierService();
+
+        assertTrue(frontierService.offer(ROOT + "page1", ROOT, 1));
+        assertFalse(frontierService.offer(ROOT + "page1", ROOT, 2));
+        assertEquals(1, frontierService.size());
+
+        FrontierEntry entry = frontierService.poll(10, TimeUnit.MILLISECONDS);
+        frontierService.complete(entry);
+
+        // Already crawled during this run
+        assertFalse(frontierService.offer(ROOT + "page1", ROOT, 1));
+        assertTrue(frontierService.isDrained());
+    }
+
+    @Test
+    public void testDueRetryIsQueuedAgain() throws InterruptedException {
+
+        FrontierService frontierService = new FrontierService();
+        frontierService.offer(ROOT + "page1", ROOT, 1);
+        frontierService.complete(frontierService.poll(10, TimeUnit.MILLISECONDS));
+
+        frontierService.retry(ROOT + "page1", ROOT, 0);
+        assertEquals(1, frontierService.size());
+        assertEquals(ROOT + "page1", frontierService.poll(10, TimeUnit.MILLISECONDS).getUrl());
+    }
+
+    @Test
+    public void testShallowUrlsComeFirst() throws InterruptedException {
+
+        FrontierService frontierService = new FrontierService();
+        frontierService.offer(ROOT + "deep", ROOT, 3);
+        frontierService.offer(ROOT + "child1", ROOT, 1);
+        frontierService.offer(ROOT, ROOT, 0);
+        frontierService.offer(ROOT + "child2", ROOT, 1);
+
+        assertEquals(ROOT, frontierService.poll(10, TimeUnit.MILLISECONDS).getUrl());
+        assertEquals(ROOT + "child1", frontierService.poll(10, TimeUnit.MILLISECONDS).getUrl());
+        assertEquals(ROOT + "child2", frontierService.poll(10, TimeUnit.MILLISECONDS).getUrl());
+        assertEquals(ROOT + "deep", frontierService.poll(10, TimeUnit.MILLISECONDS).getUrl());
+    }
+
+    @Test
+    public void testNotDrainedWhileEntryInFlight() throws InterruptedException {
+
+        FrontierService frontierService = new FrontierService();
+        frontierService.offer(ROOT, ROOT, 0);
+
+        FrontierEntry entry = frontierService.poll(10, TimeUnit.MILLISECONDS);
+        assertFalse(frontierService.isDrained());
+        assertNull(frontierService.poll(10, TimeUnit.MILLISECONDS));
+        assertFalse(frontierService.isDrained());
+
+        frontierService.offer(ROOT + "child", ROOT, 1);
+        frontierService.complete(entry);
+        assertFalse(frontierService.isDrained());
+
+        frontierService.complete(frontierService.poll(10, TimeUnit.MILLISECONDS));
+        assertTrue(frontierService.isDrained());
+    }
+
+    @Test
+    public void testPollReturnsOnceDrained() throws Exception {
+
+        FrontierService frontierService = new FrontierService();
+        frontierService.offer(ROOT, ROOT, 0);
+
+        FrontierEntry entry = frontierService.poll(10, TimeUnit.MILLISECONDS);
+        CompletableFuture<FrontierEntry> next = CompletableFuture.supplyAsync(() -> {
+            try {
+                return frontierService.poll(60, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return entry;
+            }
+        });
+
+        Thread.sleep(50);
+        frontierService.complete(entry);
+
+        assertNull(next.get(5, TimeUnit.SECONDS));
+        assertTrue(frontierService.isDrained());
+    }
+
+    @Test
+    public void testHostWaitsForItsDelay() throws InterruptedException {
+
+        FrontierService frontierService = new FrontierService(300, 8);
+        frontierService.offer(ROOT + "page1", ROOT, 1);
+        frontierService.offer(ROOT + "page2", ROOT, 1);
+        frontierService.offer(OTHER_ROOT + "page1", OTHER_ROOT, 1);
+
+        assertEquals(ROOT + "page1", frontierService.poll(10, TimeUnit.MILLISECONDS).getUrl());
+
+        // The other host is ready straight away
+        assertEquals(OTHER_ROOT + "page1", frontierService.poll(10, TimeUnit.MILLISECONDS).getUrl());
+        assertNull(frontierService.poll(10, TimeUnit.MILLISECONDS));
+
+        assertEquals(ROOT + "page2", frontierService.poll(2, TimeUnit.SECONDS).getUrl());
+    }
+
+    @Test
+    public void testCrawlDelayAllowsOneUrlAtATime() throws InterruptedException {
+
+        FrontierService frontierService = new FrontierService(0, 8);
+        frontierService.setCrawlDelay(ROOT, 0);
+        frontierService.offer(ROOT + "page1", ROOT, 1);
+        frontierService.offer(ROOT + "page2", ROOT, 1);
+
+        FrontierEntry entry = frontierService.poll(10, TimeUnit.MILLISECONDS);
+        assertNull(frontierService.poll(10, TimeUnit.MILLISECONDS));
+
+        frontierService.release(entry);
+        assertEquals(ROOT + "page2", frontierService.poll(10, TimeUnit.MILLISECONDS).getUrl());
+    }
+
+    @Test
+    public void testRequeuedUrlComesBackWhenDue() throws InterruptedException {
+
+        FrontierService frontierService = new FrontierService();
+        frontierService.offer(ROOT + "page1", ROOT, 1);
+
+        FrontierEntry entry = frontierService.poll(10, TimeUnit.MILLISECONDS);
+        frontierService.requeue(entry, 200L);
+
+        assertFalse(frontierService.isDrained());
+        assertNull(frontierService.poll(10, TimeUnit.MILLISECONDS));
+
+        FrontierEntry retry = frontierService.poll(2, TimeUnit.SECONDS);
+        assertEquals(ROOT + "page1", retry.getUrl());
+        assertEquals(1, retry.getAttempts());
+
+        frontierService.complete(retry);
+        assertTrue(frontierService.isDrained());
+    }
+
+    @Test
+    public void testPostponedUrlKeepsItsAttempts() throws InterruptedException {
+
+        FrontierService frontierService = new FrontierService();
+        frontierService.offer(ROOT + "page1", ROOT, 1);
+
+        FrontierEntry entry = frontierService.poll(10, TimeUnit.MILLISECONDS);
+        frontierService.postpone(entry, 10);
+
+        FrontierEntry postponed = frontierService.poll(2, TimeUnit.SECONDS);
+        assertEquals(ROOT + "page1", postponed.getUrl());
+        assertEquals(0, postponed.getAttempts());
+
+        frontierService.complete(postponed);
+        assertTrue(frontierService.isDrained());
+    }
+
+    @Test
+    public void testDeferHoldsBackHost() throws InterruptedException {
+
+        FrontierService frontierService = new FrontierService();
+        frontierService.offer(ROOT + "page1", ROOT, 1);
+        frontierService.defer(ROOT, 60000);
+
+        assertNull(frontierService.poll(10, TimeUnit.MILLISECONDS));
+        assertFalse(frontierService.isDrained());
+    }
+}
@@ -0,0 +1,66 @@
+package eu.wajja.web.fetcher.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HostRateControllerTest {
+
+    @Test
+    public void testThrottleHalvesConcurrencyAndBacksOff() {
+
+        HostRateController rate = new HostRateController(0, 8);
+        assertEquals(8, rate.getConcurrency());
+
+        rate.onThrottle();
+        assertEquals(4, rate.getConcurrency());
+        assertEquals(1000, rate.getDelay());
+
+        rate.onThrottle();
+        assertEquals(2, rate.getConcurrency());
+        assertEquals(2000, rate.getDelay());
+    }
+
+    @Test
+    public void testSuccessRecoversAdditively() {
+
+        HostRateController rate = new HostRateController(0, 8);
+        rate.onThrottle();
+        rate.onThrottle();
+
+        rate.onSuccess(50);
+        assertEquals(2, rate.getConcurrency());
+        assertEquals(1900, rate.getDelay());
+
+        rate.onSuccess(50);
+        assertEquals(3, rate.getConcurrency());
+    }
+
+    @Test
+    public void testSlowResponseNarrowsHost() {
+
+        HostRateController rate = new HostRateController(0, 8);
+
+        for (int x = 0; x < 10; x++) {
+            rate.onSuccess(100);
+        }
+
+        rate.onSuccess(5000);
+        assertEquals(4, rate.getConcurrency());
+    }
+
+    @Test
+    public void testCrawlDelayCapsConcurrency() {
+
+        HostRateController rate = new HostRateController(10, 8);
+        rate.setCrawlDelay(5000);
+
+        for (int x = 0; x < 10; x++) {
+            rate.onSuccess(100);
+        }
+
+        assertEquals(1, rate.getConcurrency());
+        assertTrue(rate.getDelay() >= 5000);
+    }
+}
@@ -0,0 +1,66 @@
+package eu.wajja.web.fetcher.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class PageBudgetTest {
+
+    @Test
+    public void testReleasedSlotsCanBeTakenAgain() {
+
+        PageBudget pageBudget = new PageBudget(3, 1);
+
+        assertTrue(pageBudget.tryAcquire());
+        assertTrue(pageBudget.tryAcquire());
+        assertFalse(pageBudget.tryAcquire());
+
+        pageBudget.commit();
+        pageBudget.release();
+
+        assertTrue(pageBudget.tryAcquire());
+        assertEquals(2, pageBudget.getCount());
+    }
+
+    @Test
+    public void testConcurrentWorkersNeverExceedMaximum() throws InterruptedException {
+
+        PageBudget pageBudget = new PageBudget(100, 0);
+        AtomicInteger acquired = new AtomicInteger();
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+
+        for (int x = 0; x < 1000; x++) {
+            executorService.execute(() -> {
+                if (pageBudget.tryAcquire()) {
+                    acquired.incrementAndGet();
+                    pageBudget.commit();
+                }
+            });
+        }
+
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(100, acquired.get());
+        assertEquals(100, pageBudget.getCount());
+    }
+
+    @Test
+    public void testReconcileKeepsReservedSlots() {
+
+        PageBudget pageBudget = new PageBudget(10, 0);
+        pageBudget.tryAcquire();
+        pageBudget.reconcile(9);
+
+        assertFalse(pageBudget.tryAcquire());
+        pageBudget.release();
+        assertTrue(pageBudget.tryAcquire());
+    }
+}
@@ -0,0 +1,54 @@
+package eu.wajja.web.fetcher.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PipelineStageTest {
+
+    @Test
+    public void testItemsAreHandedToNextStage() throws InterruptedException {
+
+        List<String> processed = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(3);
+
+        PipelineStage<String> last = new PipelineStage<>("last", 1, 2, item -> {
+            processed.add(item);
+            latch.countDown();
+        }, item -> {});
+
+        PipelineStage<String> first = new PipelineStage<>("first", 2, 2, item -> last.put(item.toUpperCase()), item -> {});
+
+        first.put("a");
+        first.put("b");
+        first.put("c");
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(3, processed.size());
+        assertTrue(processed.contains("A"));
+
+        first.shutdown();
+        last.shutdown();
+    }
+
+    @Test
+    public void testFailedItemsAreDiscarded() throws InterruptedException {
+
+        CountDownLatch latch = new CountDownLatch(1);
+
+        PipelineStage<String> stage = new PipelineStage<>("failing", 1, 1, item -> {
+            throw new IllegalStateException(item);
+        }, item -> latch.countDown());
+
+        stage.put("a");
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        stage.shutdown();
+    }
+}
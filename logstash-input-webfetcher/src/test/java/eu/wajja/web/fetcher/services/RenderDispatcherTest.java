@@ -0,0 +1,67 @@
+package eu.wajja.web.fetcher.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+public class RenderDispatcherTest {
+
+    private static final String FAST = "http://fast:3000/webdriver";
+    private static final String SLOW = "http://slow:3000/webdriver";
+
+    @Test
+    public void testFasterDriverIsPreferred() throws InterruptedException {
+
+        RenderDispatcher renderDispatcher = new RenderDispatcher(Arrays.asList(SLOW, FAST), 4);
+
+        renderDispatcher.release(renderDispatcher.acquire(), true, 5000);
+        renderDispatcher.release(renderDispatcher.acquire(), true, 100);
+
+        assertEquals(FAST, renderDispatcher.acquire());
+        assertEquals(FAST, renderDispatcher.acquire());
+    }
+
+    @Test
+    public void testFailingDriverIsLeftOut() throws InterruptedException {
+
+        RenderDispatcher renderDispatcher = new RenderDispatcher(Arrays.asList(SLOW, FAST), 4);
+
+        for (int x = 0; x < 3; x++) {
+            renderDispatcher.release(SLOW, false, 100);
+        }
+
+        for (int x = 0; x < 4; x++) {
+            assertEquals(FAST, renderDispatcher.acquire());
+        }
+    }
+
+    @Test
+    public void testWaitsForAFreeTab() throws Exception {
+
+        RenderDispatcher renderDispatcher = new RenderDispatcher(Arrays.asList(FAST), 1);
+        assertEquals(FAST, renderDispatcher.acquire());
+
+        CompletableFuture<String> next = CompletableFuture.supplyAsync(() -> {
+            try {
+                return renderDispatcher.acquire();
+            } catch (InterruptedException e) {
+                return null;
+            }
+        });
+
+        try {
+            assertNull(next.get(100, TimeUnit.MILLISECONDS));
+        } catch (TimeoutException e) {
+            // Still waiting, as expected
+        }
+
+        renderDispatcher.release(FAST, true, 100);
+        assertEquals(FAST, next.get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,31 @@
+package eu.wajja.web.fetcher.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void testBackoffDoublesUpToTheCap() {
+
+        RetryPolicy retryPolicy = new RetryPolicy(1000, 5000, 10);
+
+        assertEquals(1000, retryPolicy.getBackoff(1));
+        assertEquals(2000, retryPolicy.getBackoff(2));
+        assertEquals(4000, retryPolicy.getBackoff(3));
+        assertEquals(5000, retryPolicy.getBackoff(4));
+        assertEquals(5000, retryPolicy.getBackoff(100));
+    }
+
+    @Test
+    public void testExhaustedAfterMaxRetries() {
+
+        RetryPolicy retryPolicy = new RetryPolicy(1000, 5000, 3);
+
+        assertFalse(retryPolicy.isExhausted(3));
+        assertTrue(retryPolicy.isExhausted(4));
+    }
+}
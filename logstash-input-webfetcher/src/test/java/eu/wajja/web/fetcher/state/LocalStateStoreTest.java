@@ -0,0 +1,234 @@
+package eu.wajja.web.fetcher.state;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import eu.wajja.web.fetcher.enums.Status;
+import eu.wajja.web.fetcher.enums.SubStatus;
+import eu.wajja.web.fetcher.model.Result;
+
+public class LocalStateStoreTest {
+
+    private static final String INDEX = "logstash_web_fetcher_test";
+    private static final String ROOT = "https://ec.europa.eu/";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testStateSurvivesReopen() throws IOException {
+
+        String directory = temporaryFolder.getRoot().getAbsolutePath();
+
+        LocalStateStore localStateStore = new LocalStateStore(directory);
+        localStateStore.addNewUrl(getResult(ROOT, "<html>root</html>"), "job1", INDEX, Status.processed, SubStatus.included, "Document sent to filter");
+        localStateStore.addNewChildUrls(Arrays.asList(ROOT + "page1", ROOT + "page2"), ROOT, "job1", INDEX, ROOT);
+        localStateStore.updateStatus(ROOT + "page2", INDEX, Status.processed, SubStatus.excluded, "regex excludedLinkRegex");
+        localStateStore.close();
+
+        localStateStore = new LocalStateStore(directory);
+
+        assertEquals(1, localStateStore.totalCountWithJobId("job1", INDEX));
+        assertArrayEquals("<html>root</html>".getBytes(), localStateStore.getContent(ROOT, INDEX));
+        assertEquals(Arrays.asList(ROOT + "page1"), getUrls(localStateStore.streamUrls(INDEX, Status.queue)));
+        assertEquals(Arrays.asList(ROOT + "page2"), getUrls(localStateStore.streamUrls(INDEX, Status.processed, SubStatus.excluded)));
+
+        localStateStore.close();
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws IOException {
+
+        String directory = temporaryFolder.getRoot().getAbsolutePath();
+
+        LocalStateStore localStateStore = new LocalStateStore(directory);
+        localStateStore.addNewUrl(ROOT, ROOT, "job1", INDEX, Status.queue, SubStatus.included, "Start", null);
+        localStateStore.close();
+
+        Path log = temporaryFolder.getRoot().toPath().resolve(INDEX + ".log");
+        long length = Files.size(log);
+
+        try (OutputStream outputStream = Files.newOutputStream(log, StandardOpenOption.APPEND)) {
+            outputStream.write(new byte[] { 0, 0, 1, 0, 42, 42 });
+        }
+
+        localStateStore = new LocalStateStore(directory);
+        assertTrue(localStateStore.existsInIndex(ROOT, INDEX));
+        assertEquals(length, Files.size(log));
+
+        localStateStore.addNewUrl(ROOT + "page1", ROOT, "job1", INDEX, Status.queue, SubStatus.included, "Start", null);
+        localStateStore.close();
+
+        localStateStore = new LocalStateStore(directory);
+        assertTrue(localStateStore.existsInIndex(ROOT + "page1", INDEX));
+        localStateStore.close();
+    }
+
+    @Test
+    public void testChildUrlsSeenByJobAreLeftUntouched() throws IOException {
+
+        LocalStateStore localStateStore = new LocalStateStore(temporaryFolder.getRoot().getAbsolutePath());
+
+        localStateStore.addNewUrl(getResult(ROOT + "page1", "<html>same</html>"), "job1", INDEX, Status.processed, SubStatus.included, "Document sent to filter");
+        localStateStore.addNewChildUrls(Arrays.asList(ROOT + "page1"), ROOT, "job1", INDEX, ROOT);
+        assertEquals(1, localStateStore.totalCountWithJobId("job1", INDEX));
+
+        localStateStore.addNewChildUrls(Arrays.asList(ROOT + "page1"), ROOT, "job2", INDEX, ROOT);
+        assertEquals(0, localStateStore.totalCountWithJobId("job1", INDEX));
+        assertNull(localStateStore.getValidators(ROOT + "page2", INDEX));
+
+        assertFalse(localStateStore.existsMd5InIndex(ROOT + "page1", getResult(ROOT, "<html>same</html>").getMd5(), INDEX));
+        localStateStore.addNewUrl(getResult(ROOT + "page3", "<html>same</html>"), "job2", INDEX, Status.processed, SubStatus.included, "Document sent to filter");
+        assertTrue(localStateStore.existsMd5InIndex(ROOT + "page1", getResult(ROOT, "<html>same</html>").getMd5(), INDEX));
+
+        localStateStore.close();
+    }
+
+    @Test
+    public void testUnopenableStateFailsCheckIndex() throws IOException {
+
+        String directory = temporaryFolder.getRoot().getAbsolutePath();
+
+        // A directory where the log should be cannot be read as a log
+        Files.createDirectories(temporaryFolder.getRoot().toPath().resolve(INDEX + ".log"));
+        LocalStateStore localStateStore = new LocalStateStore(directory);
+
+        for (int x = 0; x < 2; x++) {
+
+            try {
+                localStateStore.checkIndex(INDEX);
+                fail("The state of " + INDEX + " cannot be opened");
+
+            } catch (IOException e) {
+                // Not kept, every call tries to open it again
+            }
+        }
+
+        localStateStore.close();
+    }
+
+    @Test
+    public void testChildUrlsLeaveRetryAndDeadUrlsUntouched() throws IOException {
+
+        LocalStateStore localStateStore = new LocalStateStore(temporaryFolder.getRoot().getAbsolutePath());
+
+        localStateStore.addRetryUrl(ROOT + "retry", ROOT, "job1", INDEX, Status.retry, 2, 1000l, "503", ROOT);
+        localStateStore.addRetryUrl(ROOT + "dead", ROOT, "job1", INDEX, Status.dead, 5, 0l, "503", ROOT);
+        localStateStore.addNewChildUrls(Arrays.asList(ROOT + "retry", ROOT + "dead", ROOT + "page1"), ROOT, "job2", INDEX, ROOT);
+
+        assertEquals(Arrays.asList(ROOT + "page1"), getUrls(localStateStore.streamUrls(INDEX, Status.queue)));
+        assertEquals(Arrays.asList(ROOT + "retry"), getUrls(localStateStore.streamUrls(INDEX, Status.retry)));
+        assertEquals(Arrays.asList(ROOT + "dead"), getUrls(localStateStore.streamUrls(INDEX, Status.dead)));
+        assertEquals(2, localStateStore.getRetryCount(ROOT + "retry", INDEX));
+
+        localStateStore.close();
+    }
+
+    @Test
+    public void testNotModifiedPageKeepsStoredContent() throws IOException {
+
+        LocalStateStore localStateStore = new LocalStateStore(temporaryFolder.getRoot().getAbsolutePath());
+
+        Result result = getResult(ROOT, "<html>root</html>");
+        result.seteTag("\"5d8c72a5edda8\"");
+        localStateStore.addNewUrl(result, "job1", INDEX, Status.processed, SubStatus.included, "Document sent to filter");
+
+        Result cachedResult = localStateStore.getValidators(ROOT, INDEX);
+        cachedResult.setCached(true);
+        assertNull(cachedResult.getContent());
+        localStateStore.addNewUrl(cachedResult, "job2", INDEX, Status.processed, SubStatus.included, "Document already sent to filter");
+
+        assertEquals(1, localStateStore.totalCountWithJobId("job2", INDEX));
+        assertArrayEquals("<html>root</html>".getBytes(), localStateStore.getContent(ROOT, INDEX));
+        assertEquals("\"5d8c72a5edda8\"", localStateStore.getValidators(ROOT, INDEX).geteTag());
+        assertTrue(localStateStore.existsMd5InIndex(ROOT + "page1", result.getMd5(), INDEX));
+
+        localStateStore.close();
+    }
+
+    @Test
+    public void testSweepKeepsBodiesOfEveryIndex() throws IOException {
+
+        String directory = temporaryFolder.getRoot().getAbsolutePath();
+
+        LocalStateStore otherStore = new LocalStateStore(directory);
+        otherStore.addNewUrl(getResult(ROOT + "page1", "<html>old</html>"), "job1", "other_index", Status.processed, SubStatus.included, "Document sent to filter");
+        otherStore.addNewUrl(getResult(ROOT + "page1", "<html>new</html>"), "job2", "other_index", Status.processed, SubStatus.included, "Document sent to filter");
+        otherStore.flushIndex("other_index");
+
+        LocalStateStore localStateStore = new LocalStateStore(directory);
+        localStateStore.addNewUrl(getResult(ROOT, "<html>root</html>"), "job1", INDEX, Status.processed, SubStatus.included, "Document sent to filter");
+
+        setBlobsLastModifiedTime(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2));
+        localStateStore.sweepBlobs();
+
+        assertArrayEquals("<html>root</html>".getBytes(), localStateStore.getContent(ROOT, INDEX));
+        assertArrayEquals("<html>new</html>".getBytes(), otherStore.getContent(ROOT + "page1", "other_index"));
+        assertEquals(2, countBlobs());
+
+        otherStore.close();
+        localStateStore.close();
+    }
+
+    private void setBlobsLastModifiedTime(long time) throws IOException {
+
+        try (Stream<Path> files = Files.walk(temporaryFolder.getRoot().toPath().resolve("blobs"))) {
+
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                Files.setLastModifiedTime(file, FileTime.fromMillis(time));
+            }
+        }
+    }
+
+    private long countBlobs() throws IOException {
+
+        try (Stream<Path> files = Files.walk(temporaryFolder.getRoot().toPath().resolve("blobs"))) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".gz")).count();
+        }
+    }
+
+    private Result getResult(String url, String content) {
+
+        Result result = new Result();
+        result.setUrl(url);
+        result.setRootUrl(ROOT);
+        result.setCode(200);
+        result.setContentType("text/html");
+        result.setContent(content.getBytes());
+        result.setMd5(DigestUtils.md5Hex(content.getBytes()));
+
+        return result;
+    }
+
+    private List<String> getUrls(ResultStream resultStream) {
+
+        List<String> urls = new ArrayList<>();
+
+        try (ResultStream results = resultStream) {
+            results.forEachRemaining(result -> urls.add(result.getUrl()));
+        }
+
+        return urls;
+    }
+}
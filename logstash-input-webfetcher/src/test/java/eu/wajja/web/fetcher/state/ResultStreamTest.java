@@ -0,0 +1,132 @@
+package eu.wajja.web.fetcher.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import eu.wajja.web.fetcher.model.Result;
+
+public class ResultStreamTest {
+
+    @Test
+    public void testResultsAreStreamedUntilTheEnd() {
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        List<String> urls = new ArrayList<>();
+
+        try (ResultStream resultStream = new ResultStream(2, 3)) {
+
+            for (int slice = 0; slice < 3; slice++) {
+
+                int sliceId = slice;
+                resultStream.addProducer(executor.submit(() -> {
+
+                    for (int x = 0; x < 10; x++) {
+
+                        Result result = new Result();
+                        result.setUrl("https://ec.europa.eu/" + sliceId + "/" + x);
+                        resultStream.put(result);
+                    }
+
+                    resultStream.end();
+                    return null;
+                }));
+            }
+
+            resultStream.forEachRemaining(result -> urls.add(result.getUrl()));
+        }
+
+        assertEquals(30, urls.size());
+        assertTrue(urls.contains("https://ec.europa.eu/2/9"));
+
+        executor.shutdownNow();
+    }
+
+    @Test(timeout = 5000)
+    public void testFailedProducerEndsTheStream() {
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        List<String> urls = new ArrayList<>();
+        IllegalStateException failure = new IllegalStateException("rejected execution of search");
+
+        try (ResultStream resultStream = new ResultStream(2, 2)) {
+
+            for (int slice = 0; slice < 2; slice++) {
+
+                int sliceId = slice;
+                resultStream.addProducer(executor.submit(() -> {
+
+                    try {
+
+                        for (int x = 0; x < 5; x++) {
+
+                            if (sliceId == 1 && x == 3) {
+                                throw failure;
+                            }
+
+                            Result result = new Result();
+                            result.setUrl("https://ec.europa.eu/" + sliceId + "/" + x);
+                            resultStream.put(result);
+                        }
+
+                        resultStream.end();
+
+                    } catch (RuntimeException e) {
+                        resultStream.fail(e);
+                    }
+
+                    return null;
+                }));
+            }
+
+            assertNull(resultStream.getFailure());
+            resultStream.forEachRemaining(result -> urls.add(result.getUrl()));
+
+            assertEquals(8, urls.size());
+            assertEquals(failure, resultStream.getFailure());
+            assertFalse(resultStream.hasNext());
+        }
+
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testCloseStopsTheProducer() throws InterruptedException {
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountDownLatch stopped = new CountDownLatch(1);
+
+        ResultStream resultStream = new ResultStream(1, 1);
+        resultStream.addProducer(executor.submit(() -> {
+
+            try {
+                while (!resultStream.isClosed()) {
+                    resultStream.put(new Result());
+                }
+
+            } finally {
+                stopped.countDown();
+            }
+
+            return null;
+        }));
+
+        assertTrue(resultStream.hasNext());
+        resultStream.close();
+
+        assertTrue(stopped.await(5, TimeUnit.SECONDS));
+        assertFalse(resultStream.hasNext());
+
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,130 @@
+package eu.wajja.web.fetcher.state;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import eu.wajja.web.fetcher.model.UrlState;
+
+public class StateLogTest {
+
+    private static final String ROOT = "https://ec.europa.eu/";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testRecordsAreReadBackByOffset() throws IOException {
+
+        StateLog stateLog = new StateLog(temporaryFolder.getRoot().toPath().resolve("test.log"));
+        stateLog.open((urlState, offset) -> {});
+
+        long first = stateLog.append(getUrlState(ROOT + "page1", "queue"));
+        long second = stateLog.append(getUrlState(ROOT + "page2", "processed"));
+
+        assertEquals(ROOT + "page2", stateLog.read(second).getUrl());
+        assertEquals("queue", stateLog.read(first).getStatus());
+
+        stateLog.close();
+    }
+
+    @Test
+    public void testCompactKeepsOnlyGivenRecords() throws IOException {
+
+        Path path = temporaryFolder.getRoot().toPath().resolve("test.log");
+
+        StateLog stateLog = new StateLog(path);
+        stateLog.open((urlState, offset) -> {});
+
+        stateLog.append(getUrlState(ROOT + "page1", "queue"));
+        long page2 = stateLog.append(getUrlState(ROOT + "page2", "queue"));
+        long page1 = stateLog.append(getUrlState(ROOT + "page1", "processed"));
+        stateLog.sync();
+
+        long sizeBefore = Files.size(path);
+        long[] offsets = stateLog.compact(new long[] { page2, page1 });
+
+        assertEquals(2, stateLog.getRecords());
+        assertTrue(Files.size(path) < sizeBefore);
+        assertEquals(ROOT + "page2", stateLog.read(offsets[0]).getUrl());
+        assertEquals("processed", stateLog.read(offsets[1]).getStatus());
+
+        // Appending goes on after the compacted records
+        long page3 = stateLog.append(getUrlState(ROOT + "page3", "queue"));
+        assertEquals(ROOT + "page3", stateLog.read(page3).getUrl());
+        stateLog.close();
+
+        List<String> urls = new ArrayList<>();
+        List<Long> replayedOffsets = new ArrayList<>();
+
+        stateLog = new StateLog(path);
+        stateLog.open((urlState, offset) -> {
+            urls.add(urlState.getUrl());
+            replayedOffsets.add(offset);
+        });
+        stateLog.close();
+
+        assertEquals(3, urls.size());
+        assertEquals(ROOT + "page2", urls.get(0));
+        assertEquals(ROOT + "page1", urls.get(1));
+        assertArrayEquals(new long[] { offsets[0], offsets[1], page3 }, replayedOffsets.stream().mapToLong(Long::longValue).toArray());
+    }
+
+    @Test
+    public void testUnreadableRecordsAreSkipped() throws IOException {
+
+        Path path = temporaryFolder.getRoot().toPath().resolve("test.log");
+
+        try (DataOutputStream outputStream = new DataOutputStream(Files.newOutputStream(path))) {
+            writeRecord(outputStream, "{\"url\":\"" + ROOT + "page1\",\"status\":\"queue\"}");
+            writeRecord(outputStream, "{\"url\":\"" + ROOT + "page2\",\"removedField\":\"value\"}");
+            writeRecord(outputStream, "not a url state");
+            writeRecord(outputStream, "{\"url\":\"" + ROOT + "page3\",\"status\":\"processed\"}");
+        }
+
+        long size = Files.size(path);
+        List<String> urls = new ArrayList<>();
+
+        StateLog stateLog = new StateLog(path);
+        stateLog.open((urlState, offset) -> urls.add(urlState.getUrl()));
+        stateLog.close();
+
+        assertEquals(Arrays.asList(ROOT + "page1", ROOT + "page2", ROOT + "page3"), urls);
+        assertEquals(size, Files.size(path));
+    }
+
+    private void writeRecord(DataOutputStream outputStream, String json) throws IOException {
+
+        byte[] bytes = json.getBytes();
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes);
+
+        outputStream.writeInt(bytes.length);
+        outputStream.writeInt((int) crc32.getValue());
+        outputStream.write(bytes);
+    }
+
+    private UrlState getUrlState(String url, String status) {
+
+        UrlState urlState = new UrlState();
+        urlState.setUrl(url);
+        urlState.setRootUrl(ROOT);
+        urlState.setStatus(status);
+
+        return urlState;
+    }
+}